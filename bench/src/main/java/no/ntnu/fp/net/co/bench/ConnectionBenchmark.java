@@ -0,0 +1,221 @@
+package no.ntnu.fp.net.co.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.fp.net.co.Connection;
+import no.ntnu.fp.net.co.ConnectionImpl;
+import no.ntnu.fp.net.co.ImpairedTransport;
+import no.ntnu.fp.net.co.Impairment;
+import no.ntnu.fp.net.co.InProcessTransport;
+import no.ntnu.fp.net.co.SharedMemoryTransport;
+import no.ntnu.fp.net.co.Transport;
+import no.ntnu.fp.net.co.UdpTransport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of {@link ConnectionImpl}, over an {@link ImpairedTransport}:
+ * <ul>
+ * <li>throughput - messages per second sent one way</li>
+ * <li>latency - round trip time of a message echoed by the other end</li>
+ * <li>handshake - time until both connect() and accept() have returned</li>
+ * <li>close - time until both ends have closed</li>
+ * </ul>
+ * The parameters are payload, see {@link Payload}, for the first two; loss,
+ * delay and ghost, the rates of settings.xml; and transport, udp, shm or
+ * inprocess, the one the ImpairedTransport wraps. The rates default to
+ * those of the settings.xml in the working directory, which also gives the
+ * seed and the other impairments, see {@link Impairment#fromSettings(File)}.
+ * {@link SimpleConnectionBenchmark} is the baseline.
+ */
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class ConnectionBenchmark {
+
+    /** Value of a rate that is taken from settings.xml. */
+    static final String FROM_SETTINGS = "settings";
+
+    /** Messages sent by each invocation of throughput. */
+    static final int BATCH = 100;
+
+    /** The transport and a server of each kind, for a trial. */
+    @State(Scope.Benchmark)
+    public static class Link {
+
+        @Param(FROM_SETTINGS)
+        public String loss;
+
+        @Param(FROM_SETTINGS)
+        public String delay;
+
+        @Param(FROM_SETTINGS)
+        public String ghost;
+
+        @Param("udp")
+        public String transport;
+
+        Stack stack;
+        private Server echo;
+        private Server sink;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            Stack.quiet("ConnectionBenchmark");
+            File settings = new File("settings.xml");
+            Impairment impairment = Impairment.fromSettings(settings);
+            if (!loss.equals(FROM_SETTINGS)) {
+                impairment.setLoss(Double.parseDouble(loss));
+            }
+            if (!delay.equals(FROM_SETTINGS)) {
+                impairment.setDelay(Double.parseDouble(delay), impairment.getDistribution(),
+                        impairment.getMeanDelay());
+            }
+            if (!ghost.equals(FROM_SETTINGS)) {
+                impairment.setDuplicate(Double.parseDouble(ghost));
+            }
+            stack = new Stack.Impl(new ImpairedTransport(transport(transport), impairment,
+                    Impairment.seedFromSettings(settings)));
+        }
+
+        /** @return The server that echoes, started the first time. */
+        Server echo() {
+            if (echo == null) echo = stack.serve(true, 1);
+            return echo;
+        }
+
+        /** @return The server that counts batches, started the first time. */
+        Server sink() {
+            if (sink == null) sink = stack.serve(false, BATCH);
+            return sink;
+        }
+
+        private static Transport transport(String name) {
+            if (name.equals("udp")) return UdpTransport.INSTANCE;
+            if (name.equals("shm")) return SharedMemoryTransport.INSTANCE;
+            if (name.equals("inprocess")) return new InProcessTransport();
+            throw new IllegalArgumentException("Unknown transport: " + name);
+        }
+    }
+
+    /** A client connected to the sink for an iteration. */
+    @State(Scope.Thread)
+    public static class ToSink {
+
+        Server server;
+        Connection client;
+
+        @Setup(Level.Iteration)
+        public void setUp(Link link) throws IOException {
+            server = link.sink();
+            client = link.stack.open(server);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            Stack.close(client, server);
+        }
+    }
+
+    /** A client connected to the echo server for an iteration. */
+    @State(Scope.Thread)
+    public static class ToEcho {
+
+        Server server;
+        Connection client;
+
+        @Setup(Level.Iteration)
+        public void setUp(Link link) throws IOException {
+            server = link.echo();
+            client = link.stack.open(server);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            Stack.close(client, server);
+        }
+    }
+
+    /** A new client, connected by the invocation and closed after it. */
+    @State(Scope.Thread)
+    public static class Unconnected {
+
+        Server server;
+        Connection client;
+
+        @Setup(Level.Invocation)
+        public void setUp(Link link) {
+            server = link.echo();
+            client = link.stack.client();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException {
+            Stack.close(client, server);
+        }
+    }
+
+    /** A client connected before the invocation, which closes it. */
+    @State(Scope.Thread)
+    public static class Connected {
+
+        Server server;
+        Connection client;
+
+        @Setup(Level.Invocation)
+        public void setUp(Link link) throws IOException {
+            server = link.echo();
+            client = link.stack.open(server);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void throughput(Payload payload, ToSink session) throws IOException {
+        for (int n = 0; n < BATCH; n++) {
+            session.client.send(payload.message, 0, payload.message.length);
+        }
+        session.server.await();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int latency(Payload payload, ToEcho session) throws IOException {
+        session.client.send(payload.message, 0, payload.message.length);
+        payload.reply.clear();
+        return session.client.receive(payload.reply);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void handshake(Link link, Unconnected session) throws IOException {
+        link.stack.connect(session.client, session.server.port);
+        session.server.await();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void close(Connected session) throws IOException {
+        Stack.close(session.client, session.server);
+    }
+}
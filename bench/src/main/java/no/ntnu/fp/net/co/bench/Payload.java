@@ -0,0 +1,31 @@
+package no.ntnu.fp.net.co.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The message a benchmark sends, of random bytes, and a buffer for the
+ * reply. payload is its size in bytes, at most 64 KB.
+ */
+@State(Scope.Benchmark)
+public class Payload {
+
+    @Param({ "16", "1024", "8192" })
+    public int payload;
+
+    byte[] message;
+    ByteBuffer reply;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        message = new byte[payload];
+        new Random(payload).nextBytes(message);
+        reply = ByteBuffer.allocate(Math.max(payload, 1));
+    }
+}
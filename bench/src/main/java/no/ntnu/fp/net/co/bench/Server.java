@@ -0,0 +1,93 @@
+package no.ntnu.fp.net.co.bench;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.fp.net.co.Connection;
+
+/**
+ * Accepts connections one at a time, and echoes their messages or counts
+ * them, telling the benchmark when each was accepted, when a batch of
+ * messages arrived, and when each was closed.
+ */
+class Server extends Thread {
+
+    /** Longest message echoed whole. */
+    private static final int BUFFER = 64 * 1024;
+
+    /** How long to wait for an event before giving up. */
+    private static final long TIMEOUT_SECONDS = 60;
+
+    final int port;
+    private final Connection listener;
+    private final boolean echo;
+    private final int batch;
+    private final BlockingQueue<Long> events;
+    private volatile Exception failure;
+
+    Server(Connection listener, int port, boolean echo, int batch) {
+        super("Benchmark server " + port);
+        this.listener = listener;
+        this.port = port;
+        this.echo = echo;
+        this.batch = batch;
+        events = new LinkedBlockingQueue<Long>();
+        setDaemon(true);
+    }
+
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+        try {
+            while (true) {
+                Connection conn = listener.accept();
+                events.put(Long.valueOf(System.nanoTime()));
+                int received = 0;
+                try {
+                    while (true) {
+                        buffer.clear();
+                        conn.receive(buffer);
+                        if (echo) {
+                            buffer.flip();
+                            conn.send(buffer);
+                        }
+                        else if (++received % batch == 0) {
+                            events.put(Long.valueOf(System.nanoTime()));
+                        }
+                    }
+                }
+                catch (EOFException e) {
+                    conn.close();
+                }
+                events.put(Long.valueOf(System.nanoTime()));
+            }
+        }
+        catch (Exception e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Wait for the next event.
+     *
+     * @return When it happened, in System.nanoTime().
+     * @throws IOException
+     *             If the server failed, or nothing happened in time.
+     */
+    long await() throws IOException {
+        Long time;
+        try {
+            time = events.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            time = null;
+        }
+        if (time == null) {
+            throw new IOException("Server gave up: " + (failure == null ? "timed out" : failure.toString()));
+        }
+        return time.longValue();
+    }
+}
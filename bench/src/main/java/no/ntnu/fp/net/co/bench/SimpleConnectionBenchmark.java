@@ -0,0 +1,164 @@
+package no.ntnu.fp.net.co.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.fp.net.co.Connection;
+import no.ntnu.fp.net.co.SimpleConnection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The benchmarks of {@link ConnectionBenchmark} over {@link SimpleConnection},
+ * as the baseline. It runs over TCP, which can not be impaired, so only the
+ * payload applies.
+ */
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class SimpleConnectionBenchmark {
+
+    /** A server of each kind, for a trial. */
+    @State(Scope.Benchmark)
+    public static class Link {
+
+        final Stack stack = new Stack.Simple();
+        private Server echo;
+        private Server sink;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Stack.quiet("SimpleConnectionBenchmark");
+        }
+
+        /** @return The server that echoes, started the first time. */
+        Server echo() {
+            if (echo == null) echo = stack.serve(true, 1);
+            return echo;
+        }
+
+        /** @return The server that counts batches, started the first time. */
+        Server sink() {
+            if (sink == null) sink = stack.serve(false, ConnectionBenchmark.BATCH);
+            return sink;
+        }
+    }
+
+    /** A client connected to the sink for an iteration. */
+    @State(Scope.Thread)
+    public static class ToSink {
+
+        Server server;
+        Connection client;
+
+        @Setup(Level.Iteration)
+        public void setUp(Link link) throws IOException {
+            server = link.sink();
+            client = link.stack.open(server);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            Stack.close(client, server);
+        }
+    }
+
+    /** A client connected to the echo server for an iteration. */
+    @State(Scope.Thread)
+    public static class ToEcho {
+
+        Server server;
+        Connection client;
+
+        @Setup(Level.Iteration)
+        public void setUp(Link link) throws IOException {
+            server = link.echo();
+            client = link.stack.open(server);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            Stack.close(client, server);
+        }
+    }
+
+    /** A new client, connected by the invocation and closed after it. */
+    @State(Scope.Thread)
+    public static class Unconnected {
+
+        Server server;
+        Connection client;
+
+        @Setup(Level.Invocation)
+        public void setUp(Link link) {
+            server = link.echo();
+            client = link.stack.client();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException {
+            Stack.close(client, server);
+        }
+    }
+
+    /** A client connected before the invocation, which closes it. */
+    @State(Scope.Thread)
+    public static class Connected {
+
+        Server server;
+        Connection client;
+
+        @Setup(Level.Invocation)
+        public void setUp(Link link) throws IOException {
+            server = link.echo();
+            client = link.stack.open(server);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(ConnectionBenchmark.BATCH)
+    public void throughput(Payload payload, ToSink session) throws IOException {
+        for (int n = 0; n < ConnectionBenchmark.BATCH; n++) {
+            session.client.send(payload.message, 0, payload.message.length);
+        }
+        session.server.await();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int latency(Payload payload, ToEcho session) throws IOException {
+        session.client.send(payload.message, 0, payload.message.length);
+        payload.reply.clear();
+        return session.client.receive(payload.reply);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void handshake(Link link, Unconnected session) throws IOException {
+        link.stack.connect(session.client, session.server.port);
+        session.server.await();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void close(Connected session) throws IOException {
+        Stack.close(session.client, session.server);
+    }
+}
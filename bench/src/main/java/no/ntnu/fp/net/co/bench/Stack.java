@@ -0,0 +1,145 @@
+package no.ntnu.fp.net.co.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.admin.Settings;
+import no.ntnu.fp.net.co.Connection;
+import no.ntnu.fp.net.co.ConnectionImpl;
+import no.ntnu.fp.net.co.SimpleConnection;
+import no.ntnu.fp.net.co.Transport;
+
+/**
+ * Makes the two ends of the connections benchmarked, and opens and closes
+ * them. Every server has a port of its own, and every client too, as their
+ * ports are not used again.
+ */
+abstract class Stack {
+
+    private static final int FIRST_SERVER_PORT = 7300;
+
+    /** Client ports are taken in turn from here, above those of accepted connections. */
+    private static final int FIRST_CLIENT_PORT = 41000;
+    private static final int CLIENT_PORTS = 20000;
+
+    private static int nextServerPort = FIRST_SERVER_PORT;
+    private static int nextClientPort = 0;
+
+    abstract Connection server(int port);
+
+    abstract Connection client();
+
+    /** Connect, and return when connected. */
+    void connect(Connection client, int port) throws IOException {
+        client.connect(InetAddress.getLocalHost(), port);
+    }
+
+    /**
+     * Start a server on a new port.
+     *
+     * @param echo
+     *            - true to send every message back, false to count them.
+     * @param batch
+     *            - messages counted before the server tells so.
+     */
+    Server serve(boolean echo, int batch) {
+        int port = nextServerPort++;
+        Server server = new Server(server(port), port, echo, batch);
+        server.start();
+        return server;
+    }
+
+    /** Connect a new client, and return when the server has accepted it. */
+    Connection open(Server server) throws IOException {
+        Connection client = client();
+        connect(client, server.port);
+        server.await();
+        return client;
+    }
+
+    /** Close a client, and return when the server has closed its end. */
+    static void close(Connection client, Server server) throws IOException {
+        client.close();
+        server.await();
+    }
+
+    static int clientPort() {
+        return FIRST_CLIENT_PORT + nextClientPort++ % CLIENT_PORTS;
+    }
+
+    /**
+     * Write the A2 log to a file of its own, and drop whatever the
+     * connections print, which would drown the output of JMH.
+     */
+    static void quiet(String logName) {
+        Log.setLogName(logName);
+        new Settings();
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+
+    /** {@link ConnectionImpl} over a transport, with a TIME_WAIT of 0. */
+    static class Impl extends Stack {
+
+        private final Transport transport;
+
+        Impl(Transport transport) {
+            this.transport = transport;
+        }
+
+        Connection server(int port) {
+            return connection(port);
+        }
+
+        Connection client() {
+            return connection(clientPort());
+        }
+
+        private Connection connection(int port) {
+            ConnectionImpl connection = new ConnectionImpl(port);
+            connection.setTransport(transport);
+            connection.setTimeWait(0);
+            return connection;
+        }
+    }
+
+    /** {@link SimpleConnection}, over TCP. */
+    static class Simple extends Stack {
+
+        /** How long to try to connect before giving up. */
+        private static final long TIMEOUT_SECONDS = 60;
+
+        Connection server(int port) {
+            return new SimpleConnection(port);
+        }
+
+        Connection client() {
+            return new SimpleConnection(clientPort());
+        }
+
+        /** The server listens anew for each connection, so try until it does. */
+        void connect(Connection client, int port) throws IOException {
+            long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            while (true) {
+                try {
+                    client.connect(InetAddress.getLocalHost(), port);
+                    return;
+                }
+                catch (ConnectException e) {
+                    if (System.nanoTime() - giveUp > 0) throw e;
+                    Thread.yield();
+                }
+            }
+        }
+    }
+}
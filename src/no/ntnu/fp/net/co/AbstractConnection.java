@@ -4,19 +4,23 @@
 package no.ntnu.fp.net.co;
 
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.net.ConnectException;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Timer;
+import java.net.SocketException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import no.ntnu.fp.net.admin.Log;
 import no.ntnu.fp.net.cl.ClException;
 import no.ntnu.fp.net.cl.ClSocket;
 import no.ntnu.fp.net.cl.KtnDatagram;
 import no.ntnu.fp.net.cl.KtnDatagram.Flag;
-import no.ntnu.fp.net.co.ClSocketReceiver;
 import no.ntnu.fp.net.co.Connection;
 
 /**
@@ -52,25 +56,135 @@ public abstract class AbstractConnection implements Connection {
     protected static int TIMEOUT = 3 * RETRANSMIT + (RETRANSMIT / 2);
 
     /**
-     * To prevent more than one thread to concurrently execute certain parts of
-     * doReceive(). DO NOT alter the value of this variable unless you KNOW what
-     * you are doing, as this may hang the implementation or cause
-     * BindExceptions in A2 - you are warned!
+     * Default number of data packets that may be in flight, i.e. sent but not
+     * yet acknowledged, see {@link #sendDataPacketPipelined(KtnDatagram)}. A
+     * window of 1 gives the old stop-and-wait behaviour.
      */
-    private boolean isReceiving;
+    public final static int DEFAULT_SEND_WINDOW = 8;
 
     /**
-     * Unhandled internal packets. Packets are put in this queue when waiting
-     * for a data packet and receiving an internal packet (e.g. ACK).
+     * Default number of duplicate ACKs after which the first outstanding data
+     * packet is resent without waiting for its timer.
      */
-    private List<KtnDatagram> internalQueue;
+    public final static int DEFAULT_DUPLICATE_ACK_THRESHOLD = 3;
 
     /**
-     * Unhandled external (application-destined) packets. Packets are put in
-     * this queue when waiting for internal packets (e.g. ACK) and receiving a
-     * data packet.
+     * Default number of data packets received in order that one ACK may
+     * cover. The ACK is sent when this many packets are waiting for it, or
+     * when {@link #DEFAULT_DELAYED_ACK_TIMEOUT} has passed, unless it can be
+     * piggybacked on outgoing data first. A packet the sender waits for the
+     * ACK of, with {@link DataFrame#PUSH} set, is acked at once.
      */
-    private List<KtnDatagram> externalQueue;
+    public final static int DEFAULT_DELAYED_ACK_PACKETS = 2;
+
+    /**
+     * Default number of milliseconds an ACK may be delayed. Must stay well
+     * below the retransmission timeout of the peer.
+     */
+    public final static int DEFAULT_DELAYED_ACK_TIMEOUT = 40;
+
+    /**
+     * Default maximum segment size: the most message bytes carried by one data
+     * packet. Longer messages are split into fragments that are sent, and
+     * resent, as separate packets.
+     */
+    public final static int DEFAULT_MAX_SEGMENT_SIZE = 1024;
+
+    /**
+     * Default number of milliseconds a short message may wait to be coalesced
+     * with the following ones, when coalescing is enabled.
+     */
+    public final static int DEFAULT_COALESCE_TIMEOUT = 20;
+
+    /**
+     * Most packets each receive queue holds. Packets arriving while the queue
+     * is full are dropped, and left for the peer to retransmit.
+     */
+    public final static int RECEIVE_QUEUE_CAPACITY = 1024;
+
+    /**
+     * Default number of incoming connections a listening connection takes on
+     * at a time, counting handshakes in progress and connections not yet
+     * returned by accept().
+     */
+    public final static int DEFAULT_BACKLOG = 50;
+
+    /** The transport new connections start with, see {@link #getDefaultTransport()}. */
+    private static Transport defaultTransport;
+
+    /**
+     * Default number of received data packets a connection buffers for the
+     * application, see {@link #setReceiveWindow(int)}.
+     */
+    public final static int DEFAULT_RECEIVE_WINDOW = 64;
+
+    /**
+     * Default number of bytes from which the data of a frame is compressed,
+     * when compression is enabled. Shorter frames rarely shrink.
+     */
+    public final static int DEFAULT_COMPRESSION_THRESHOLD = 128;
+
+    /**
+     * Default number of milliseconds a closed connection lingers in
+     * TIME_WAIT, so packets of it still in the network die out before the
+     * port is used again.
+     */
+    public final static int DEFAULT_TIME_WAIT = 1000;
+
+    private final static long NANOS_PER_MILLI = 1000000L;
+
+    /**
+     * The one thread listening on myPort, null when not listening. DO NOT
+     * start another receive on the port, as this may hang the implementation
+     * or cause BindExceptions in A2 - you are warned!
+     */
+    private volatile PacketReceiver receiver;
+
+    /** Why the receiver ended, thrown to the next thread waiting for a packet. */
+    private IOException receiveFailure;
+
+    /**
+     * Unhandled internal packets (e.g. ACK), in the order they were received.
+     */
+    private BlockingQueue<KtnDatagram> internalQueue;
+
+    /**
+     * Unhandled external (application-destined) packets, in the order they
+     * were received.
+     */
+    private BlockingQueue<KtnDatagram> externalQueue;
+
+    /**
+     * Guards waiting for the queues, as well as {@link #receiver},
+     * {@link #receiveFailure} and {@link #appliedAck}.
+     */
+    private final ReentrantLock queueLock;
+
+    /** Signalled when an internal packet is queued or an ack is applied. */
+    private final Condition internalArrived;
+
+    /** Signalled when a data packet or a FIN is queued. */
+    private final Condition externalArrived;
+
+    /**
+     * The latest ACK, or data packet whose piggybacked ack slid the send
+     * window, applied on the receiving thread, until returned by
+     * {@link #receiveAck()}.
+     */
+    private KtnDatagram appliedAck;
+
+    /**
+     * Connections accepted on the port of this listening connection, keyed by
+     * {@link #demuxKey(String, int)} of their remote end, see
+     * {@link #setSharedPort(boolean)}.
+     */
+    private Map<String, AbstractConnection> demuxTable;
+
+    /** The listening connection whose receiver feeds this one, if any. */
+    private AbstractConnection demuxParent;
+
+    /** Set when the receiver is kept running only for accepted connections. */
+    private boolean lingering;
 
     /**
      * Identifies the state of the connection.
@@ -93,18 +207,462 @@ public abstract class AbstractConnection implements Connection {
      /** If a FIN has been received, it is stored in disconnectRequest. */
      protected KtnDatagram disconnectRequest;
 
+    /** Data packets sent but not yet acknowledged. */
+    protected SendWindow sendWindow;
+
+    /** Round trip time measurements, giving the retransmission timeout. */
+    protected RttEstimator rttEstimator;
+
+    /** Traffic counters of this connection. */
+    protected ConnectionStatistics statistics;
+
+    /** Most data packets one delayed ACK may cover, 1 to ack every packet. */
+    protected int delayedAckPackets;
+
+    /** Most milliseconds an ACK may be delayed. */
+    protected long delayedAckTimeout;
+
+    /** Most message bytes in one data packet. */
+    protected int maxSegmentSize;
+
+    /** True if short messages are held back to be sent together. */
+    protected boolean coalescing;
+
+    /** Most milliseconds a message may be held back for coalescing. */
+    protected long coalesceTimeout;
+
+    /** Held back messages are sent as soon as they add up to this many bytes. */
+    protected int coalesceThreshold;
+
+    /** True if accepted connections use the port of the listening connection. */
+    protected boolean sharedPort;
+
+    /** Most incoming connections taken on at a time when listening. */
+    protected int backlog;
+
+    /** Most received data packets buffered for the application. */
+    protected int receiveWindow;
+
+    /** Sends and receives every packet of this connection. */
+    protected Transport transport;
+
+    /** True if payloads are checksummed with CRC32C instead of CRC32. */
+    protected boolean crc32c;
+
+    /** True if compression is offered when connecting and accepted when listening. */
+    protected boolean compression;
+
+    /** Frames with at least this many bytes of data are compressed. */
+    protected int compressionThreshold;
+
+    /** Milliseconds spent in TIME_WAIT when closing. */
+    protected long timeWait;
+
     /** Initialize variables to default values. */
     public AbstractConnection() {
-        internalQueue = Collections.synchronizedList(new LinkedList<KtnDatagram>());
-        externalQueue = Collections.synchronizedList(new LinkedList<KtnDatagram>());
-        isReceiving = false;
+        internalQueue = new LinkedBlockingQueue<KtnDatagram>(RECEIVE_QUEUE_CAPACITY);
+        externalQueue = new LinkedBlockingQueue<KtnDatagram>(RECEIVE_QUEUE_CAPACITY);
+        queueLock = new ReentrantLock();
+        internalArrived = queueLock.newCondition();
+        externalArrived = queueLock.newCondition();
+        receiver = null;
+        appliedAck = null;
+        demuxTable = new ConcurrentHashMap<String, AbstractConnection>();
+        demuxParent = null;
+        lingering = false;
+        sharedPort = false;
+        backlog = DEFAULT_BACKLOG;
+        receiveWindow = DEFAULT_RECEIVE_WINDOW;
+        transport = getDefaultTransport();
+        crc32c = false;
+        compression = false;
+        compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+        timeWait = DEFAULT_TIME_WAIT;
         nextSequenceNo = (int)(Math.random() * 10000 + 1);
         disconnectRequest = null;
         lastDataPacketSent = null;
         lastValidPacketReceived = null;
+        rttEstimator = new RttEstimator();
+        statistics = new ConnectionStatistics();
+        delayedAckPackets = DEFAULT_DELAYED_ACK_PACKETS;
+        delayedAckTimeout = DEFAULT_DELAYED_ACK_TIMEOUT;
+        maxSegmentSize = DEFAULT_MAX_SEGMENT_SIZE;
+        coalescing = false;
+        coalesceTimeout = DEFAULT_COALESCE_TIMEOUT;
+        coalesceThreshold = DEFAULT_MAX_SEGMENT_SIZE;
+        sendWindow = new SendWindow(DEFAULT_SEND_WINDOW, rttEstimator, new RenoCongestionControl(),
+                statistics);
+        sendWindow.setSender(transport);
         state = State.CLOSED;
     }
 
+    /**
+     * Set the maximum number of unacknowledged data packets this connection
+     * may have in flight.
+     * 
+     * @param size
+     *            Window size, at least 1.
+     */
+    public void setSendWindowSize(int size) {
+        sendWindow.setCapacity(size);
+    }
+
+    /** @return The maximum number of unacknowledged data packets in flight. */
+    public int getSendWindowSize() {
+        return sendWindow.getCapacity();
+    }
+
+    /**
+     * @return The smoothed round trip time in milliseconds, or -1 if no data
+     *         packet has been acknowledged yet.
+     */
+    public long getSmoothedRtt() {
+        return rttEstimator.getSmoothedRtt();
+    }
+
+    /** @return The current retransmission timeout in milliseconds. */
+    public long getRetransmitTimeout() {
+        return rttEstimator.getRetransmitTimeout();
+    }
+
+    /**
+     * Replace the congestion control of this connection. The default is
+     * {@link RenoCongestionControl}. Should be set before connecting, as the
+     * new strategy starts from scratch.
+     * 
+     * @param congestionControl
+     *            A fresh strategy instance, not shared with other connections.
+     */
+    public void setCongestionControl(CongestionControl congestionControl) {
+        sendWindow.setCongestionControl(congestionControl);
+    }
+
+    public CongestionControl getCongestionControl() {
+        return sendWindow.getCongestionControl();
+    }
+
+    /**
+     * Set the number of duplicate ACKs that triggers a fast retransmit.
+     * 
+     * @param threshold
+     *            At least 1, {@link Integer#MAX_VALUE} to disable fast
+     *            retransmit.
+     */
+    public void setDuplicateAckThreshold(int threshold) {
+        sendWindow.setDuplicateAckThreshold(threshold);
+    }
+
+    public int getDuplicateAckThreshold() {
+        return sendWindow.getDuplicateAckThreshold();
+    }
+
+    /**
+     * Configure delayed ACKs: one ACK is sent for every <code>packets</code>
+     * data packets received in order, or after <code>timeout</code>
+     * milliseconds, whichever comes first.
+     * 
+     * @param packets
+     *            At least 1, 1 to send an ACK for every packet.
+     * @param timeout
+     *            Most milliseconds an ACK may wait.
+     */
+    public void setDelayedAck(int packets, long timeout) {
+        if (packets < 1) throw new IllegalArgumentException("Packets must be at least 1.");
+        if (timeout < 0) throw new IllegalArgumentException("Timeout can not be negative.");
+        delayedAckPackets = packets;
+        delayedAckTimeout = timeout;
+    }
+
+    public int getDelayedAckPackets() {
+        return delayedAckPackets;
+    }
+
+    public long getDelayedAckTimeout() {
+        return delayedAckTimeout;
+    }
+
+    /**
+     * Set the maximum segment size, the most message bytes sent in one data
+     * packet. Only the sender needs this, the receiver reassembles fragments
+     * of any size.
+     * 
+     * @param size
+     *            Bytes, at least 1.
+     */
+    public void setMaxSegmentSize(int size) {
+        if (size < 1) throw new IllegalArgumentException("Segment size must be at least 1.");
+        maxSegmentSize = size;
+    }
+
+    public int getMaxSegmentSize() {
+        return maxSegmentSize;
+    }
+
+    /**
+     * Enable or disable coalescing of short messages (Nagle-style). When
+     * enabled, a message sent while earlier data is still unacknowledged is
+     * held back, and held back messages are sent together in one data packet
+     * once they add up to <code>threshold</code> bytes, when an ACK arrives,
+     * or after <code>timeout</code> milliseconds if the send window has room
+     * then. The receiver still gets every message on its own.
+     * 
+     * @param enabled
+     *            true to coalesce.
+     * @param timeout
+     *            Most milliseconds a message may be held back.
+     * @param threshold
+     *            Bytes that trigger sending at once, at most the maximum
+     *            segment size.
+     */
+    public void setCoalescing(boolean enabled, long timeout, int threshold) {
+        if (timeout < 0) throw new IllegalArgumentException("Timeout can not be negative.");
+        if (threshold < 1) throw new IllegalArgumentException("Threshold must be at least 1.");
+        coalescing = enabled;
+        coalesceTimeout = timeout;
+        coalesceThreshold = threshold;
+    }
+
+    /**
+     * Enable or disable coalescing with the default timeout, and the maximum
+     * segment size as threshold. See {@link #setCoalescing(boolean, long, int)}.
+     */
+    public void setCoalescing(boolean enabled) {
+        setCoalescing(enabled, DEFAULT_COALESCE_TIMEOUT, maxSegmentSize);
+    }
+
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    public long getCoalesceTimeout() {
+        return coalesceTimeout;
+    }
+
+    public int getCoalesceThreshold() {
+        return coalesceThreshold;
+    }
+
+    /** @return The traffic counters of this connection. */
+    public ConnectionStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Let the connections accepted by this listening connection share its
+     * port, instead of each getting a port of its own. The receiver of the
+     * listening connection then hands every packet to the connection of its
+     * source address and port, looked up in a table, and drops packets from
+     * anyone else but SYNs. The listening connection keeps receiving for the
+     * accepted connections after it is closed, until they are closed too.
+     * 
+     * @param shared
+     *            true to share the port.
+     */
+    public void setSharedPort(boolean shared) {
+        sharedPort = shared;
+    }
+
+    public boolean isSharedPort() {
+        return sharedPort;
+    }
+
+    /**
+     * Choose how the packets of this connection are carried. The default,
+     * see {@link #getDefaultTransport()}, is {@link UdpTransport}, which
+     * sends each packet as one UDP datagram from a channel kept open per
+     * port. {@link ClSocketTransport} opens a TCP connection per packet, as
+     * A2 does, with the errors of the A2 FailureController injected. Both
+     * ends of a connection must use the same kind of transport. Should be
+     * set before connecting or accepting, and is passed on to accepted
+     * connections.
+     * 
+     * @param transport
+     *            The transport.
+     */
+    public void setTransport(Transport transport) {
+        if (transport == null) throw new IllegalArgumentException("Transport can not be null.");
+        this.transport = transport;
+        sendWindow.setSender(transport);
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * The transport of new connections: {@link UdpTransport}, wrapped in an
+     * {@link ImpairedTransport} when the settings.xml in the working
+     * directory asks for errors, so they are injected as A2 injects them on
+     * ClSocket, but repeatably. Made once and shared, so the links of the
+     * ImpairedTransport see all datagrams of this JVM.
+     * 
+     * @see Impairment#fromSettings(File)
+     */
+    public static synchronized Transport getDefaultTransport() {
+        if (defaultTransport == null) {
+            defaultTransport = UdpTransport.INSTANCE;
+            File settings = new File("settings.xml");
+            if (settings.isFile()) {
+                try {
+                    Impairment impairment = Impairment.fromSettings(settings);
+                    if (!impairment.isNone()) {
+                        defaultTransport = new ImpairedTransport(UdpTransport.INSTANCE, impairment,
+                                Impairment.seedFromSettings(settings));
+                    }
+                }
+                catch (IOException e) {
+                    Log.writeToLog("No errors injected, could not read " + settings + ": " + e.getMessage(),
+                            "AbstractConnection");
+                }
+            }
+        }
+        return defaultTransport;
+    }
+
+    /**
+     * Send the packets of this connection as A2 does, one TCP connection per
+     * packet, but encoded by {@link DatagramCodec}, see {@link BinarySocket},
+     * instead of serialized by {@link ClSocket}. The headers shrink from
+     * hundreds of bytes to a few dozen, and encoding and decoding allocate
+     * little. The receiving end reads both encodings, so only the sending
+     * end needs to choose among the two. No errors are injected on the
+     * binary path. Short for {@link #setTransport(Transport)} with
+     * {@link BinarySocket} or, if false, {@link ClSocketTransport}.
+     * 
+     * @param binary
+     *            true to use the binary encoding.
+     */
+    public void setBinaryCodec(boolean binary) {
+        setTransport(binary ? BinarySocket.INSTANCE : ClSocketTransport.INSTANCE);
+    }
+
+    public boolean isBinaryCodec() {
+        return transport == BinarySocket.INSTANCE;
+    }
+
+    /**
+     * Checksum the payloads this connection sends with CRC32C, which most
+     * processors compute in hardware, instead of the CRC32 of A2. The
+     * receiving end tells the two apart by the checksum itself, see
+     * {@link Checksums}, so only the sending end needs to choose. Either way
+     * no checksum object is shared with other threads. Passed on to accepted
+     * connections.
+     * 
+     * @param crc32c
+     *            true to use CRC32C.
+     */
+    public void setCrc32c(boolean crc32c) {
+        this.crc32c = crc32c;
+    }
+
+    public boolean isCrc32c() {
+        return crc32c;
+    }
+
+    /**
+     * Enable or disable compression of the data this connection sends. A
+     * connecting end offers it in its SYN, and a listening end with
+     * compression enabled accepts the offer, which the connecting end
+     * learns from the first ACK or data packet of the listener, see
+     * {@link DataFrame#COMPRESSING}. Only if both agree are frames of at
+     * least <code>threshold</code> bytes deflated, see
+     * {@link FrameCompressor}, and only if that makes them shorter.
+     * Should be set before connecting or accepting, and is passed on to
+     * accepted connections.
+     * 
+     * @param enabled
+     *            true to offer or accept compression.
+     * @param threshold
+     *            Bytes of data from which a frame is compressed.
+     */
+    public void setCompression(boolean enabled, int threshold) {
+        if (threshold < 1) throw new IllegalArgumentException("Threshold must be at least 1.");
+        compression = enabled;
+        compressionThreshold = threshold;
+    }
+
+    /**
+     * Enable or disable compression with the default threshold. See
+     * {@link #setCompression(boolean, int)}.
+     */
+    public void setCompression(boolean enabled) {
+        setCompression(enabled, DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Set how many incoming connections a listening connection takes on at a
+     * time. Handshakes run as SYNs arrive, also while no thread is in
+     * accept(), and established connections wait for accept() in order. SYNs
+     * arriving while handshakes and waiting connections add up to the backlog
+     * are dropped, and left for the clients to resend.
+     * 
+     * @param backlog
+     *            Number of connections, at least 1.
+     */
+    public void setBacklog(int backlog) {
+        if (backlog < 1) throw new IllegalArgumentException("Backlog must be at least 1.");
+        this.backlog = backlog;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Set how many received data packets are buffered until the application
+     * takes them, bounding the memory of a slow reader to about this many
+     * times the maximum segment size. The room left is advertised with every
+     * ack, and the remote end stops sending while there is none. Packets
+     * arriving beyond the window are dropped.
+     * 
+     * @param packets
+     *            Number of packets, from 1 to {@link #RECEIVE_QUEUE_CAPACITY}.
+     */
+    public void setReceiveWindow(int packets) {
+        if (packets < 1 || packets > RECEIVE_QUEUE_CAPACITY)
+            throw new IllegalArgumentException("Receive window must be between 1 and "
+                    + RECEIVE_QUEUE_CAPACITY + ".");
+        this.receiveWindow = packets;
+    }
+
+    public int getReceiveWindow() {
+        return receiveWindow;
+    }
+
+    /**
+     * Set how long the end closing first waits in TIME_WAIT, after
+     * acknowledging the FIN of the remote end. It can be 0 on a transport
+     * that neither loses nor delays datagrams, such as
+     * {@link InProcessTransport}.
+     * 
+     * @param millis
+     *            Milliseconds, at least 0.
+     */
+    public void setTimeWait(long millis) {
+        if (millis < 0) throw new IllegalArgumentException("Time wait can not be negative.");
+        timeWait = millis;
+    }
+
+    public long getTimeWait() {
+        return timeWait;
+    }
+
+    /**
+     * @return The number of further data packets there is room for, as
+     *         advertised in acks.
+     */
+    protected int getReceiveWindowSpace() {
+        return Math.max(receiveWindow - externalQueue.size(), 0);
+    }
+
     /**
      * Construct a datagram with the given payload. <br>
      * <br>
@@ -124,7 +682,7 @@ public abstract class AbstractConnection implements Connection {
      * <li>Local port
      * <li>Flag to NONE.
      * <li>Sequence no.
-     * <li>Payload.
+     * <li>Payload, as a {@link DataFrame} without a piggybacked ack.
      * </ol>
      * 
      * @param payload
@@ -133,6 +691,20 @@ public abstract class AbstractConnection implements Connection {
      */
     protected KtnDatagram constructDataPacket(String payload) {
         if (payload == null) throw new IllegalArgumentException("Payload can not be null.");
+        return constructDataPacket(new DataFrame(DataFrame.NO_ACK, payload));
+    }
+
+    /**
+     * Construct a datagram carrying the given frame, which may hold a
+     * fragment of a message and a piggybacked ack. See
+     * {@link #constructDataPacket(String)}.
+     * 
+     * @param frame
+     *            Payload for packet, can not be null.
+     * @return Initialised datagram.
+     */
+    protected KtnDatagram constructDataPacket(DataFrame frame) {
+        if (frame == null) throw new IllegalArgumentException("Payload can not be null.");
 
         KtnDatagram packet = new KtnDatagram();
         packet.setDest_port(remotePort);
@@ -141,11 +713,25 @@ public abstract class AbstractConnection implements Connection {
         packet.setSrc_port(myPort);
         packet.setFlag(Flag.NONE);
         packet.setSeq_nr(nextSequenceNo++);
-        packet.setPayload(payload);
+        setPayload(packet, frame.encode());
 
         return packet;
     }
 
+    /**
+     * Set the payload of a datagram, as is, and its checksum as chosen by
+     * {@link #setCrc32c(boolean)}.
+     * 
+     * @param packet
+     *            The datagram.
+     * @param payload
+     *            The payload, an encoded {@link DataFrame}, not null.
+     */
+    protected void setPayload(KtnDatagram packet, byte[] payload) {
+        packet.setPayloadAsBytes(payload);
+        Checksums.sign(packet, crc32c);
+    }
+
     /**
      * Construct a datagram with the given flag. <br>
      * <br>
@@ -206,7 +792,24 @@ public abstract class AbstractConnection implements Connection {
      * @see ClSocket#send(KtnDatagram)
      */
     protected synchronized void simplySendPacket(KtnDatagram packet) throws ClException, IOException {
-        new ClSocket().send(packet);
+        transport.send(packet);
+    }
+
+    /**
+     * Send a packet at once, and have the shared scheduler retransmit it
+     * every {@link #RETRANSMIT} milliseconds until cancelled. The first send
+     * is not left to the scheduler, which would hold it until its next tick.
+     * 
+     * @param packet
+     *            the packet to send.
+     * @return The timeout of the retransmissions, for cancelling.
+     */
+    protected RetransmitScheduler.Timeout sendRepeatedly(KtnDatagram packet) {
+        SendTimer sender = new SendTimer(transport, packet);
+        RetransmitScheduler.Timeout timer = RetransmitScheduler.getShared().scheduleAtFixedRate(sender,
+                RETRANSMIT, RETRANSMIT);
+        sender.run();
+        return timer;
     }
 
     /**
@@ -240,10 +843,7 @@ public abstract class AbstractConnection implements Connection {
 
         lastDataPacketSent = packet;
 
-        // Create a timer that sends the packet and retransmits every
-        // RETRANSMIT milliseconds until cancelled.
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new SendTimer(new ClSocket(), packet), 0, RETRANSMIT);
+        RetransmitScheduler.Timeout timer = sendRepeatedly(packet);
 
         KtnDatagram ack = receiveAck();
         timer.cancel();
@@ -251,11 +851,99 @@ public abstract class AbstractConnection implements Connection {
         return ack;
     }
 
+    /**
+     * Send a data packet without waiting for its ack. The packet is handed to
+     * a timer that resends it every retransmission timeout until it is covered
+     * by a cumulative ACK passed to {@link #acknowledge(KtnDatagram)}. The
+     * timeout is adapted to the measured round trip time, starting out at
+     * {@link #RETRANSMIT}, see {@link RttEstimator}.
+     * <br>
+     * <br>
+     * The caller must make sure there is room in the window first, i.e. keep
+     * receiving ACKs while {@link SendWindow#isFull()}. This method sets the
+     * {@link #lastDataPacketSent} variable, and can only be used in the
+     * Established state, see {@link State}.
+     * 
+     * @param packet
+     *            the packet to be sent.
+     * @see #sendDataPacketWithRetransmit(KtnDatagram)
+     */
+    protected synchronized void sendDataPacketPipelined(KtnDatagram packet) {
+        if (state != State.ESTABLISHED)
+            throw new IllegalStateException("Should only be used in ESTABLISHED state.");
+        if (packet.getFlag() != Flag.NONE)
+            throw new IllegalArgumentException("Packet must be a data packet.");
+        if (sendWindow.isFull())
+            throw new IllegalStateException("Send window is full.");
+
+        lastDataPacketSent = packet;
+        sendWindow.send(packet);
+    }
+
+    /**
+     * Slide the send window according to a received ACK. The ack number is
+     * cumulative, so every outstanding packet up to and including it is
+     * considered delivered and its retransmission timer is cancelled. Packets
+     * in the selective-ack bitmap of the ACK, see {@link AckOptions}, have
+     * their retransmissions paused.
+     * 
+     * @param ack
+     *            A valid ACK packet.
+     * @return The number of packets acknowledged by this ACK, 0 if it was a
+     *         duplicate.
+     */
+    protected int acknowledge(KtnDatagram ack) {
+        AckOptions options = AckOptions.decode(ack);
+        int acked = sendWindow.acknowledge(ack.getAck(), options.getWindow(), true);
+        return acked + sendWindow.selectiveAcknowledge(ack.getAck(), options);
+    }
+
+    /**
+     * Slide the send window according to the ack piggybacked on a received
+     * data packet, if any. Such acks never count as duplicates, as the packet
+     * was sent for its data. Acks beyond the last packet sent can only come
+     * from a corrupted header, and are ignored.
+     * 
+     * @param packet
+     *            A data packet.
+     * @return The number of packets acknowledged.
+     */
+    protected int acknowledgePiggybacked(KtnDatagram packet) {
+        if (packet.getFlag() != Flag.NONE || lastDataPacketSent == null || !isValid(packet)) {
+            return 0;
+        }
+        DataFrame frame;
+        try {
+            frame = DataFrame.decode(packet);
+        }
+        catch (IllegalArgumentException e) {
+            return 0;
+        }
+        if (!frame.hasAck() || frame.getAck() > lastDataPacketSent.getSeq_nr()) {
+            return 0;
+        }
+        return sendWindow.acknowledge(frame.getAck(), frame.getWindow(), false);
+    }
+
+    /**
+     * @return true if the ACK is for a data packet sent, and not for a FIN or
+     *         SYN, or a corrupted ack number.
+     */
+    private boolean isDataAck(KtnDatagram ack) {
+        return lastDataPacketSent != null && ack.getAck() <= lastDataPacketSent.getSeq_nr();
+    }
+
     /**
      * Send an ack or synack for the given packet. <br>
      * If the send fails, there is no retransmission of the ack-packet: Just
      * wait for the other side to retransmit the original packet.<br>
      * <br>
+     * A plain ack consumes no sequence number, so that the data packets of a
+     * connection stay consecutive even when acks are sent in between. Its
+     * sequence field carries {@link AckOptions} instead, as {@link KtnDatagram}
+     * drops the payload of any packet with an ack number. A synack consumes a
+     * sequence number.<br>
+     * <br>
      * This method relies on
      * {@link #constructInternalPacket(Flag)}, i.e. myAddress,
      * myPort, remoteAddress, remotePort and sequenceNo must be initialized
@@ -272,6 +960,27 @@ public abstract class AbstractConnection implements Connection {
      */
     protected synchronized void sendAck(KtnDatagram packetToAck, boolean synAck)
             throws IOException, ConnectException {
+        sendAck(packetToAck, synAck, null);
+    }
+
+    /**
+     * Send an ack or synack for the given packet, with options for the
+     * receiver of the ack. The options are ignored for a synack.
+     * A failed send is retried after a pause, so this must not be called
+     * on the timer thread, see {@link RetransmitScheduler#offload(Runnable)}.
+     * 
+     * @param packetToAck
+     *            The packet that should be acked
+     * @param synAck
+     *            true if a synack should be sent, false if a regular ack.
+     * @param options
+     *            Options for the receiver of the ack, or null for none.
+     * @throws ConnectException
+     *             Thrown if unable to send packet.
+     * @see #sendAck(KtnDatagram, boolean)
+     */
+    protected synchronized void sendAck(KtnDatagram packetToAck, boolean synAck,
+            AckOptions options) throws IOException, ConnectException {
     
         /*
          * Algorithm: Generate a new ack packet based on the packet given as
@@ -284,22 +993,29 @@ public abstract class AbstractConnection implements Connection {
     
         KtnDatagram ackToSend = constructInternalPacket(synAck ? Flag.SYN_ACK : Flag.ACK);
         ackToSend.setAck(packetToAck.getSeq_nr());
+        if (!synAck) {
+            nextSequenceNo--;
+            if (options == null) options = new AckOptions();
+            options.setWindow(getReceiveWindowSpace());
+            ackToSend.setSeq_nr(options.encode());
+        }
     
         // Send the ack, trying at most `tries' times.
-        Log.writeToLog(ackToSend, "Sending Ack: " + ackToSend.getAck(), "AbstractConnection");
+        DatagramLog.write(ackToSend, "Sending Ack: " + ackToSend.getAck(), "AbstractConnection");
     
         do {
             try {
-                new ClSocket().send(ackToSend);
+                transport.send(ackToSend);
                 sent = true;
             }
             catch (ClException e) {
-                Log.writeToLog(ackToSend, "CLException: Could not establish a "
+                DatagramLog.write(ackToSend, "CLException: Could not establish a "
                         + "connection to the specified address/port!", "AbstractConnection");
             }
-            catch (ConnectException e) {
+            catch (SocketException e) {
                 // Silently ignore: Maybe recipient was processing and didn't
                 // manage to call receiveAck() before we were ready to send.
+                // With pipelined sends this also shows up as a broken pipe.
                 try {
                     Thread.sleep(100);
                 }
@@ -310,208 +1026,344 @@ public abstract class AbstractConnection implements Connection {
         while (!sent && (tries-- > 0));
     
         if (!sent) {
-            nextSequenceNo--;
+            if (synAck) nextSequenceNo--;
             throw new ConnectException("Unable to send ACK.");
         }
     }
 
     /**
-     * Receives a packet from the connectionless layer. This function handles
-     * concurrency issues related to that only one thread may listen to a port
-     * at the same time.<br>
-     * <br>
-     * It calls {@link #isValid(KtnDatagram)} on FIN-packets in ESTABLISHED
-     * state, before an EOFException is thrown.
+     * Start listening on myPort, unless already listening. One
+     * {@link PacketReceiver} receives every packet for the connection and
+     * queues it, until a thread takes it with {@link #receivePacket(boolean)}
+     * or {@link #receiveAck()}. A connection should start receiving before it
+     * sends a packet that will be answered, so the answer is not refused. A
+     * connection sharing the port of a listening connection is fed by the
+     * receiver of that one instead.
      * 
-     * @param internal
-     *            true if you want to receive non-external packet, i.e. not a
-     *            packet with data intended for the application. False
-     *            otherwise.
-     * @return A received datagram
      * @throws IOException
-     *             If the underlying connectionless layer throws an IOException.
-     * @throws EOFException
-     *             If a packet with a FIN-flag was received in ESTABLISHED
-     *             state.
+     *             If the port can not be opened.
      */
-    protected KtnDatagram receivePacket(boolean internal) throws IOException, EOFException {
-        /*
-         * Acquire monitor for this instance, and see if another thread runs
-         * receive on our port. If so, see if that thread gets the packet that
-         * was meant for us.
-         */
-        synchronized (this) {
-            long before, after;
-    
-            before = System.currentTimeMillis();
-            while (isReceiving) {
-                try {
-                    if (internal)
-                        wait(TIMEOUT); // wait with timeout
-                    else wait(); // wait (potentially) forever
-                }
-                catch (InterruptedException e) { /* do nothing */
-                }
-                after = System.currentTimeMillis();
-    
-                // If a packet for us has arrived, return it.
-                if (internal) {
-                    // Case 1: Internal (protocol) caller, check internalQueue
-                    if (!internalQueue.isEmpty()) {
-                        return internalQueue.remove(0);
-                    }
-                    // If no packet arrived, see if timeout has expired.
-                    else if ((after - before) > TIMEOUT) {
-                        return null;
-                    }
+    protected void startReceiving() throws IOException {
+        if (demuxParent != null) {
+            demuxParent.startReceiving();
+            return;
+        }
+        if (receiver != null) return;
+        queueLock.lock();
+        try {
+            if (receiver == null) {
+                receiveFailure = null;
+                receiver = new PacketReceiver(this, myPort, transport);
+                receiver.start();
+            }
+            lingering = false;
+        }
+        finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Stop listening on myPort. Packets already queued are kept, and the next
+     * receive call starts listening again. A connection sharing the port of a
+     * listening connection leaves its demultiplexing table instead, and a
+     * listening connection keeps receiving until all connections sharing its
+     * port are gone.
+     */
+    protected void stopReceiving() {
+        if (demuxParent != null) {
+            demuxParent.detach(this);
+        }
+        queueLock.lock();
+        try {
+            if (receiver != null) {
+                if (demuxTable.isEmpty()) {
+                    receiver.stopReceive();
+                    receiver = null;
                 }
                 else {
-                    // Case 2: Non-internal (application) caller, check
-                    // externalQueue
-                    if (!externalQueue.isEmpty()) {
-                        return externalQueue.remove(0);
-                    }
-                    // else try loop again unless connection is free
+                    lingering = true;
                 }
             }
-    
-            // When we get here, this thread has not got its packet, and it's
-            // allowed to enter the listening part of doReceive().
-            isReceiving = true;
+            internalArrived.signalAll();
+            externalArrived.signalAll();
         }
-    
-        Log.writeToLog("Waiting for incoming packet in doReceive()", "AbstractConnection");
-    
-        KtnDatagram incomingPacket;
-    
-        /*
-         * Waiting for internal and external packets should be handled
-         * differently. Waiting for internal packets should time out.
-         */
-        if (internal) {
-            // We are waiting for an internal packet, ie. a packet with a flag
-            long start = System.currentTimeMillis();
-            while (System.currentTimeMillis() - start < TIMEOUT) {
-                ClSocketReceiver receiver = new ClSocketReceiver(myPort);
-                receiver.start();
-                // Wait at most what is left of the TIMEOUT period for thread to
-                // die, but never less than 1 millisecond
-                try {
-                    long timeout  = TIMEOUT - (System.currentTimeMillis() - start);
-                    receiver.join(Math.max(timeout, 1));
-                }
-                catch (InterruptedException e) { /* do nothing */
-                }
-    
+        finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Have this listening connection receive for an accepted connection on
+     * the same port. Packets from the remote end of <code>child</code> are
+     * handed to it from now on.
+     * 
+     * @param child
+     *            A new connection, with myPort equal to the one of this and
+     *            the remote address and port set.
+     */
+    protected void attach(AbstractConnection child) {
+        child.demuxParent = this;
+        demuxTable.put(demuxKey(child.remoteAddress, child.remotePort), child);
+    }
+
+    /** Stop receiving for an accepted connection, see {@link #attach(AbstractConnection)}. */
+    private void detach(AbstractConnection child) {
+        demuxTable.remove(demuxKey(child.remoteAddress, child.remotePort), child);
+        queueLock.lock();
+        try {
+            if (lingering && demuxTable.isEmpty() && receiver != null) {
                 receiver.stopReceive();
-                incomingPacket = receiver.getPacket();
-                if (incomingPacket == null) {
-                    // No packet was received
-                    synchronized (this) {
-                        isReceiving = false;
-                        notifyAll();
-                        return null;
-                    }
-                }
-                else {
-                    // We have a packet
-                    if (incomingPacket.getFlag() != Flag.NONE) {
-                        // Packet is internal
-                        Log.writeToLog("Received an internal packet in doReceive",
-                                "AbstractConnection");
-    
-                        if (incomingPacket.getFlag() == Flag.FIN && state == State.ESTABLISHED) {
-                            // A FIN-packet has arrived in established state,
-                            // stop receiving and throw and exception
-                            disconnectRequest = incomingPacket;
-                            synchronized (this) {
-                                isReceiving = false;
-                                notifyAll();
-                                throw new EOFException("FIN packet received.");
-                            }
-                        }
-                        else {
-                            // Not a FIN packet in established state, return it
-                            // normally.
-                            synchronized (this) {
-                                isReceiving = false;
-                                notifyAll();
-                                return incomingPacket;
-                            }
-                        }
-                    }
-                    else {
-                        // Packet was meant for the application, continue
-                        // listening until timeout.
-                        Log.writeToLog("Received an external packet in doReceive",
-                                "AbstractConnection");
-    
-                        synchronized (this) {
-                            synchronized (this) {
-                                externalQueue.add(incomingPacket);
-                                notifyAll();
-                            }
-                        }
-                    }
-                }
+                receiver = null;
+                lingering = false;
+            }
+        }
+        finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * @return true if this connection shares the port of a listening
+     *         connection, which only hands it packets from its remote end.
+     */
+    protected boolean isDemultiplexed() {
+        return demuxParent != null;
+    }
+
+    /**
+     * @return true if a connection to the given remote end shares the port of
+     *         this listening connection.
+     */
+    protected boolean isAttached(String address, int port) {
+        return demuxTable.containsKey(demuxKey(address, port));
+    }
+
+    /** @return The key of a remote end, unique per address and port. */
+    protected static String demuxKey(String address, int port) {
+        return address + ":" + port;
+    }
+
+    /**
+     * Called for every packet received for this connection before it is
+     * queued, so that a subclass can handle it at once on the receiving
+     * thread, e.g. to run handshakes without a thread waiting for them. Must
+     * not block.
+     * 
+     * @param packet
+     *            The received packet.
+     * @return true if the packet was handled, and should not be queued.
+     */
+    protected boolean intercept(KtnDatagram packet) {
+        return false;
+    }
+
+    /**
+     * Called on the receiving thread after a packet for this connection was
+     * queued, so that a subclass that does not keep a thread waiting for
+     * packets can schedule their processing. Must not block.
+     * 
+     * @param packet
+     *            The queued packet.
+     */
+    protected void queued(KtnDatagram packet) {
+    }
+
+    /**
+     * Called on the receiving thread after the ack of an ACK or data packet
+     * was applied to the send window, see {@link #queued(KtnDatagram)}. Must
+     * not block.
+     * 
+     * @param packet
+     *            The ACK, or the data packet with the ack.
+     */
+    protected void acknowledged(KtnDatagram packet) {
+    }
+
+    /**
+     * Queue a packet received by the {@link PacketReceiver} and wake the
+     * threads waiting for that kind of packet. Any ack piggybacked on a data
+     * packet is first applied to the send window; if the window slid, the
+     * packet is kept for {@link #receiveAck()}. Data packets then go to the
+     * external queue, see {@link #queueData(KtnDatagram)}. ACKs for data are
+     * applied to the send window as well, and kept for receiveAck() instead
+     * of being queued, so the window slides and the RTT is sampled whether or
+     * not a sender is waiting. All other packets go to the internal queue, and
+     * a FIN wakes the application as well. A packet that does not fit in its
+     * queue is dropped, to be retransmitted by the peer.<br>
+     * <br>
+     * A listening connection sharing its port first looks the source of the
+     * packet up in its demultiplexing table, and hands the packet to the
+     * accepted connection found. SYNs are for the listening connection itself,
+     * and other packets from unknown sources are ghosts, and dropped. Packets
+     * handled by {@link #intercept(KtnDatagram)} are not queued either.
+     * 
+     * @param packet
+     *            The received packet.
+     */
+    void dispatch(KtnDatagram packet) {
+        if (packet.getFlag() != Flag.SYN && (sharedPort || !demuxTable.isEmpty())) {
+            AbstractConnection child = demuxTable.get(demuxKey(packet.getSrc_addr(), packet.getSrc_port()));
+            if (child != null) {
+                child.dispatch(packet);
             }
-            // We have now waited at least TIMEOUT milliseconds, still no
-            // packet.
-            synchronized (this) {
-                isReceiving = false;
-                notifyAll();
-                return null;
+            else {
+                DatagramLog.write(packet, "Dropped ghost packet", "AbstractConnection");
+            }
+            return;
+        }
+        if (packet.getFlag() == Flag.NONE && acknowledgePiggybacked(packet) > 0) {
+            applied(packet);
+        }
+        if (intercept(packet)) {
+            return;
+        }
+        if (packet.getFlag() == Flag.NONE) {
+            queueData(packet);
+        }
+        else if (packet.getFlag() == Flag.ACK && isDataAck(packet)) {
+            if (isValid(packet)) {
+                acknowledge(packet);
+                applied(packet);
+            }
+            else {
+                DatagramLog.write(packet, "Dropped ACK with wrong checksum", "AbstractConnection");
             }
         }
         else {
-            // We are waiting for a packet to an external application, ie. a
-            // packet with no flags. Can possibly wait forever.
-            incomingPacket = new ClSocket().receive(myPort);
-            if (incomingPacket == null) {
-                // We should get a packet, try again.
-                synchronized (this) {
-                    isReceiving = false;
-                    notifyAll();
+            Log.writeToLog("Received an internal packet", "AbstractConnection");
+            if (!internalQueue.offer(packet)) {
+                dropped(packet);
+                return;
+            }
+            queueLock.lock();
+            try {
+                internalArrived.signalAll();
+                if (packet.getFlag() == Flag.FIN) externalArrived.signalAll();
+            }
+            finally {
+                queueLock.unlock();
+            }
+            queued(packet);
+        }
+    }
+
+    /**
+     * Queue a received data packet for the application, and wake the thread
+     * waiting for it. A packet that does not fit is dropped.
+     * 
+     * @param packet
+     *            A data packet.
+     * @return true if the packet was queued.
+     */
+    protected boolean queueData(KtnDatagram packet) {
+        Log.writeToLog("Received an external packet", "AbstractConnection");
+        if (!externalQueue.offer(packet)) {
+            dropped(packet);
+            return false;
+        }
+        queueLock.lock();
+        try {
+            externalArrived.signal();
+        }
+        finally {
+            queueLock.unlock();
+        }
+        queued(packet);
+        return true;
+    }
+
+    /** Keep a packet whose ack was applied for {@link #receiveAck()}, and wake the waiting threads. */
+    private void applied(KtnDatagram packet) {
+        queueLock.lock();
+        try {
+            appliedAck = packet;
+            internalArrived.signalAll();
+        }
+        finally {
+            queueLock.unlock();
+        }
+        acknowledged(packet);
+    }
+
+    private void dropped(KtnDatagram packet) {
+        DatagramLog.write(packet, "Receive queue full, dropped packet", "AbstractConnection");
+        statistics.countReceiveQueueDrop();
+    }
+
+    /**
+     * Called by a {@link PacketReceiver} that ended because the
+     * connectionless layer failed. The exception is thrown to the next thread
+     * waiting for a packet.
+     */
+    void receiveFailed(PacketReceiver failed, IOException e) {
+        queueLock.lock();
+        try {
+            if (receiver == failed) {
+                receiver = null;
+                receiveFailure = e;
+                internalArrived.signalAll();
+                externalArrived.signalAll();
+            }
+        }
+        finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Receives a packet from the connectionless layer. Packets are received by
+     * the one listening thread of the connection, see
+     * {@link #startReceiving()}, and this waits for it to queue one of the
+     * wanted kind. Internal and application callers wait on separate
+     * conditions, so they do not wake each other.<br>
+     * <br>
+     * A FIN-packet in ESTABLISHED state is stored in
+     * {@link #disconnectRequest}, and an EOFException is thrown. Application
+     * callers get the data packets queued before it first.
+     * 
+     * @param internal
+     *            true if you want to receive non-external packet, i.e. not a
+     *            packet with data intended for the application. False
+     *            otherwise.
+     * @return A received datagram, or null if an internal packet was wanted
+     *         and none arrived within {@link #TIMEOUT}.
+     * @throws IOException
+     *             If the underlying connectionless layer throws an IOException.
+     * @throws EOFException
+     *             If a packet with a FIN-flag was received in ESTABLISHED
+     *             state.
+     */
+    protected KtnDatagram receivePacket(boolean internal) throws IOException, EOFException {
+        startReceiving();
+        long deadline = System.nanoTime() + TIMEOUT * NANOS_PER_MILLI;
+        queueLock.lock();
+        try {
+            if (internal) {
+                // Case 1: Internal (protocol) caller, any flagged packet
+                do {
+                    KtnDatagram packet = internalQueue.poll();
+                    if (packet != null) return checkFin(packet);
                 }
-                return receivePacket(internal);
+                while (awaitPacket(internalArrived, deadline));
             }
             else {
-                // We have a packet
-                if (incomingPacket.getFlag() != Flag.NONE) {
-                    // Packet is internal
-                    Log.writeToLog("Received an internal packet in doReceive", "AbstractConnection");
-    
-                    if (incomingPacket.getFlag() == Flag.FIN && state == State.ESTABLISHED) {
-                        // A FIN-packet has arrived in established state,
-                        // stop receiving and throw and exception
-                        disconnectRequest = incomingPacket;
-                        synchronized (this) {
-                            isReceiving = false;
-                            notifyAll();
-                            throw new EOFException("FIN packet received.");
-                        }
-                    }
-                    else {
-                        // Not a FIN packet, continue listening
-                        synchronized (this) {
-                            internalQueue.add(incomingPacket);
-                            isReceiving = false;
-                            notifyAll();
-                        }
-                        return receivePacket(internal);
-                    }
-                }
-                else {
-                    // Packet was meant for the application, yei!
-                    Log.writeToLog("Received an external packet in doReceive", "AbstractConnection");
-    
-                    synchronized (this) {
-                        isReceiving = false;
-                        notifyAll();
-                        return incomingPacket;
+                // Case 2: Non-internal (application) caller, data packets
+                // and a FIN ending them. Waits (potentially) forever.
+                do {
+                    KtnDatagram packet = externalQueue.poll();
+                    if (packet != null) return packet;
+                    if (state == State.ESTABLISHED) {
+                        KtnDatagram fin = removeInternal(Flag.FIN);
+                        if (fin != null) return checkFin(fin);
                     }
                 }
+                while (awaitPacket(externalArrived, 0));
             }
+            return null;
+        }
+        finally {
+            queueLock.unlock();
         }
     }
 
@@ -523,138 +1375,186 @@ public abstract class AbstractConnection implements Connection {
      * If a FIN-packet is received and the state is not ESTABLISHED, this will
      * also be returned.<br>
      * <br>
+     * ACKs for data, and acks piggybacked on data packets that slide the send
+     * window, are applied as they arrive, see {@link #dispatch(KtnDatagram)}.
+     * The latest of them is returned as well, so that a sender waiting for
+     * room in the window can continue.<br>
+     * <br>
      * If a FIN-packet is received and the connection is in ESTABLISHED state,
-     * an EOFException is thrown. It calls {@link #isValid(KtnDatagram)} on
-     * FIN-packets in ESTABLISHED state, before an EOFException is thrown.
+     * it is stored in {@link #disconnectRequest} and an EOFException is
+     * thrown. Other internal packets are left queued for
+     * {@link #receivePacket(boolean)}.
      * 
      * @return The ACK or SYN_ACK KtnDatagram recieved (can be null), may also
-     *         be a FIN if not in established state.
+     *         be a FIN if not in established state, or a data packet with a
+     *         piggybacked ack. An ACK for data has been applied already.
      * @throws IOException
      *             If caused by the underlying connectionless layer.
      * @throws EOFException
      *             If a FIN-packet is received in ESTABLISHED state.
      */
     protected KtnDatagram receiveAck() throws IOException, EOFException {
-        /*
-         * Acquire monitor for this instance, and see if another thread runs
-         * receive on our port. If so, see if that thread gets the packet that
-         * was meant for us.
-         */
-        synchronized (this) {
-            long before, after;
-
-            before = System.currentTimeMillis();
-            while (isReceiving) {
-                try {
-                    wait(TIMEOUT); // wait with timeout
+        startReceiving();
+        long deadline = System.nanoTime() + TIMEOUT * NANOS_PER_MILLI;
+        queueLock.lock();
+        try {
+            do {
+                KtnDatagram packet = removeInternal(Flag.ACK, Flag.SYN_ACK, Flag.FIN);
+                if (packet != null) {
+                    return checkFin(packet);
                 }
-                catch (InterruptedException e) { /* do nothing */
-                }
-                after = System.currentTimeMillis();
-
-                // If an ack for us has arrived, return it.
-                // check internalQueue
-                if (!internalQueue.isEmpty()) {
-                    KtnDatagram packet = internalQueue.get(0);
-                    if (packet.getFlag() == Flag.ACK || packet.getFlag() == Flag.SYN_ACK) {
-                        return internalQueue.remove(0);
-                    }
-                }
-                // If no packet arrived, see if timeout has expired.
-                else if ((after - before) > TIMEOUT) {
-                    return null;
+                if (appliedAck != null) {
+                    packet = appliedAck;
+                    appliedAck = null;
+                    return packet;
                 }
             }
-
-            // When we get here, this thread has not got its packet, and it's
-            // allowed to enter the listening part of doReceive().
-            isReceiving = true;
+            while (awaitPacket(internalArrived, deadline));
+            return null;
+        }
+        finally {
+            queueLock.unlock();
         }
+    }
 
-        Log.writeToLog("Waiting for incoming packet in receiveAck()", "AbstractConnection");
+    /**
+     * Take the next data packet queued for the application without waiting,
+     * for callers woken by {@link #queued(KtnDatagram)} instead. Like
+     * {@link #receivePacket(boolean)}, a FIN-packet in ESTABLISHED state ends
+     * the data packets queued before it.
+     * 
+     * @return A data packet, or null if none is queued.
+     * @throws IOException
+     *             If the underlying connectionless layer failed.
+     * @throws EOFException
+     *             If a packet with a FIN-flag was received in ESTABLISHED
+     *             state, and no data packets are left.
+     */
+    protected KtnDatagram pollExternal() throws IOException, EOFException {
+        queueLock.lock();
+        try {
+            checkReceiveFailure();
+            KtnDatagram packet = externalQueue.poll();
+            if (packet == null && state == State.ESTABLISHED) {
+                KtnDatagram fin = removeInternal(Flag.FIN);
+                if (fin != null) return checkFin(fin);
+            }
+            return packet;
+        }
+        finally {
+            queueLock.unlock();
+        }
+    }
 
-        KtnDatagram incomingPacket;
+    /**
+     * Take a queued internal packet with one of the given flags without
+     * waiting, see {@link #pollExternal()}. FIN-packets are returned as they
+     * are, whatever the state.
+     * 
+     * @return The packet, or null if none is queued.
+     * @throws IOException
+     *             If the underlying connectionless layer failed.
+     */
+    protected KtnDatagram pollInternal(Flag... flags) throws IOException {
+        queueLock.lock();
+        try {
+            checkReceiveFailure();
+            return removeInternal(flags);
+        }
+        finally {
+            queueLock.unlock();
+        }
+    }
 
-        // We are waiting for an ack or syn_ack packet
-        long start = System.currentTimeMillis();
-        while (System.currentTimeMillis() - start < TIMEOUT) {
-            ClSocketReceiver receiver = new ClSocketReceiver(myPort);
-            receiver.start();
-            // Wait at most what is left of the TIMEOUT period for thread to
-            // die, but never less than 1 millisecond
-            try {
-                receiver.join(Math.max(TIMEOUT - (System.currentTimeMillis() - start), 1));
-            }
-            catch (InterruptedException e) { /* do nothing */
-            }
+    /**
+     * Take the last ACK, or data packet whose piggybacked ack slid the send
+     * window, applied since the previous call, see {@link #receiveAck()}.
+     * 
+     * @return The packet, or null if no ack was applied.
+     */
+    protected KtnDatagram pollAppliedAck() {
+        queueLock.lock();
+        try {
+            KtnDatagram packet = appliedAck;
+            appliedAck = null;
+            return packet;
+        }
+        finally {
+            queueLock.unlock();
+        }
+    }
 
-            receiver.stopReceive();
-            incomingPacket = receiver.getPacket();
-            if (incomingPacket == null) {
-                // No packet was received
-                synchronized (this) {
-                    isReceiving = false;
-                    notifyAll();
-                    return null;
+    /**
+     * Remove the first queued internal packet with one of the given flags.
+     * 
+     * @return The packet, or null if none is queued.
+     */
+    private KtnDatagram removeInternal(Flag... flags) {
+        Iterator<KtnDatagram> it = internalQueue.iterator();
+        while (it.hasNext()) {
+            KtnDatagram packet = it.next();
+            for (Flag flag : flags) {
+                if (packet.getFlag() == flag) {
+                    it.remove();
+                    return packet;
                 }
             }
-            else {
-                // We have a packet
-                if (incomingPacket.getFlag() != Flag.NONE) {
-                    // Packet is internal
-                    Log.writeToLog("Received an internal packet in receiveAck",
-                            "AbstractConnection");
+        }
+        return null;
+    }
 
-                    if (incomingPacket.getFlag() == Flag.FIN && state == State.ESTABLISHED) {
-                        // A FIN-packet has arrived in established state,
-                        // stop receiving and throw and exception
-                        disconnectRequest = incomingPacket;
-                        synchronized (this) {
-                            isReceiving = false;
-                            notifyAll();
-                            throw new EOFException("FIN packet received.");
-                        }
-                    }
-                    else if (incomingPacket.getFlag() == Flag.ACK
-                            || incomingPacket.getFlag() == Flag.SYN_ACK
-                            || incomingPacket.getFlag() == Flag.FIN) {
-                        // Not a FIN packet in established state, return if it
-                        // is SYN, SYN_ACK or FIN
-                        synchronized (this) {
-                            isReceiving = false;
-                            notifyAll();
-                            return incomingPacket;
-                        }
-                    }
-                    else {
-                        // Not a packet we want to return, continue looping.
-                        synchronized (this) {
-                            internalQueue.add(incomingPacket);
-                            notifyAll();
-                        }
-                    }
-                }
-                else {
-                    // Packet was meant for the application, continue
-                    // listening until timeout.
-                    Log.writeToLog("Received an external packet in receiveAck",
-                            "AbstractConnection");
+    /**
+     * Throw an EOFException for a FIN-packet in ESTABLISHED state, after
+     * storing it in {@link #disconnectRequest}.
+     * 
+     * @return The packet, if it is not such a FIN.
+     */
+    private KtnDatagram checkFin(KtnDatagram packet) throws EOFException {
+        if (packet.getFlag() == Flag.FIN && state == State.ESTABLISHED) {
+            disconnectRequest = packet;
+            throw new EOFException("FIN packet received.");
+        }
+        return packet;
+    }
 
-                    synchronized (this) {
-                        synchronized (this) {
-                            externalQueue.add(incomingPacket);
-                            notifyAll();
-                        }
-                    }
-                }
-            }
+    /**
+     * Park until the condition is signalled or the deadline passes. Must be
+     * called holding {@link #queueLock}.
+     * 
+     * @param arrived
+     *            The condition to wait for.
+     * @param deadline
+     *            When to give up, in {@link System#nanoTime()}, or 0 to wait
+     *            forever.
+     * @return false if the deadline has passed.
+     * @throws IOException
+     *             If the receiver failed.
+     */
+    private boolean awaitPacket(Condition arrived, long deadline) throws IOException {
+        checkReceiveFailure();
+        if (deadline == 0) {
+            arrived.awaitUninterruptibly();
+            return true;
         }
-        // We have now waited at least TIMEOUT milliseconds, still no
-        // packet.
-        synchronized (this) {
-            isReceiving = false;
-            notifyAll();
-            return null;
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) return false;
+        try {
+            arrived.awaitNanos(remaining);
+        }
+        catch (InterruptedException e) { /* do nothing */
+        }
+        return true;
+    }
+
+    /**
+     * Throw the exception the receiver failed with, once. Must be called
+     * holding {@link #queueLock}.
+     */
+    private void checkReceiveFailure() throws IOException {
+        if (receiveFailure != null) {
+            IOException e = receiveFailure;
+            receiveFailure = null;
+            throw e;
         }
     }
 
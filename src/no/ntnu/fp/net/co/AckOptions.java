@@ -0,0 +1,118 @@
+package no.ntnu.fp.net.co;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Extra information carried by a plain ACK packet besides its cumulative ack
+ * number. {@link KtnDatagram} drops the payload of every packet with an ack
+ * number, so the options travel in the sequence field of the ACK, which is
+ * otherwise unused as plain ACKs consume no sequence number.<br>
+ * <br>
+ * The selective-ack bitmap describes the packets the receiver has buffered
+ * beyond the cumulative ack: bit <code>i</code> set means that the packet with
+ * sequence number <code>ack + 2 + i</code> has arrived (<code>ack + 1</code> is
+ * by definition missing). The sender need only retransmit the holes.<br>
+ * <br>
+ * The receive window is the number of further data packets the receiver has
+ * room for, see {@link AbstractConnection#setReceiveWindow(int)}. The bitmap
+ * takes the low 16 bits of the field and the window the high ones, but for
+ * the top bit, which is set by an end that agreed on compression, see
+ * {@link DataFrame#COMPRESSING}.
+ *
+ * @see AbstractConnection#sendAck(KtnDatagram, boolean, AckOptions)
+ * @see AbstractConnection#acknowledge(KtnDatagram)
+ */
+class AckOptions {
+
+    /** Number of packets beyond the cumulative ack the bitmap can describe. */
+    public final static int SACK_RANGE = 16;
+
+    /** Largest receive window that can be advertised. */
+    public final static int MAX_WINDOW = 0x7fff;
+
+    /** Bit of the sequence field set when the sender agreed on compression. */
+    private final static int COMPRESSING = 1 << 31;
+
+    private int sackBitmap;
+    private int window;
+    private boolean compressing;
+
+    public AckOptions() {
+        sackBitmap = 0;
+        window = 0;
+        compressing = false;
+    }
+
+    /**
+     * @param window
+     *            - the receive window to advertise, limited to
+     *            {@link #MAX_WINDOW}.
+     */
+    public void setWindow(int window) {
+        this.window = Math.max(0, Math.min(window, MAX_WINDOW));
+    }
+
+    /** @return The advertised receive window, in packets. */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * @param compressing
+     *            - true if the sender of the ACK agreed on compression.
+     */
+    public void setCompressing(boolean compressing) {
+        this.compressing = compressing;
+    }
+
+    public boolean isCompressing() {
+        return compressing;
+    }
+
+    /**
+     * Mark a buffered packet in the selective-ack bitmap.
+     *
+     * @param ackNo
+     *            - the cumulative ack number the options are sent with.
+     * @param seqNo
+     *            - sequence number of the buffered packet, in the range
+     *            <code>ackNo + 2</code> to <code>ackNo + 1 + SACK_RANGE</code>.
+     */
+    public void addSelectiveAck(int ackNo, int seqNo) {
+        int bit = seqNo - ackNo - 2;
+        if (bit < 0 || bit >= SACK_RANGE)
+            throw new IllegalArgumentException("Sequence number outside selective-ack range.");
+        sackBitmap |= 1 << bit;
+    }
+
+    /**
+     * @return true if the packet <code>seqNo</code> is selectively acked
+     *         relative to the cumulative ack <code>ackNo</code>.
+     */
+    public boolean isSelectivelyAcked(int ackNo, int seqNo) {
+        int bit = seqNo - ackNo - 2;
+        return bit >= 0 && bit < SACK_RANGE && (sackBitmap & (1 << bit)) != 0;
+    }
+
+    /** @return The options as stored in the sequence field of the ACK. */
+    public int encode() {
+        return (compressing ? COMPRESSING : 0) | (window << 16) | (sackBitmap & 0xffff);
+    }
+
+    /**
+     * Read the options of a plain ACK packet.
+     *
+     * @param ack
+     *            - the ACK packet.
+     * @return The decoded options.
+     */
+    public static AckOptions decode(KtnDatagram ack) {
+        AckOptions options = new AckOptions();
+        if (ack.getFlag() == KtnDatagram.Flag.ACK) {
+            options.sackBitmap = ack.getSeq_nr() & 0xffff;
+            options.window = (ack.getSeq_nr() >>> 16) & MAX_WINDOW;
+            options.compressing = (ack.getSeq_nr() & COMPRESSING) != 0;
+        }
+        return options;
+    }
+}
@@ -0,0 +1,49 @@
+package no.ntnu.fp.net.co;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking companion of {@link Connection}. The operations return at
+ * once with a future, which is completed by a {@link ConnectionEventLoop}
+ * when the packets it waits for have arrived, so many connections can be
+ * served by a few threads. Operations of the same kind complete in the order
+ * they were started.<br>
+ * <br>
+ * A connection should be used either through these methods or through the
+ * blocking send, receive and close methods, not both.
+ */
+public interface AsyncConnection extends Connection {
+
+    /**
+     * Send a message to a remote instance.
+     *
+     * @param msg
+     *            the message to be sent
+     * @return a future completed when the remote instance has acknowledged
+     *         the whole message, or completed exceptionally with a
+     *         java.net.ConnectException if no remote instance is connected
+     *         or the connection was lost
+     */
+    public CompletableFuture<Void> sendAsync(String msg);
+
+    /**
+     * Receive the next message from the remote instance.
+     *
+     * @return a future completed with the received message, or completed
+     *         exceptionally with a java.io.EOFException if the remote
+     *         instance closed the connection, or another java.io.IOException
+     *         if the connection failed
+     */
+    public CompletableFuture<String> receiveAsync();
+
+    /**
+     * Close this connection, after the messages already passed to
+     * {@link #sendAsync(String)} have been acknowledged.
+     *
+     * @return a future completed when the connection is closed, or completed
+     *         exceptionally with a java.io.IOException if the remote instance
+     *         did not acknowledge the close
+     */
+    public CompletableFuture<Void> closeAsync();
+
+}
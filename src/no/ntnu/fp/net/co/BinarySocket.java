@@ -0,0 +1,64 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import no.ntnu.fp.net.cl.FailureController;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Sends datagrams the way {@link no.ntnu.fp.net.cl.ClSocket} does, one TCP
+ * connection per datagram, but encoded by {@link DatagramCodec} instead of
+ * Java serialization. A {@link StreamEndpoint} reads both encodings.<br>
+ * <br>
+ * The A2 FailureController only hooks into ClSocket, so no errors are
+ * injected on this path.
+ *
+ * @see AbstractConnection#setBinaryCodec(boolean)
+ */
+public class BinarySocket implements Transport {
+
+    /** The one instance, it keeps no state. */
+    public final static BinarySocket INSTANCE = new BinarySocket();
+
+    private BinarySocket() {
+    }
+
+    /**
+     * Connect to the destination of the datagram, write it and close.
+     *
+     * @see DatagramSender#send(KtnDatagram)
+     */
+    public void send(KtnDatagram packet) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = DatagramCodec.encode(packet);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Can not encode datagram: " + e.getMessage());
+        }
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(packet.getDest_addr(), packet.getDest_port()));
+            OutputStream out = socket.getOutputStream();
+            out.write(bytes);
+            out.flush();
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                // Ignore.
+            }
+        }
+        FailureController.packetSentCount++;
+    }
+
+    public Endpoint open(int port) throws IOException {
+        return new StreamEndpoint(port);
+    }
+}
@@ -0,0 +1,80 @@
+package no.ntnu.fp.net.co;
+
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Payload checksums of datagrams. {@link KtnDatagram#calculateChecksum()}
+ * runs one CRC32 shared by every thread in the JVM, so concurrent checks
+ * contend for it and may even mix up their results. These methods use a
+ * checksum object of their own for every call, over the payload bytes as
+ * they are held by the datagram, without serializing anything.<br>
+ * <br>
+ * Two kinds of checksum are supported. A CRC32 has the same value as the A2
+ * checksum. A CRC32C is computed with the CRC32C instruction of the
+ * processor where the JVM has an intrinsic for it, and is marked by
+ * {@link #CRC32C_MARK}, which no CRC32 value reaches, so the receiver
+ * can tell which one to verify without any agreement with the sender. A
+ * packet without payload has checksum 0 either way.
+ *
+ * @see AbstractConnection#setCrc32c(boolean)
+ */
+final class Checksums {
+
+    /** Set in the checksum of a datagram whose checksum is a CRC32C. */
+    public final static long CRC32C_MARK = 1L << 32;
+
+    private Checksums() {
+    }
+
+    /**
+     * Compute the checksum of the payload of a datagram and store it in the
+     * datagram.
+     *
+     * @param packet
+     *            - the datagram, with its payload set.
+     * @param crc32c
+     *            - true for a CRC32C, false for a CRC32.
+     */
+    public static void sign(KtnDatagram packet, boolean crc32c) {
+        byte[] payload = packet.getPayloadAsBytes();
+        if (payload == null) {
+            packet.setChecksum(0);
+        }
+        else {
+            packet.setChecksum(crc32c ? crc32c(payload) : crc32(payload));
+        }
+    }
+
+    /**
+     * @param packet
+     *            - a received datagram.
+     * @return true if the checksum of the datagram matches its payload.
+     */
+    public static boolean isValid(KtnDatagram packet) {
+        byte[] payload = packet.getPayloadAsBytes();
+        long checksum = packet.getChecksum();
+        if (payload == null) {
+            return checksum == 0;
+        }
+        return checksum == ((checksum & CRC32C_MARK) != 0 ? crc32c(payload) : crc32(payload));
+    }
+
+    /** @return The CRC32 of the bytes, as the A2 checksum. */
+    public static long crc32(byte[] bytes) {
+        return value(new CRC32(), bytes);
+    }
+
+    /** @return The CRC32C of the bytes, with {@link #CRC32C_MARK} set. */
+    public static long crc32c(byte[] bytes) {
+        return value(new CRC32C(), bytes) | CRC32C_MARK;
+    }
+
+    private static long value(Checksum checksum, byte[] bytes) {
+        checksum.update(bytes, 0, bytes.length);
+        return checksum.getValue();
+    }
+}
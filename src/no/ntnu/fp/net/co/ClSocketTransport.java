@@ -0,0 +1,104 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.cl.ClException;
+import no.ntnu.fp.net.cl.ClSocket;
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.cl.Util;
+
+/**
+ * Sends every datagram on a new {@link ClSocket}, serialized, with the errors
+ * of the A2 FailureController injected, and receives them on a
+ * {@link StreamEndpoint}. Every datagram costs a TCP handshake.<br>
+ * <br>
+ * The FailureController, the A2 log and the debug output of ClSocket
+ * deserialize the payload of every datagram they touch, and expect a
+ * String. On this path alone, a payload is therefore sent as a serialized
+ * String of one char per byte (ISO-8859-1), see {@link #wrap(KtnDatagram)},
+ * and turned back into its bytes on arrival, see
+ * {@link #unwrap(KtnDatagram)}.
+ */
+public class ClSocketTransport implements Transport {
+
+    /** Maps every byte to one char and back. */
+    private final static Charset WIRE_CHARSET = Charset.forName("ISO-8859-1");
+
+    /** First bytes of a serialized object, never those of a DataFrame. */
+    private final static int SERIAL_MAGIC = 0xACED;
+
+    /** The one instance, it keeps no state. */
+    public final static ClSocketTransport INSTANCE = new ClSocketTransport();
+
+    private ClSocketTransport() {
+    }
+
+    /**
+     * Send a datagram, connecting to its receiver first. A resend by a timer
+     * task is handed to {@link RetransmitScheduler#offload(Runnable)} rather
+     * than connect on the timer thread, and an error is only logged.
+     */
+    public void send(final KtnDatagram packet) throws IOException, ClException {
+        RetransmitScheduler scheduler = RetransmitScheduler.getShared();
+        if (!scheduler.isTimerThread()) {
+            new ClSocket().send(wrap(packet));
+            return;
+        }
+        scheduler.offload(new Runnable() {
+            public void run() {
+                try {
+                    new ClSocket().send(wrap(packet));
+                }
+                catch (ClException e) {
+                    Log.writeToLog("ERROR: Could not establish a connection to " + packet.getDest_addr()
+                            + ":" + packet.getDest_port(), "ClSocketTransport");
+                }
+                catch (IOException e) {
+                    Log.writeToLog("ERROR: Could not establish a connection to " + packet.getDest_addr()
+                            + ":" + packet.getDest_port(), "ClSocketTransport");
+                }
+            }
+        });
+    }
+
+    public Endpoint open(int port) throws IOException {
+        return new StreamEndpoint(port);
+    }
+
+    /**
+     * @return A copy of the datagram with its payload serialized as a String,
+     *         and the checksum of the payload as it was, or the datagram
+     *         itself if it has no payload.
+     */
+    static KtnDatagram wrap(KtnDatagram packet) {
+        byte[] payload = packet.getPayloadAsBytes();
+        if (payload == null) return packet;
+        KtnDatagram wire = InProcessTransport.copy(packet);
+        wire.setPayloadAsBytes(Util.toByteArray(new String(payload, WIRE_CHARSET)));
+        return wire;
+    }
+
+    /**
+     * Turn the payload of a datagram made by {@link #wrap(KtnDatagram)} back
+     * into its bytes. A2 gives a duplicate it makes a new CRC32 of the payload
+     * as sent, which is taken to vouch for the payload as received too.
+     * Payloads that were not wrapped are left alone.
+     *
+     * @return The datagram.
+     */
+    static KtnDatagram unwrap(KtnDatagram packet) {
+        byte[] wire = packet.getPayloadAsBytes();
+        if (wire == null || wire.length < 2 || ((wire[0] & 0xff) << 8 | wire[1] & 0xff) != SERIAL_MAGIC) {
+            return packet;
+        }
+        Object payload = Util.toObject(wire);
+        if (!(payload instanceof String)) return packet;
+        boolean resigned = packet.getChecksum() == Checksums.crc32(wire);
+        byte[] bytes = ((String)payload).getBytes(WIRE_CHARSET);
+        packet.setPayloadAsBytes(bytes);
+        if (resigned) packet.setChecksum(Checksums.crc32(bytes));
+        return packet;
+    }
+}
@@ -0,0 +1,46 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * Strategy deciding how many data packets a connection may have in flight,
+ * so that the sender backs off when packets are lost instead of flooding the
+ * network. The effective window is the smaller of the congestion window and
+ * the send window set with {@link AbstractConnection#setSendWindowSize(int)}.
+ * <br>
+ * <br>
+ * An implementation holds the state of a single connection and is called from
+ * the {@link SendWindow} of that connection only, with its lock held.
+ * 
+ * @see RenoCongestionControl
+ * @see DelayBasedCongestionControl
+ */
+public interface CongestionControl {
+
+    /** @return The number of data packets that may be in flight. */
+    public int getWindow();
+
+    /**
+     * Called when an ACK slides the send window.
+     * 
+     * @param acked
+     *            number of packets newly acknowledged while the window was in
+     *            full use, 0 if the sender was not limited by the window and it
+     *            should not grow.
+     * @param rtt
+     *            round trip time sample in milliseconds, or -1 if the ACK gave
+     *            none.
+     */
+    public void onAck(int acked, long rtt);
+
+    /**
+     * Called when the retransmission timer of the oldest outstanding packet
+     * expires, i.e. a packet is taken as lost.
+     */
+    public void onTimeout();
+
+    /**
+     * Called when duplicate ACKs made the sender resend a packet before its
+     * timer expired. The ACKs show that later packets still get through, so
+     * the reduction is usually milder than for a timeout.
+     */
+    public void onFastRetransmit();
+}
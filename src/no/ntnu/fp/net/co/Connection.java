@@ -1,6 +1,8 @@
 package no.ntnu.fp.net.co;
 
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
  * Interface that defines the methods a Connection implementation must support.
@@ -47,6 +49,51 @@ public interface Connection {
      */
     public void send(String msg) throws java.net.ConnectException, java.io.IOException;
 
+    /**
+     * Send binary data to a remote instance. The bytes between the position
+     * and the limit of the buffer are sent as one message, and the position
+     * is advanced to the limit.
+     * 
+     * @param msg
+     *            the message to be sent
+     * @throws java.net.ConnectException
+     *             if no remote instance is connected
+     * @throws java.io.IOException
+     *             if an I/O error occurs when sending
+     */
+    public void send(ByteBuffer msg) throws java.net.ConnectException, java.io.IOException;
+
+    /**
+     * Send binary data to a remote instance as one message.
+     * 
+     * @param msg
+     *            array holding the message to be sent
+     * @param offset
+     *            index of the first byte of the message
+     * @param length
+     *            number of bytes in the message
+     * @throws java.net.ConnectException
+     *             if no remote instance is connected
+     * @throws java.io.IOException
+     *             if an I/O error occurs when sending
+     */
+    public void send(byte[] msg, int offset, int length) throws java.net.ConnectException,
+            java.io.IOException;
+
+    /**
+     * Send several messages to a remote instance at once. The implementation
+     * may pack them into fewer packets, but they are received one by one, in
+     * order, exactly as if sent with {@link #send(String)}.
+     * 
+     * @param msgs
+     *            the messages to be sent
+     * @throws java.net.ConnectException
+     *             if no remote instance is connected
+     * @throws java.io.IOException
+     *             if an I/O error occurs when sending
+     */
+    public void sendAll(List<String> msgs) throws java.net.ConnectException, java.io.IOException;
+
     /**
      * Synchronous receive of message from remote instance. Blocks until a
      * message is received.
@@ -59,6 +106,24 @@ public interface Connection {
      */
     public String receive() throws java.net.ConnectException, java.io.IOException;
 
+    /**
+     * Synchronous receive of a binary message from remote instance. Blocks
+     * until a message is received. The message is copied into the buffer
+     * starting at its position, which is advanced past the message. If the
+     * message is longer than the space remaining in the buffer, the rest of
+     * it is discarded.
+     * 
+     * @param dst
+     *            buffer to copy the message into
+     * @return the length of the received message, larger than the number of
+     *         bytes copied if the message was truncated
+     * @throws java.net.ConnectException
+     *             if no remote instance is connected
+     * @throws java.io.IOException
+     *             if an I/O error occurs when receiving
+     */
+    public int receive(ByteBuffer dst) throws java.net.ConnectException, java.io.IOException;
+
     /**
      * Closes this connection
      * 
@@ -0,0 +1,119 @@
+package no.ntnu.fp.net.co;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import no.ntnu.fp.net.admin.Log;
+
+/**
+ * A thread running the asynchronous operations of connections, see
+ * {@link AsyncConnection}. The loop takes tasks from a queue and runs them
+ * one at a time. A connection is served by a single loop, so its tasks never
+ * run concurrently, and a loop serves any number of connections: a
+ * connection only has a task queued when a packet for it arrived, one of its
+ * timeouts expired, or the application started an operation, and no task
+ * waits for the network.<br>
+ * <br>
+ * Connections share a small, fixed set of loops, see {@link #next()}. Tasks
+ * should be short, like processing the packets queued for a connection.
+ *
+ * @see ConnectionImpl#sendAsync(String)
+ */
+public class ConnectionEventLoop {
+
+    private static int loopCount = Runtime.getRuntime().availableProcessors();
+    private static final List<ConnectionEventLoop> shared = new ArrayList<ConnectionEventLoop>();
+    private static int nextLoop = 0;
+
+    private final BlockingQueue<Runnable> tasks;
+    private final Thread thread;
+    private volatile long tasksRun;
+
+    /** Construct a loop and start its thread. */
+    public ConnectionEventLoop(String name) {
+        tasks = new LinkedBlockingQueue<Runnable>();
+        tasksRun = 0;
+        thread = new Thread(name) {
+            public void run() {
+                work();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Set the number of shared loops, one per processor by default. Loops
+     * already started keep running.
+     *
+     * @param count
+     *            - the number of loops, at least 1.
+     */
+    public static synchronized void setLoopCount(int count) {
+        if (count < 1) throw new IllegalArgumentException("Loop count must be at least 1.");
+        loopCount = count;
+    }
+
+    public static synchronized int getLoopCount() {
+        return loopCount;
+    }
+
+    /** @return One of the shared loops, taken in turn. */
+    public static synchronized ConnectionEventLoop next() {
+        ConnectionEventLoop loop;
+        if (shared.size() < loopCount) {
+            loop = new ConnectionEventLoop("ConnectionEventLoop-" + shared.size());
+            shared.add(loop);
+        }
+        else {
+            loop = shared.get(nextLoop % shared.size());
+        }
+        nextLoop = (nextLoop + 1) % loopCount;
+        return loop;
+    }
+
+    /**
+     * Queue a task to run on the loop.
+     *
+     * @param task
+     *            - the task, must not block.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+    }
+
+    /** @return true if called from the thread of this loop. */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** @return The number of tasks run so far. */
+    public long getTasksRun() {
+        return tasksRun;
+    }
+
+    public String toString() {
+        return thread.getName() + " tasksRun=" + tasksRun + " queued=" + tasks.size();
+    }
+
+    private void work() {
+        while (true) {
+            Runnable task;
+            try {
+                task = tasks.take();
+            }
+            catch (InterruptedException e) { /* do nothing */
+                continue;
+            }
+            try {
+                task.run();
+            }
+            catch (RuntimeException e) {
+                Log.writeToLog("Exception in event loop task: " + e, "ConnectionEventLoop");
+            }
+            tasksRun++;
+        }
+    }
+}
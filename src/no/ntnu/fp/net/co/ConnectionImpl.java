@@ -3,15 +3,29 @@
  */
 package no.ntnu.fp.net.co;
 
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 
 //import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
@@ -28,21 +42,121 @@ import no.ntnu.fp.net.cl.KtnDatagram.Flag;
  * {@link Connection} over the unreliable, connectionless network realised in
  * {@link ClSocket}. The base class, {@link AbstractConnection} implements some
  * of the functionality, leaving message passing and error handling to this
- * implementation.
+ * implementation.<br>
+ * <br>
+ * The operations of {@link AsyncConnection} are run by a
+ * {@link ConnectionEventLoop}, woken by the packets queued for the
+ * connection, instead of by a waiting application thread.
  * 
  * @author Sebjrn Birkeland and Stein Jakob Nordb
  * @see no.ntnu.fp.net.co.Connection
  * @see no.ntnu.fp.net.cl.ClSocket
  */
-public class ConnectionImpl extends AbstractConnection {
+public class ConnectionImpl extends AbstractConnection implements AsyncConnection {
 
 	/** Keeps track of the used ports for each server port. */
 	private static Map<Integer, Boolean> usedPorts = Collections.synchronizedMap(new HashMap<Integer, Boolean>());
+	/**
+	 * Handshake option, see {@link DataFrame#OPTIONS}: compress frame data,
+	 * see {@link FrameCompressor}.
+	 */
+	private final static int OPTION_COMPRESSION = 0x01;
 	private final int MAXRESENDS = 5;
 	private final int MAXRECEIVES = 5;
 	private int resends = 0;
 	private int receives = 0;
 	private KtnDatagram oldPacket = null;
+	/** Packets that arrived ahead of a missing one, keyed by sequence number. */
+	private SortedMap<Integer, KtnDatagram> reorderBuffer = new TreeMap<Integer, KtnDatagram>();
+	/** Guards the delayed ACK, which is sent by the receiving thread, the sending thread or a timer. */
+	private final Object ackLock = new Object();
+	/** Data packets received in order since the last ACK. */
+	private int unackedPackets = 0;
+	/** The scheduled delayed ACK, if any. */
+	private RetransmitScheduler.Timeout delayedAck = null;
+	/** Serializes sending between the application and the flushes of held back messages. */
+	private final ReentrantLock sendLock = new ReentrantLock();
+	/** Short messages held back to be sent together. */
+	private List<byte[]> coalesceQueue = new ArrayList<byte[]>();
+	/** Size of the held back messages when packed. */
+	private int coalescedBytes = 0;
+	/** The scheduled sending of held back messages, if any. */
+	private volatile RetransmitScheduler.Timeout pendingFlush = null;
+	/** Hands the sending of held back messages to the event loop, see {@link #flushHeld()}. */
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			eventLoop().execute(new Runnable() {
+				public void run() {
+					flushHeld();
+				}
+			});
+		}
+	};
+	/** Messages unpacked from a coalesced packet, not yet returned by receive(). */
+	private List<byte[]> unpackedMessages = new LinkedList<byte[]>();
+	/** Incoming connections that completed the handshake, until returned by accept(). */
+	private BlockingQueue<ConnectionImpl> acceptQueue = new LinkedBlockingQueue<ConnectionImpl>();
+	/** Incoming connections in the handshake, keyed by their remote end. */
+	private Map<String, ConnectionImpl> handshakes = new HashMap<String, ConnectionImpl>();
+	/** For an incoming connection in the handshake, the listening connection. */
+	private volatile ConnectionImpl listener = null;
+	/** For an incoming connection in the handshake, resends the SYN_ACK. */
+	private RetransmitScheduler.Timeout synAckTimer = null;
+	/** For an incoming connection in the handshake, gives it up. */
+	private RetransmitScheduler.Timeout handshakeTimer = null;
+	/** Fragments of a message not completely received yet, or null. */
+	private ByteArrayOutputStream partialMessage = null;
+	/** True if the partly received message is coalesced. */
+	private boolean partialCoalesced = false;
+	/** Set when the FIN of the remote end was acked as it arrived. */
+	private volatile boolean remoteFinAcked = false;
+	/** Set when this end offered compression in its SYN. */
+	private boolean compressionOffered = false;
+	/** Set when both ends agreed on compression. */
+	private volatile boolean compressing = false;
+	/** Compresses and decompresses frames, created when first needed. */
+	private FrameCompressor compressor = null;
+
+	/** A message passed to sendAsync(). */
+	private static class AsyncSend {
+		final byte[] data;
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		/** Bytes sent so far. */
+		int sent = 0;
+		/** Sequence number of the last packet of the message, once sent. */
+		int lastSeq;
+
+		AsyncSend(byte[] data) {
+			this.data = data;
+		}
+	}
+
+	/*
+	 * State of the asynchronous operations. Except for the event loop itself,
+	 * it is only touched by tasks on the event loop.
+	 */
+	/** Runs the asynchronous operations, chosen by the first one. */
+	private volatile ConnectionEventLoop eventLoop = null;
+	/** Set while a run of {@link #process()} is queued on the event loop. */
+	private final AtomicBoolean processQueued = new AtomicBoolean(false);
+	/** Messages waiting for room in the send window, in order. */
+	private LinkedList<AsyncSend> pendingSends = new LinkedList<AsyncSend>();
+	/** Messages sent, waiting to be acknowledged, in order. */
+	private LinkedList<AsyncSend> unackedSends = new LinkedList<AsyncSend>();
+	/** Calls to receiveAsync() waiting for a message, in order. */
+	private LinkedList<CompletableFuture<String>> pendingReceives = new LinkedList<CompletableFuture<String>>();
+	/** Completed when closeAsync() is done, null until it is called. */
+	private CompletableFuture<Void> closeFuture = null;
+	/** The FIN sent by closeAsync(). */
+	private KtnDatagram asyncFin = null;
+	/** Set when the ACK for {@link #asyncFin} has arrived. */
+	private boolean finAcked = false;
+	/** Resends the FIN, and gives up the close. */
+	private RetransmitScheduler.Timeout finTimer = null, closeTimer = null;
+	/** Checks every {@link #TIMEOUT} that ACKs still arrive. */
+	private RetransmitScheduler.Timeout progressTimer = null;
+	/** Set when an ACK slid the send window since the last check. */
+	private boolean progress = false;
 
 
 	/**
@@ -56,8 +170,6 @@ public class ConnectionImpl extends AbstractConnection {
 
 		this.myPort = myPort;
 		this.myAddress = getIPv4Address();
-
-		System.out.println(state);
 	}
 
 	public ConnectionImpl(String myAddress, int newPort, String remoteAddress, int remotePort) {
@@ -84,7 +196,9 @@ public class ConnectionImpl extends AbstractConnection {
 	}
 
 	/**
-	 * Establish a connection to a remote location.
+	 * Establish a connection to a remote location. The SYN is resent every
+	 * {@link #RETRANSMIT} milliseconds until answered, as a listener with a
+	 * full backlog drops it.
 	 * 
 	 * @param remoteAddress
 	 *            - the remote IP-address to connect to
@@ -98,133 +212,590 @@ public class ConnectionImpl extends AbstractConnection {
 	 */
 	public void connect(InetAddress remoteAddress, int remotePort) throws IOException,
 	SocketTimeoutException {
+		connect(remoteAddress, remotePort, null);
+	}
+
+	/**
+	 * Establish a connection to a remote location, and send a first message
+	 * with the SYN. The listener hands the message to the accepted connection
+	 * as the first result of receive(), so the remote application gets it
+	 * without waiting for another round trip. A message too long for one
+	 * packet is sent after the handshake instead, as by
+	 * {@link #send(String)}. The SYN also offers compression, if enabled, see
+	 * {@link AbstractConnection#setCompression(boolean, int)}; an empty
+	 * message is then sent after the handshake too.
+	 * 
+	 * @param remoteAddress
+	 *            - the remote IP-address to connect to
+	 * @param remotePort
+	 *            - the remote portnumber to connect to
+	 * @param message
+	 *            - the first message, or null to send none.
+	 * @throws IOException
+	 *             If there's an I/O error.
+	 * @throws java.net.SocketTimeoutException
+	 *             If timeout expires before connection is completed.
+	 * @see #connect(InetAddress, int)
+	 */
+	public void connect(InetAddress remoteAddress, int remotePort, String message)
+	throws IOException, SocketTimeoutException {
 		this.remoteAddress = remoteAddress.getHostAddress();
 		this.remotePort = remotePort;
 		KtnDatagram packet = constructInternalPacket(Flag.SYN);
-		try {
-			simplySendPacket(packet);
-		} catch (IOException e) {
-			System.out.println("ioexception");
-			e.printStackTrace();
-		} catch (ClException e) {
-			System.out.println("clexception");
-			e.printStackTrace();
+		int options = isCompression() ? OPTION_COMPRESSION : 0;
+		compressionOffered = options != 0;
+		byte[] data = message == null ? null : DataFrame.encodeText(message);
+		// Without data, a frame with options carries no message
+		boolean carried = data != null && data.length <= maxSegmentSize && (data.length > 0 || options == 0);
+		if (carried || options != 0) {
+			int flags = options != 0 ? DataFrame.OPTIONS : 0;
+			setPayload(packet, new DataFrame(flags, DataFrame.NO_ACK, options, carried ? data : new byte[0]).encode());
+		}
+		if (carried) {
+			data = null;
 		}
+		startReceiving();
 		state = State.SYN_SENT;
-		KtnDatagram received = receiveAck();
+		RetransmitScheduler.Timeout timer = sendRepeatedly(packet);
+		KtnDatagram received;
+		try {
+			received = receiveAck();
+		} finally {
+			timer.cancel();
+		}
 		if (received != null) {
 			this.remotePort = received.getSrc_port();
 			this.remoteAddress = received.getSrc_addr();
-			System.out.println("-------------------------------------\nremote adress is set to: " + this.remoteAddress+ "\nremote address for SYN_ACK packet is: "+received.getSrc_addr());
+			Log.writeToLog("Remote address is set to " + remoteAddress + ":" + remotePort, "ConnectionImpl");
 			state = State.SYN_RCVD;
 			if (received.getFlag() == Flag.SYN_ACK) {
+				synchronized (ackLock) {
+					// Before the ACK goes out, data may follow it at once
+					oldPacket = received;
+				}
 				sendAck(received, false);
 				state = State.ESTABLISHED;
 			}
 		} else {
 			throw new SocketTimeoutException(); 
 		}
+		if (data != null) {
+			send(data, 0, data.length);
+		}
 	}
 
 	/**
-	 * Listen for, and accept, incoming connections.
+	 * Listen for, and accept, incoming connections. Once listening, every SYN
+	 * starts a handshake on the receiving thread, so several run at once, and
+	 * connections are handed out in the order their handshakes completed. See
+	 * {@link AbstractConnection#setBacklog(int)}. The new connection gets a
+	 * random port of its own, or shares the port of this one, see
+	 * {@link AbstractConnection#setSharedPort(boolean)}.
 	 * 
 	 * @return A new ConnectionImpl-object representing the new connection.
 	 * @see Connection#accept()
 	 */
 	public Connection accept() throws IOException, SocketTimeoutException {
 		//throw new NotImplementedException();
-		System.out.println("accept");
 		state = State.LISTEN;
-		KtnDatagram packet;
+		startReceiving();
 
-		do {
-			packet = receivePacket(true);
-			System.out.println(packet);
-		} while (packet == null || packet.getFlag() != Flag.SYN);
-		
-		this.remoteAddress = packet.getSrc_addr();
-		this.remotePort = packet.getSrc_port();
-		state = State.SYN_RCVD;
-		ConnectionImpl connection = new ConnectionImpl(this.myAddress, getNewPort(), this.remoteAddress, this.remotePort);
-		connection.sendAck(packet, true);
+		while (true) {
+			try {
+				ConnectionImpl connection = acceptQueue.take();
+				Log.writeToLog("Accepted connection from " + connection.remoteAddress + ":" + connection.remotePort,
+						"ConnectionImpl");
+				return (Connection) connection;
+			} catch (InterruptedException e) { /* do nothing */
+			}
+		}
+	}
 
-		KtnDatagram ack = connection.receiveAck();
+	/**
+	 * Start the handshake for a SYN received while listening, unless the
+	 * backlog is full or the SYN is a resend. The SYN_ACK is resent by the
+	 * {@link RetransmitScheduler} until the handshake completes, or is given
+	 * up after {@link #TIMEOUT} milliseconds. A message carried by the SYN is
+	 * left for the first receive() on the new connection, see
+	 * {@link #connect(InetAddress, int, String)}.
+	 * 
+	 * @param syn
+	 *            - the SYN.
+	 */
+	private void admit(KtnDatagram syn) {
+		String key = demuxKey(syn.getSrc_addr(), syn.getSrc_port());
+		DataFrame first = null;
+		if (syn.getPayloadAsBytes() != null) {
+			if (!isValid(syn)) {
+				// Let the client resend it
+				DatagramLog.write(syn, "Dropped SYN with wrong checksum", "ConnectionImpl");
+				return;
+			}
+			try {
+				first = DataFrame.decode(syn);
+			} catch (IllegalArgumentException e) {
+				DatagramLog.write(syn, "Dropped SYN with broken payload", "ConnectionImpl");
+				return;
+			}
+		}
+		int offered = first != null ? first.getOptions() : 0;
+		if (first != null && first.hasOptions() && first.getData().length == 0) {
+			first = null;
+		}
+		ConnectionImpl connection;
+		synchronized (handshakes) {
+			if (handshakes.containsKey(key) || (isSharedPort() && isAttached(syn.getSrc_addr(), syn.getSrc_port()))) {
+				// Resent SYN, the SYN_ACK is already under way
+				return;
+			}
+			if (handshakes.size() + acceptQueue.size() >= backlog) {
+				DatagramLog.write(syn, "Backlog full, dropped SYN", "ConnectionImpl");
+				statistics.countSynDropped();
+				return;
+			}
+			int port = isSharedPort() ? myPort : getNewPort();
+			connection = new ConnectionImpl(this.myAddress, port, syn.getSrc_addr(), syn.getSrc_port());
+			connection.listener = this;
+			handshakes.put(key, connection);
+		}
+		connection.setSendWindowSize(getSendWindowSize());
+		connection.setDuplicateAckThreshold(getDuplicateAckThreshold());
+		connection.setDelayedAck(getDelayedAckPackets(), getDelayedAckTimeout());
+		connection.setMaxSegmentSize(getMaxSegmentSize());
+		connection.setCoalescing(isCoalescing(), getCoalesceTimeout(), getCoalesceThreshold());
+		connection.setReceiveWindow(getReceiveWindow());
+		connection.setTransport(getTransport());
+		connection.setCrc32c(isCrc32c());
+		connection.setCompression(isCompression(), getCompressionThreshold());
+		connection.setTimeWait(getTimeWait());
+		// Shown on every frame and ACK of the connection, see DataFrame.COMPRESSING
+		connection.compressing = isCompression() && (offered & OPTION_COMPRESSION) != 0;
+		connection.oldPacket = syn;
+		connection.state = State.SYN_RCVD;
+		if (first != null) {
+			connection.unpackedMessages.add(first.getData());
+		}
+		try {
+			if (isSharedPort()) attach(connection);
+			connection.startReceiving();
+		} catch (IOException e) {
+			Log.writeToLog("Could not receive for new connection: " + e.getMessage(), "ConnectionImpl");
+			abortHandshake(connection);
+			return;
+		}
 
-		if (ack != null) {
-			System.out.println("ACK is not null");
-			if (ack.getFlag() == Flag.ACK) {
-				System.out.println("accepted");
-				connection.state = State.ESTABLISHED;
-				state = State.LISTEN;
-				return (Connection) connection;
+		KtnDatagram synAck = connection.constructInternalPacket(Flag.SYN_ACK);
+		synAck.setAck(syn.getSeq_nr());
+		final ConnectionImpl pending = connection;
+		synchronized (handshakes) {
+			if (connection.listener == null) return;
+			connection.synAckTimer = connection.sendRepeatedly(synAck);
+			connection.handshakeTimer = RetransmitScheduler.getShared().schedule(new Runnable() {
+				public void run() {
+					abortHandshake(pending);
+				}
+			}, TIMEOUT);
+		}
+	}
+
+	/** Hand a connection whose handshake completed to accept(). */
+	private void established(ConnectionImpl connection) {
+		synchronized (handshakes) {
+			if (connection.listener == null) return;
+			endHandshake(connection);
+			connection.state = State.ESTABLISHED;
+			acceptQueue.add(connection);
+		}
+	}
+
+	/** Give up a handshake, releasing the port or table entry of the connection. */
+	private void abortHandshake(ConnectionImpl connection) {
+		synchronized (handshakes) {
+			if (connection.listener == null) return;
+			endHandshake(connection);
+		}
+		Log.writeToLog("Handshake with " + connection.remoteAddress + ":" + connection.remotePort
+				+ " timed out", "ConnectionImpl");
+		statistics.countHandshakeTimeout();
+		connection.stopReceiving();
+	}
+
+	/** Forget a handshake, must hold the lock of {@link #handshakes}. */
+	private void endHandshake(ConnectionImpl connection) {
+		handshakes.remove(demuxKey(connection.remoteAddress, connection.remotePort));
+		connection.listener = null;
+		if (connection.synAckTimer != null) connection.synAckTimer.cancel();
+		if (connection.handshakeTimer != null) connection.handshakeTimer.cancel();
+	}
+
+	/**
+	 * Handle SYNs while listening, and the ACK completing the handshake of an
+	 * incoming connection, as they arrive. A data packet completes the
+	 * handshake as well, as it shows the ACK was sent. Data packets are
+	 * ordered and acked as they arrive, see {@link #arrived(KtnDatagram)}.
+	 */
+	protected boolean intercept(KtnDatagram packet) {
+		if (packet.getFlag() == Flag.SYN && state == State.LISTEN) {
+			admit(packet);
+			return true;
+		}
+		ConnectionImpl pending = listener;
+		if (pending != null) {
+			if (packet.getFlag() == Flag.ACK) {
+				pending.established(this);
+				return true;
+			} else if (packet.getFlag() == Flag.NONE) {
+				pending.established(this);
+			}
+		}
+		if (packet.getFlag() == Flag.NONE) {
+			arrived(packet);
+			return true;
+		}
+		if (packet.getFlag() == Flag.ACK && compressionOffered && !compressing && !isGhostPacket(packet)) {
+			checkCompressionAccepted(packet);
+		}
+		if (packet.getFlag() == Flag.FIN && state == State.ESTABLISHED && isValid(packet) && !isGhostPacket(packet)) {
+			// The data before it is all buffered, so the remote end need not
+			// wait for the application to read it. Still queued for receive().
+			try {
+				sendAck(packet, false);
+				remoteFinAcked = true;
+			} catch (IOException e) {
+				Log.writeToLog("Could not ack FIN: " + e.getMessage(), "ConnectionImpl");
 			}
 		}
-		throw new SocketTimeoutException();
+		return false;
 	}
 
 	/**
-	 * Send a message from the application.
+	 * Take a data packet in on the receiving thread. Packets in order are
+	 * queued for the application, packets arriving ahead of a missing one are
+	 * buffered until the gap is filled, and the acks report them as
+	 * selectively acked, see {@link AckOptions}. Packets in order are not
+	 * acked at once, see {@link AbstractConnection#setDelayedAck(int, long)},
+	 * so that one ACK can cover several packets or ride on the next message
+	 * sent.<br>
+	 * <br>
+	 * An ack thus means the packet is buffered, and every ack advertises the
+	 * room left, see {@link AbstractConnection#setReceiveWindow(int)}. Packets
+	 * for which there is no room are dropped unacked, and answered with an ACK
+	 * repeating the window.
+	 * 
+	 * @param packet
+	 *            - a data packet.
+	 */
+	private void arrived(KtnDatagram packet) {
+		if (isGhostPacket(packet)) {
+			DatagramLog.write(packet, "Dropped packet from " + packet.getSrc_addr() + ":" + packet.getSrc_port()
+					+ ", expected " + remoteAddress + ":" + remotePort, "ConnectionImpl");
+			return;
+		}
+		try {
+			synchronized (ackLock) {
+				boolean valid = isValid(packet);
+				if (valid && compressionOffered && !compressing) {
+					checkCompressionAccepted(packet);
+				}
+				if (!valid) {
+					if (oldPacket != null) {
+						DatagramLog.write(packet, "Wrong checksum", "ConnectionImpl");
+						sendCumulativeAck();
+					}
+				} else if ((isValidSeq_nr(packet) || isEarlySeq_nr(packet)) && getReceiveWindowSpace() == 0) {
+					DatagramLog.write(packet, "Receive window full, dropped packet", "ConnectionImpl");
+					statistics.countReceiveWindowDrop();
+					sendCumulativeAck();
+				} else if (isValidSeq_nr(packet)) {
+					boolean filledGap = !reorderBuffer.isEmpty();
+					oldPacket = packet;
+					queueData(packet);
+					releaseBufferedPackets();
+					if (filledGap) {
+						sendCumulativeAck();
+					} else {
+						delayAck(DataFrame.isPush(packet));
+					}
+				} else if (isEarlySeq_nr(packet)) {
+					DatagramLog.write(packet, "Buffering early packet", "ConnectionImpl");
+					reorderBuffer.put(packet.getSeq_nr(), packet);
+					sendCumulativeAck();
+				} else {
+					DatagramLog.write(packet, "Wrong sequence number", "ConnectionImpl");
+					sendCumulativeAck();
+				}
+			}
+		} catch (IOException e) {
+			Log.writeToLog("Could not ack data packet: " + e.getMessage(), "ConnectionImpl");
+		}
+	}
+
+	/**
+	 * The room left counts the packets buffered ahead of a missing one as
+	 * well.
+	 */
+	protected int getReceiveWindowSpace() {
+		return Math.max(super.getReceiveWindowSpace() - reorderBuffer.size(), 0);
+	}
+
+	/**
+	 * Send a message from the application. The message is sent right away if
+	 * the send window has room, otherwise this blocks until enough ACKs have
+	 * arrived. It does not wait for the message itself to be acknowledged;
+	 * {@link #close()} waits for all outstanding messages.<br>
+	 * <br>
+	 * Messages longer than the maximum segment size, see
+	 * {@link AbstractConnection#setMaxSegmentSize(int)}, are split into
+	 * fragments with consecutive sequence numbers, each acked and resent on
+	 * its own. Short messages may be held back and sent together with the
+	 * following ones, see {@link AbstractConnection#setCoalescing(boolean)}.
 	 * 
 	 * @param msg
 	 *            - the String to be sent.
 	 * @throws ConnectException
-	 *             If no connection exists.
+	 *             If no connection exists, or it was lost while waiting for
+	 *             room in the window.
 	 * @throws IOException
 	 *             If no ACK was received.
-	 * @see AbstractConnection#sendDataPacketWithRetransmit(KtnDatagram)
+	 * @see AbstractConnection#sendDataPacketPipelined(KtnDatagram)
 	 * @see no.ntnu.fp.net.co.Connection#send(String)
 	 */
 	public void send(String msg) throws ConnectException, IOException {
-		System.out.println("sendmethod");
+		byte[] data = DataFrame.encodeText(msg);
+		send(data, 0, data.length);
+	}
+
+	/**
+	 * Send a binary message, see {@link #send(String)}.
+	 * 
+	 * @see no.ntnu.fp.net.co.Connection#send(ByteBuffer)
+	 */
+	public void send(ByteBuffer msg) throws ConnectException, IOException {
+		if (msg.hasArray()) {
+			send(msg.array(), msg.arrayOffset() + msg.position(), msg.remaining());
+			msg.position(msg.limit());
+		} else {
+			byte[] data = new byte[msg.remaining()];
+			msg.get(data);
+			send(data, 0, data.length);
+		}
+	}
+
+	/**
+	 * Send a binary message, see {@link #send(String)}.
+	 * 
+	 * @see no.ntnu.fp.net.co.Connection#send(byte[], int, int)
+	 */
+	public void send(byte[] msg, int offset, int length) throws ConnectException, IOException {
+		if(state != State.ESTABLISHED)
+			throw new ConnectException("Connection not established");
+		if (offset < 0 || length < 0 || offset + length > msg.length)
+			throw new IndexOutOfBoundsException();
+
+		sendLock.lock();
+		try {
+			// Nagle: hold back only while earlier data is unacknowledged
+			if (coalescing && fitsInPacket(length)
+					&& (!coalesceQueue.isEmpty() || !sendWindow.isEmpty())) {
+				hold(msg, offset, length);
+				if (coalescedBytes >= coalesceThreshold) {
+					flushCoalesced();
+				} else {
+					scheduleFlush();
+				}
+			} else {
+				flushCoalesced();
+				sendSegments(msg, offset, length, 0);
+			}
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	/**
+	 * Send several messages, packing them into as few data packets as the
+	 * maximum segment size allows, whether coalescing is enabled or not.
+	 * 
+	 * @see no.ntnu.fp.net.co.Connection#sendAll(List)
+	 */
+	public void sendAll(List<String> msgs) throws ConnectException, IOException {
 		if(state != State.ESTABLISHED)
 			throw new ConnectException("Connection not established");
 
-		KtnDatagram packet = constructDataPacket(msg);
-		
-		KtnDatagram received = sendDataPacketWithRetransmit(packet);
-		
+		sendLock.lock();
+		try {
+			for (String msg : msgs) {
+				byte[] data = DataFrame.encodeText(msg);
+				if (fitsInPacket(data.length)) {
+					hold(data, 0, data.length);
+				} else {
+					flushCoalesced();
+					sendSegments(data, 0, data.length, 0);
+				}
+			}
+			flushCoalesced();
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	/** @return true if a message of this length can share a packet with others. */
+	private boolean fitsInPacket(int length) {
+		return DataFrame.PACKED_HEADER_LENGTH + length <= maxSegmentSize;
+	}
+
+	/** Add a message to the held back ones, sending those first if it would not fit. */
+	private void hold(byte[] msg, int offset, int length) throws IOException {
+		if (coalescedBytes + DataFrame.PACKED_HEADER_LENGTH + length > maxSegmentSize) {
+			flushCoalesced();
+		}
+		byte[] copy = new byte[length];
+		System.arraycopy(msg, offset, copy, 0, length);
+		coalesceQueue.add(copy);
+		coalescedBytes += DataFrame.PACKED_HEADER_LENGTH + length;
+	}
+
+	/** Send the held back messages, several of them in one coalesced packet. */
+	private void flushCoalesced() throws IOException {
+		sendLock.lock();
+		try {
+			if (pendingFlush != null) {
+				pendingFlush.cancel();
+				pendingFlush = null;
+			}
+			if (coalesceQueue.isEmpty()) {
+				return;
+			}
+			List<byte[]> msgs = coalesceQueue;
+			coalesceQueue = new ArrayList<byte[]>();
+			coalescedBytes = 0;
+			if (msgs.size() == 1) {
+				sendSegments(msgs.get(0), 0, msgs.get(0).length, 0);
+			} else {
+				byte[] data = DataFrame.pack(msgs);
+				sendSegments(data, 0, data.length, DataFrame.COALESCED);
+				statistics.countCoalescedPacket(msgs.size());
+			}
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	/**
+	 * Make sure the held back messages are sent within {@link #coalesceTimeout}.
+	 * The timer only hands the sending to the event loop of the connection, as
+	 * the scheduler thread runs the timers of every connection and must not
+	 * wait. Must be called holding {@link #sendLock}.
+	 */
+	private void scheduleFlush() {
+		if (pendingFlush != null) {
+			return;
+		}
+		pendingFlush = RetransmitScheduler.getShared().schedule(flushTask, coalesceTimeout);
+	}
+
+	/**
+	 * Send the held back messages without waiting. While a sending thread
+	 * holds {@link #sendLock}, this tries again after {@link #coalesceTimeout}.
+	 * While the send window is full, the messages stay held, and the ACK that
+	 * makes room sends them, see {@link #acknowledged(KtnDatagram)}. The held
+	 * back messages always fit in one packet, so this never waits for an ACK.
+	 * Runs on the event loop.
+	 */
+	private void flushHeld() {
+		if (!sendLock.tryLock()) {
+			RetransmitScheduler.getShared().schedule(flushTask, coalesceTimeout);
+			return;
+		}
+		try {
+			if (!coalesceQueue.isEmpty() && !sendWindow.isFull()) {
+				flushCoalesced();
+			}
+		} catch (IOException e) {
+			Log.writeToLog("Could not send coalesced messages: " + e.getMessage(), "ConnectionImpl");
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	/**
+	 * Send a message as data packets of at most {@link #maxSegmentSize}
+	 * bytes, waiting for room in the send window as needed.
+	 * 
+	 * @param flags
+	 *            - frame flags to set on every fragment.
+	 */
+	private void sendSegments(byte[] msg, int offset, int length, int flags) throws IOException {
+		int end = offset + length;
+		do {
+			int size = Math.min(maxSegmentSize, end - offset);
+			int fragmentFlags = offset + size < end ? flags | DataFrame.MORE_FRAGMENTS : flags;
+			byte[] fragment = new byte[size];
+			System.arraycopy(msg, offset, fragment, 0, size);
+			offset += size;
+
+			while (sendWindow.isFull()) {
+				awaitAck();
+			}
+			if (sendWindow.isNearlyFull()) fragmentFlags |= DataFrame.PUSH;
+			KtnDatagram packet;
+			synchronized (ackLock) {
+				packet = constructDataPacket(frame(fragmentFlags, fragment));
+			}
+			sendDataPacketPipelined(packet);
+		} while (offset < end);
+	}
+
+	/**
+	 * Wait for all outstanding data packets to be acknowledged.
+	 * 
+	 * @throws ConnectException
+	 *             If the connection was lost while waiting.
+	 */
+	private void flush() throws ConnectException, IOException {
+		while (!sendWindow.isEmpty()) {
+			awaitAck();
+		}
+	}
+
+	/**
+	 * Wait for the next ACK. ACKs slide the send window as they arrive, see
+	 * {@link AbstractConnection#receiveAck()}, and the packets in the window
+	 * are retransmitted by their timers meanwhile, so this only waits, and a
+	 * missing ACK counts as a failed resend.
+	 * 
+	 * @throws ConnectException
+	 *             If no ACK has arrived after {@link #MAXRESENDS} timeouts.
+	 */
+	private void awaitAck() throws ConnectException, IOException {
+		KtnDatagram received = receiveAck();
+
 		if(received == null) {
-			System.out.println("no ACK received, seq_nr: " + packet.getSeq_nr());
+			Log.writeToLog("No ACK received, outstanding: " + sendWindow.size() + ", try no. " + resends,
+					"ConnectionImpl");
 			if(resends < MAXRESENDS) {
-				System.out.println("resending, try no. " + resends);
 				resends++;
-				nextSequenceNo--;
-				send(msg);
-				resends = 0;
-				return;
 			}
 			else {
 				// Connection is lost
+				sendWindow.clear();
 				state = State.CLOSED;
 				throw new ConnectException("Connection lost");
 			}
+		} else if (received.getFlag() == Flag.NONE || received.getFlag() == Flag.ACK) {
+			// Applied already; even a duplicate shows the remote end is alive
+			resends = 0;
 		} else {
-			if (!isValid(received)){
-				System.out.println("Checksum on ack not valid");
-				nextSequenceNo--;
-				send(msg); //kaller seg selv. hvis vi fortsatt ikke mottar ACK, return
-				return;
-			} else if (received.getAck() < nextSequenceNo-1) {
-				System.out.println("recieved ack for previous packet, renseding. ");
-				nextSequenceNo--;
-				send(msg);
-				return;
-			} else if (received.getAck() > nextSequenceNo-1) {
-				System.out.println("Requested sequence number to high. ");
-				nextSequenceNo--;
-				send(msg); //kaller seg selv. hvis vi fortsatt ikke mottar ACK, return
-				return;
-			} else {
-				oldPacket = received;
-				System.out.println("Ack was received. " + received.getAck());
-				System.out.println("Last received packet seq nr: " + received.getSeq_nr());
-			}
+			DatagramLog.write(received, "Expected ACK, got " + received.getFlag(), "ConnectionImpl");
 		}
 	}
 
 	/**
-	 * Wait for incoming data.
+	 * Wait for incoming data. The data packets have been put in order and
+	 * acked as they arrived, see {@link #arrived(KtnDatagram)}.<br>
+	 * <br>
+	 * A message that was split into fragments is returned once all of them
+	 * have arrived.
 	 * 
 	 * @return The received data's payload as a String.
 	 * @see Connection#receive()
@@ -233,54 +804,147 @@ public class ConnectionImpl extends AbstractConnection {
 	 */
 	
 	public String receive() throws ConnectException, IOException {
-		System.out.println("recievemethod");
+		return DataFrame.decodeText(receiveMessage());
+	}
+
+	/**
+	 * Receive a binary message, see {@link #receive()}.
+	 * 
+	 * @see no.ntnu.fp.net.co.Connection#receive(ByteBuffer)
+	 */
+	public int receive(ByteBuffer dst) throws ConnectException, IOException {
+		byte[] message = receiveMessage();
+		dst.put(message, 0, Math.min(message.length, dst.remaining()));
+		return message.length;
+	}
+
+	/**
+	 * Wait for the next message, reassembling it if it was fragmented.
+	 * 
+	 * @return The bytes of the message.
+	 */
+	private byte[] receiveMessage() throws ConnectException, IOException {
+		return receiveMessage(true);
+	}
+
+	/**
+	 * Take the next message, reassembling it if it was fragmented. The
+	 * fragments received so far are kept when no more are queued.
+	 * 
+	 * @param wait
+	 *            - false to return null instead of waiting for packets.
+	 * @return The bytes of the message, or null.
+	 */
+	private byte[] receiveMessage(boolean wait) throws ConnectException, IOException {
+		while (unpackedMessages.isEmpty()) {
+			DataFrame frame = receiveFrame(wait);
+			if (frame == null) {
+				return null;
+			}
+			boolean coalesced = frame.isCoalesced();
+			byte[] data = frame.getData();
+			if (partialMessage != null || frame.hasMoreFragments()) {
+				if (partialMessage == null) {
+					partialMessage = new ByteArrayOutputStream();
+					partialCoalesced = coalesced;
+				}
+				partialMessage.write(data, 0, data.length);
+				if (frame.hasMoreFragments()) {
+					continue;
+				}
+				data = partialMessage.toByteArray();
+				coalesced = partialCoalesced;
+				partialMessage = null;
+			}
+			if (!coalesced) {
+				return data;
+			}
+			unpackedMessages.addAll(DataFrame.unpack(data));
+		}
+		return unpackedMessages.remove(0);
+	}
+
+	/**
+	 * Wait for the next data packet in order. Taking it frees room in the
+	 * receive window; when the room reaches half the window, an ACK tells the
+	 * remote end, which may have stopped sending.
+	 * 
+	 * @param wait
+	 *            - false to return null instead of waiting for a packet.
+	 * @return The frame of the packet, or null.
+	 */
+	private DataFrame receiveFrame(boolean wait) throws ConnectException, IOException {
 		KtnDatagram packet;
 		try {
-			packet = receivePacket(false);
+			packet = wait ? receivePacket(false) : pollExternal();
 		} catch (EOFException e) {
 			state = State.CLOSE_WAIT;
 			throw new EOFException();
 		}
 
 		if (packet == null) {
-			if (receives < MAXRECEIVES) {
-				System.out.println("Still no packet? This is my " + receives + " try!");
+			if (!wait) {
+				return null;
+			} else if (receives < MAXRECEIVES) {
+				Log.writeToLog("No packet received, try no. " + receives, "ConnectionImpl");
 				receives++;
-				String msg = receive();
+				DataFrame frame = receiveFrame(wait);
 				receives = 0;
-				return msg;
+				return frame;
 			} else {
 				state = State.CLOSED;
 				throw new ConnectException();
 			}
+		}
+		synchronized (ackLock) {
+			// No more data follows a FIN
+			if (getReceiveWindowSpace() == (receiveWindow + 1) / 2 && oldPacket != null && !remoteFinAcked) {
+				try {
+					sendCumulativeAck();
+				} catch (IOException e) {
+					Log.writeToLog("Could not send window update: " + e.getMessage(), "ConnectionImpl");
+				}
+			}
+		}
+		DataFrame frame = DataFrame.decode(packet);
+		if (frame.isCompressed()) {
+			// Whether or not compression was agreed, there is no other way to read it
+			byte[] data = compressor().decompress(frame.getData());
+			frame = new DataFrame(frame.getFlags() & ~DataFrame.COMPRESSED, frame.getAck(), frame.getWindow(), data);
+		}
+		return frame;
+	}
 
-		} else if (isGhostPacket(packet)){
-			System.out.println("If you see a little ghost walking down the street, what'cha gonna' do? CALL THE GHOST-BUSTERS! duuu-du-duuu-du-dudeldu");
-			System.out.println("------------------------------------------------------------\n" +
-					"Address was expected to be: "+ this.remoteAddress + " but was: " + packet.getSrc_addr() + 
-					"\nPort was expected to be: " + this.remotePort + " but was: " + packet.getSrc_port() +
-					"\n------------------------------------------------------------");
-			return receive();
+	/**
+	 * Start compressing once a packet of the listener shows that it accepted
+	 * the compression offered, see {@link DataFrame#COMPRESSING}. Until then,
+	 * the data goes uncompressed.
+	 * 
+	 * @param packet
+	 *            - an ACK or a valid data packet.
+	 */
+	private void checkCompressionAccepted(KtnDatagram packet) {
+		boolean accepted;
+		if (packet.getFlag() == Flag.ACK) {
+			accepted = AckOptions.decode(packet).isCompressing();
 		} else {
-			if (isValid(packet)) {
-				if (isValidSeq_nr(packet)) {
-					sendAck(packet, false);
-					oldPacket = packet;
-					return (String) packet.getPayload();
-				} else {
-					System.out.println("Wrong sequence number");
-					sendAck(oldPacket, false);
-					return receive();
-				}
-			} else {
-				if (oldPacket != null) {
-					System.out.println("Wrong checksum");
-					sendAck(oldPacket, false);
-					return receive();
-				}
+			try {
+				accepted = DataFrame.decode(packet).isCompressing();
+			} catch (IllegalArgumentException e) {
+				return;
 			}
 		}
-		return receive();
+		if (accepted) {
+			compressing = true;
+		}
+	}
+
+	/** The compressor of this connection, created on first use. */
+	private FrameCompressor compressor() {
+		synchronized (ackLock) {
+			if (compressor == null) compressor = new FrameCompressor(statistics);
+			return compressor;
+		}
 	}
 
 
@@ -294,30 +958,32 @@ public class ConnectionImpl extends AbstractConnection {
 		switch (state) {
 		case SYN_RCVD:
 		case ESTABLISHED:
-			KtnDatagram packet = constructInternalPacket(Flag.FIN);
-			System.out.println("sending fin flag with snr. " + packet.getSeq_nr());
+			sendLock.lock();
 			try {
-				simplySendPacket(packet);
-			} catch (IOException e) {
-				System.out.println("ioexception");
-				e.printStackTrace();
-			} catch (ClException e) {
-				System.out.println("clexception");
-				e.printStackTrace();
+				flushCoalesced();
+				flush();
+			} finally {
+				sendLock.unlock();
+			}
+			synchronized (ackLock) {
+				if (unackedPackets > 0) sendCumulativeAck();
 			}
 			state = State.FIN_WAIT_1;
-			KtnDatagram ack = receiveAck();
-			if (ack != null && ack.getFlag() == Flag.ACK) {
-				state = State.FIN_WAIT_2;
-			} else {
+			KtnDatagram fin = sendFin();
+			if (fin == null) {
 				throw new IOException("Didn't receive ack");
+			} else if (fin.getFlag() == Flag.ACK) {
+				state = State.FIN_WAIT_2;
+				do {
+					fin = receivePacket(true);
+				} while (fin != null && fin.getFlag() != Flag.FIN);
 			}
-			KtnDatagram fin = receivePacket(true);
-			if (fin != null && fin.getFlag() == Flag.FIN) {
+			// else the ack got lost, but the peer's FIN shows it got ours
+			if (fin != null) {
 				sendAck(fin, false);
 				state = State.TIME_WAIT;
 				try {
-					Thread.currentThread().sleep(1000);
+					Thread.sleep(timeWait);
 				} catch (InterruptedException e) {
 					e.printStackTrace();
 				}
@@ -328,19 +994,514 @@ public class ConnectionImpl extends AbstractConnection {
 			state = State.CLOSED;
 			break;
 		case CLOSE_WAIT:
-			sendAck(oldPacket, false);
-			try {
-				simplySendPacket(constructInternalPacket(Flag.FIN));
-			} catch (ClException e) {
-				e.printStackTrace();
-			}
+			if (!remoteFinAcked) sendAck(disconnectRequest != null ? disconnectRequest : oldPacket, false);
 			state = State.LAST_ACK;
-			KtnDatagram closeAck = receiveAck();
+			KtnDatagram closeAck = sendFin();
 			if (closeAck != null && closeAck.getFlag() == Flag.ACK){
 				state = State.CLOSED;
 			}
 			break;
 		}
+		release();
+	}
+
+	/** Stop the timers and the receiving of a closed connection. */
+	private void release() {
+		synchronized (ackLock) {
+			cancelDelayedAck();
+			if (compressor != null) {
+				compressor.end();
+				compressor = null;
+			}
+		}
+		sendLock.lock();
+		try {
+			if (pendingFlush != null) {
+				pendingFlush.cancel();
+				pendingFlush = null;
+			}
+		} finally {
+			sendLock.unlock();
+		}
+		stopReceiving();
+	}
+
+	/**
+	 * Send a FIN and wait for its ACK. The FIN is retransmitted every
+	 * {@link #RETRANSMIT} milliseconds, as the peer may still be busy with the
+	 * last data packets when it is first sent.<br>
+	 * <br>
+	 * In FIN_WAIT_1 a FIN from the peer is returned, as the peer only sends it
+	 * after acking ours. In LAST_ACK retransmitted FINs from the peer, whose
+	 * ACK got lost, are acked again while waiting.
+	 * 
+	 * @return The ACK for the FIN, the FIN of the peer, or null if none
+	 *         arrived before the timeout.
+	 */
+	private KtnDatagram sendFin() throws IOException {
+		KtnDatagram packet = constructInternalPacket(Flag.FIN);
+		DatagramLog.write(packet, "Sending FIN", "ConnectionImpl");
+
+		RetransmitScheduler.Timeout timer = sendRepeatedly(packet);
+		try {
+			KtnDatagram ack;
+			while ((ack = receiveAck()) != null) {
+				if (ack.getFlag() == Flag.FIN && state == State.FIN_WAIT_1) {
+					return ack;
+				} else if (ack.getFlag() == Flag.FIN) {
+					sendAck(ack, false);
+				} else if (ack.getFlag() == Flag.ACK && ack.getAck() == packet.getSeq_nr()) {
+					return ack;
+				}
+				// else an ACK with a corrupted ack number
+			}
+			return null;
+		} finally {
+			timer.cancel();
+		}
+	}
+
+	/**
+	 * Send a message without waiting. The message goes out as soon as the
+	 * send window has room, after the messages passed before it. When
+	 * coalescing is enabled, short messages waiting for room together are
+	 * packed into one packet, see {@link AbstractConnection#setCoalescing(boolean)}.
+	 * 
+	 * @see AsyncConnection#sendAsync(String)
+	 */
+	public CompletableFuture<Void> sendAsync(String msg) {
+		final AsyncSend send = new AsyncSend(DataFrame.encodeText(msg));
+		submit(new Runnable() {
+			public void run() {
+				if (state != State.ESTABLISHED || closeFuture != null) {
+					send.future.completeExceptionally(new ConnectException("Connection not established"));
+				} else {
+					pendingSends.add(send);
+				}
+			}
+		});
+		return send.future;
+	}
+
+	/**
+	 * Receive a message without waiting, acking as described in
+	 * {@link #receive()}.
+	 * 
+	 * @see AsyncConnection#receiveAsync()
+	 */
+	public CompletableFuture<String> receiveAsync() {
+		final CompletableFuture<String> future = new CompletableFuture<String>();
+		submit(new Runnable() {
+			public void run() {
+				if (state == State.CLOSED) {
+					future.completeExceptionally(new ConnectException("Connection closed"));
+				} else {
+					pendingReceives.add(future);
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Close the connection without waiting, going through the same states as
+	 * {@link #close()}. The FIN is only sent once all messages passed to
+	 * {@link #sendAsync(String)} are acknowledged.
+	 * 
+	 * @see AsyncConnection#closeAsync()
+	 */
+	public CompletableFuture<Void> closeAsync() {
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		submit(new Runnable() {
+			public void run() {
+				if (closeFuture == null) {
+					closeFuture = future;
+					return;
+				}
+				// Closed already, pass on the outcome
+				closeFuture.whenComplete(new BiConsumer<Void, Throwable>() {
+					public void accept(Void result, Throwable failure) {
+						if (failure != null) future.completeExceptionally(failure);
+						else future.complete(null);
+					}
+				});
+			}
+		});
+		return future;
+	}
+
+	/** Choose the event loop of the connection on first use. */
+	private ConnectionEventLoop eventLoop() {
+		if (eventLoop == null) {
+			synchronized (processQueued) {
+				if (eventLoop == null) eventLoop = ConnectionEventLoop.next();
+			}
+		}
+		return eventLoop;
+	}
+
+	/** Run an operation on the event loop, followed by {@link #process()}. */
+	private void submit(final Runnable operation) {
+		eventLoop().execute(new Runnable() {
+			public void run() {
+				operation.run();
+				process();
+			}
+		});
+	}
+
+	/**
+	 * Queue a run of {@link #process()}, unless one is queued already or no
+	 * asynchronous operation was ever started.
+	 */
+	private void wakeUp() {
+		ConnectionEventLoop loop = eventLoop;
+		if (loop != null && processQueued.compareAndSet(false, true)) {
+			loop.execute(new Runnable() {
+				public void run() {
+					processQueued.set(false);
+					process();
+				}
+			});
+		}
+	}
+
+	/** Wake the event loop for every packet queued, see {@link #wakeUp()}. */
+	protected void queued(KtnDatagram packet) {
+		wakeUp();
+	}
+
+	/**
+	 * Wake the event loop for every ack applied, see {@link #wakeUp()}, and
+	 * let the held back messages go, as the ACK may have made room for them.
+	 */
+	protected void acknowledged(KtnDatagram packet) {
+		wakeUp();
+		if (pendingFlush != null) {
+			eventLoop().execute(new Runnable() {
+				public void run() {
+					flushHeld();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Make as much progress with the asynchronous operations as the queued
+	 * packets allow, without waiting. Runs on the event loop.
+	 */
+	private void process() {
+		try {
+			processAcks();
+			sendPending();
+			completeSends();
+			deliverReceives();
+			advanceClose();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Note the acks applied to the send window as they arrived, and take the
+	 * ACK of the FIN from the queue.
+	 */
+	private void processAcks() throws IOException {
+		KtnDatagram ack;
+		while ((ack = pollInternal(Flag.ACK)) != null) {
+			if (!isValid(ack)) {
+				DatagramLog.write(ack, "Checksum on ack not valid", "ConnectionImpl");
+			} else if (asyncFin != null && ack.getAck() == asyncFin.getSeq_nr()) {
+				finAcked = true;
+			} else {
+				// Any answer shows the remote end is alive
+				progress = true;
+			}
+		}
+		if (pollAppliedAck() != null) {
+			progress = true;
+		}
+	}
+
+	/** Send waiting messages while the window has room. */
+	private void sendPending() throws IOException {
+		sendLock.lock();
+		try {
+			while (!pendingSends.isEmpty() && !sendWindow.isFull()) {
+				List<AsyncSend> batch = coalescable();
+				if (batch.size() > 1) {
+					List<byte[]> msgs = new ArrayList<byte[]>();
+					for (AsyncSend send : batch) {
+						msgs.add(send.data);
+					}
+					int flags = batch.size() == pendingSends.size() ? DataFrame.COALESCED | DataFrame.PUSH
+							: DataFrame.COALESCED;
+					KtnDatagram packet = sendFrame(flags, DataFrame.pack(msgs));
+					for (AsyncSend send : batch) {
+						pendingSends.removeFirst();
+						send.lastSeq = packet.getSeq_nr();
+						unackedSends.add(send);
+					}
+					statistics.countCoalescedPacket(batch.size());
+					continue;
+				}
+				AsyncSend send = pendingSends.getFirst();
+				int size = Math.min(maxSegmentSize, send.data.length - send.sent);
+				int flags = send.sent + size < send.data.length ? DataFrame.MORE_FRAGMENTS
+						: pendingSends.size() == 1 ? DataFrame.PUSH : 0;
+				KtnDatagram packet = sendFrame(flags, Arrays.copyOfRange(send.data, send.sent, send.sent + size));
+				send.sent += size;
+				if (send.sent == send.data.length) {
+					pendingSends.removeFirst();
+					send.lastSeq = packet.getSeq_nr();
+					unackedSends.add(send);
+				}
+			}
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	/** @return The waiting messages that fit in one packet together, if coalescing. */
+	private List<AsyncSend> coalescable() {
+		List<AsyncSend> batch = new ArrayList<AsyncSend>();
+		if (!coalescing) {
+			return batch;
+		}
+		int bytes = 0;
+		for (AsyncSend send : pendingSends) {
+			bytes += DataFrame.PACKED_HEADER_LENGTH + send.data.length;
+			if (send.sent > 0 || bytes > maxSegmentSize) {
+				break;
+			}
+			batch.add(send);
+		}
+		return batch;
+	}
+
+	/**
+	 * Send one data packet, taking along a pending ACK, and asking for the
+	 * ACK at once if the packet fills the send window.
+	 */
+	private KtnDatagram sendFrame(int flags, byte[] data) {
+		if (sendWindow.isNearlyFull()) flags |= DataFrame.PUSH;
+		KtnDatagram packet;
+		synchronized (ackLock) {
+			packet = constructDataPacket(frame(flags, data));
+		}
+		sendDataPacketPipelined(packet);
+		return packet;
+	}
+
+	/**
+	 * A data frame taking along the pending ack, and the receive window with
+	 * it. The data is compressed if that was agreed on and pays. Must be
+	 * called holding {@link #ackLock}.
+	 */
+	private DataFrame frame(int flags, byte[] data) {
+		if (compressing) {
+			flags |= DataFrame.COMPRESSING;
+			if (data.length >= compressionThreshold) {
+				byte[] compressed = compressor().compress(data);
+				if (compressed != null) {
+					flags |= DataFrame.COMPRESSED;
+					data = compressed;
+				}
+			}
+		}
+		int ack = piggybackAck();
+		int window = ack == DataFrame.NO_ACK ? 0 : getReceiveWindowSpace();
+		return new DataFrame(flags, ack, window, data);
+	}
+
+	/**
+	 * Complete the sends whose packets are all acknowledged, and watch for a
+	 * lost connection while any are outstanding.
+	 */
+	private void completeSends() {
+		while (!unackedSends.isEmpty() && sendWindow.isAcknowledged(unackedSends.getFirst().lastSeq)) {
+			unackedSends.removeFirst().future.complete(null);
+		}
+		if (sendWindow.isEmpty()) {
+			if (progressTimer != null) {
+				progressTimer.cancel();
+				progressTimer = null;
+			}
+			resends = 0;
+		} else if (progressTimer == null) {
+			progress = false;
+			progressTimer = RetransmitScheduler.getShared().scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					submit(new Runnable() {
+						public void run() {
+							checkProgress();
+						}
+					});
+				}
+			}, TIMEOUT, TIMEOUT);
+		}
+	}
+
+	/**
+	 * Count a {@link #TIMEOUT} without ACKs as a failed resend, and give the
+	 * connection up after {@link #MAXRESENDS}, as {@link #send(String)} does.
+	 */
+	private void checkProgress() {
+		if (progress || sendWindow.isEmpty()) {
+			progress = false;
+			resends = 0;
+		} else if (resends < MAXRESENDS) {
+			Log.writeToLog("No ACK received, outstanding: " + sendWindow.size(), "ConnectionImpl");
+			resends++;
+		} else {
+			fail(new ConnectException("Connection lost"));
+		}
+	}
+
+	/** Complete waiting receives with the messages queued. */
+	private void deliverReceives() throws IOException {
+		while (!pendingReceives.isEmpty()) {
+			byte[] message;
+			try {
+				message = receiveMessage(false);
+			} catch (EOFException e) {
+				message = null;
+			}
+			if (message == null) {
+				if (disconnectRequest != null && state != State.ESTABLISHED) {
+					// The remote end closed, and no data is left
+					while (!pendingReceives.isEmpty()) {
+						pendingReceives.removeFirst().completeExceptionally(new EOFException());
+					}
+				}
+				return;
+			}
+			pendingReceives.removeFirst().complete(DataFrame.decodeText(message));
+		}
+	}
+
+	/**
+	 * Take the close one step further: once all messages are acknowledged,
+	 * send the FIN, and then handle the ACK and FIN of the remote end.
+	 */
+	private void advanceClose() throws IOException {
+		if (closeFuture == null || closeFuture.isDone() || state == State.TIME_WAIT) {
+			return;
+		}
+		if (asyncFin == null) {
+			if (!pendingSends.isEmpty() || !sendWindow.isEmpty()) {
+				return;
+			}
+			switch (state) {
+			case SYN_RCVD:
+			case ESTABLISHED:
+				synchronized (ackLock) {
+					if (unackedPackets > 0) sendCumulativeAck();
+				}
+				state = State.FIN_WAIT_1;
+				break;
+			case CLOSE_WAIT:
+				if (!remoteFinAcked) sendAck(disconnectRequest != null ? disconnectRequest : oldPacket, false);
+				state = State.LAST_ACK;
+				break;
+			default:
+				state = State.CLOSED;
+				finishClose(null);
+				return;
+			}
+			asyncFin = constructInternalPacket(Flag.FIN);
+			DatagramLog.write(asyncFin, "Sending FIN", "ConnectionImpl");
+			finTimer = sendRepeatedly(asyncFin);
+			closeTimer = RetransmitScheduler.getShared().schedule(closeTimeout(), TIMEOUT);
+		}
+
+		KtnDatagram fin;
+		while ((fin = pollInternal(Flag.FIN)) != null) {
+			sendAck(fin, false);
+			if (state != State.LAST_ACK) {
+				// In FIN_WAIT_1 the FIN shows the peer got ours, even if its ACK was lost
+				finTimer.cancel();
+				closeTimer.cancel();
+				state = State.TIME_WAIT;
+				RetransmitScheduler.getShared().schedule(new Runnable() {
+					public void run() {
+						submit(new Runnable() {
+							public void run() {
+								state = State.CLOSED;
+								finishClose(null);
+							}
+						});
+					}
+				}, timeWait);
+				return;
+			}
+		}
+		if (finAcked) {
+			finAcked = false;
+			if (state == State.LAST_ACK) {
+				state = State.CLOSED;
+				finishClose(null);
+			} else if (state == State.FIN_WAIT_1) {
+				state = State.FIN_WAIT_2;
+				finTimer.cancel();
+				closeTimer.cancel();
+				closeTimer = RetransmitScheduler.getShared().schedule(closeTimeout(), TIMEOUT);
+			}
+		}
+	}
+
+	/** @return A task giving up the close, with an error if the FIN was not acked. */
+	private Runnable closeTimeout() {
+		return new Runnable() {
+			public void run() {
+				submit(new Runnable() {
+					public void run() {
+						if (closeFuture.isDone() || state == State.TIME_WAIT) return;
+						finishClose(state == State.FIN_WAIT_1 ? new IOException("Didn't receive ack") : null);
+					}
+				});
+			}
+		};
+	}
+
+	/** End the close started by closeAsync(). */
+	private void finishClose(IOException failure) {
+		if (finTimer != null) finTimer.cancel();
+		if (closeTimer != null) closeTimer.cancel();
+		if (progressTimer != null) progressTimer.cancel();
+		release();
+		for (CompletableFuture<String> receive : pendingReceives) {
+			receive.completeExceptionally(new ConnectException("Connection closed"));
+		}
+		pendingReceives.clear();
+		if (failure == null) closeFuture.complete(null);
+		else closeFuture.completeExceptionally(failure);
+	}
+
+	/** Fail all asynchronous operations, the connection is lost. */
+	private void fail(IOException failure) {
+		Log.writeToLog("Connection failed: " + failure, "ConnectionImpl");
+		state = State.CLOSED;
+		sendWindow.clear();
+		for (AsyncSend send : pendingSends) {
+			send.future.completeExceptionally(failure);
+		}
+		pendingSends.clear();
+		for (AsyncSend send : unackedSends) {
+			send.future.completeExceptionally(failure);
+		}
+		unackedSends.clear();
+		for (CompletableFuture<String> receive : pendingReceives) {
+			receive.completeExceptionally(failure);
+		}
+		pendingReceives.clear();
+		if (progressTimer != null) {
+			progressTimer.cancel();
+			progressTimer = null;
+		}
+		if (closeFuture != null && !closeFuture.isDone()) {
+			finishClose(failure);
+		}
 	}
 
 	/**
@@ -352,10 +1513,14 @@ public class ConnectionImpl extends AbstractConnection {
 	 * @return true if packet is free of errors, false otherwise.
 	 */
 	protected boolean isValid(KtnDatagram packet) {
-		return packet.getChecksum() == packet.calculateChecksum();
+		return Checksums.isValid(packet);
 	}
 	
 	private boolean isGhostPacket(KtnDatagram packet) {
+		if (isDemultiplexed()) {
+			// Only packets from the remote end are handed to this connection
+			return false;
+		}
 		if(packet.getSrc_addr() != null) {
 			return !(packet.getSrc_addr().equals(this.remoteAddress) && packet.getSrc_port() == (this.remotePort));
 		}
@@ -369,4 +1534,116 @@ public class ConnectionImpl extends AbstractConnection {
 		return true;
 	}
 
+	/**
+	 * A packet is early if one or more packets before it are still missing,
+	 * but it is close enough to be described by a selective ack.
+	 */
+	private boolean isEarlySeq_nr(KtnDatagram packet) {
+		if (oldPacket == null) {
+			return false;
+		}
+		int distance = packet.getSeq_nr() - oldPacket.getSeq_nr();
+		return distance > 1 && distance <= AckOptions.SACK_RANGE + 1;
+	}
+
+	/**
+	 * Move the packets that directly follow {@link #oldPacket} from the
+	 * reorder buffer to the receive queue, now that the gap before them is
+	 * filled.
+	 */
+	private void releaseBufferedPackets() {
+		reorderBuffer.headMap(oldPacket.getSeq_nr() + 1).clear();
+		KtnDatagram next;
+		while ((next = reorderBuffer.remove(oldPacket.getSeq_nr() + 1)) != null) {
+			queueData(next);
+			oldPacket = next;
+		}
+	}
+
+	/**
+	 * Ack the last packet received in order, and tell the sender which later
+	 * packets are already buffered so that only the holes are retransmitted.
+	 */
+	private void sendCumulativeAck() throws IOException {
+		synchronized (ackLock) {
+			cancelDelayedAck();
+			AckOptions options = new AckOptions();
+			options.setCompressing(compressing);
+			for (int seq : reorderBuffer.keySet()) {
+				options.addSelectiveAck(oldPacket.getSeq_nr(), seq);
+			}
+			sendAck(oldPacket, false, options);
+			statistics.countAckSent(unackedPackets);
+			unackedPackets = 0;
+		}
+	}
+
+	/**
+	 * Ack a data packet received in order. The ACK is sent once
+	 * {@link #delayedAckPackets} packets wait for it, or at once for a
+	 * packet the sender waits for the ACK of, otherwise it is scheduled to be
+	 * sent after {@link #delayedAckTimeout} milliseconds, if no outgoing
+	 * message takes it along before that.
+	 * 
+	 * @param push
+	 *            - true if the packet has {@link DataFrame#PUSH} set.
+	 */
+	private void delayAck(boolean push) throws IOException {
+		synchronized (ackLock) {
+			unackedPackets++;
+			if (push || unackedPackets >= delayedAckPackets || delayedAckTimeout == 0) {
+				sendCumulativeAck();
+			} else if (delayedAck == null) {
+				delayedAck = RetransmitScheduler.getShared().schedule(new Runnable() {
+					public void run() {
+						final Runnable timerTask = this;
+						// sendAck may block and retry, so not on the timer thread
+						RetransmitScheduler.getShared().offload(new Runnable() {
+							public void run() {
+								synchronized (ackLock) {
+									// Piggybacked or sent meanwhile
+									if (delayedAck == null || delayedAck.getTask() != timerTask) return;
+									try {
+										sendCumulativeAck();
+									} catch (IOException e) {
+										Log.writeToLog("Could not send delayed ACK: " + e.getMessage(), "ConnectionImpl");
+									}
+								}
+							}
+						});
+					}
+				}, delayedAckTimeout);
+			}
+		}
+	}
+
+	/** Forget the scheduled delayed ACK, the caller acks by other means. */
+	private void cancelDelayedAck() {
+		if (delayedAck != null) {
+			delayedAck.cancel();
+			delayedAck = null;
+		}
+	}
+
+	/**
+	 * The ack to carry on an outgoing data packet. Packets waiting for a
+	 * delayed ACK are covered by it, so the ACK is not sent.
+	 * 
+	 * @return The sequence number of the last data packet received in order,
+	 *         or {@link DataFrame#NO_ACK} if no data has been received.
+	 */
+	private int piggybackAck() {
+		synchronized (ackLock) {
+			if (oldPacket == null || oldPacket.getFlag() != Flag.NONE) {
+				return DataFrame.NO_ACK;
+			}
+			if (unackedPackets > 0) {
+				cancelDelayedAck();
+				statistics.countPiggybackedAck(unackedPackets);
+				unackedPackets = 0;
+			}
+			return oldPacket.getSeq_nr();
+		}
+	}
+
 }
@@ -9,8 +9,10 @@ import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
@@ -102,6 +104,33 @@ public class ConnectionImplOrginalFile extends AbstractConnection {
         throw new NotImplementedException();
     }
 
+    /**
+     * Send a binary message from the application.
+     * 
+     * @see no.ntnu.fp.net.co.Connection#send(ByteBuffer)
+     */
+    public void send(ByteBuffer msg) throws ConnectException, IOException {
+        throw new NotImplementedException();
+    }
+
+    /**
+     * Send a binary message from the application.
+     * 
+     * @see no.ntnu.fp.net.co.Connection#send(byte[], int, int)
+     */
+    public void send(byte[] msg, int offset, int length) throws ConnectException, IOException {
+        throw new NotImplementedException();
+    }
+
+    /**
+     * Send several messages from the application.
+     * 
+     * @see no.ntnu.fp.net.co.Connection#sendAll(List)
+     */
+    public void sendAll(List<String> msgs) throws ConnectException, IOException {
+        throw new NotImplementedException();
+    }
+
     /**
      * Wait for incoming data.
      * 
@@ -114,6 +143,15 @@ public class ConnectionImplOrginalFile extends AbstractConnection {
         throw new NotImplementedException();
     }
 
+    /**
+     * Wait for an incoming binary message.
+     * 
+     * @see Connection#receive(ByteBuffer)
+     */
+    public int receive(ByteBuffer dst) throws ConnectException, IOException {
+        throw new NotImplementedException();
+    }
+
     /**
      * Close the connection.
      * 
@@ -0,0 +1,281 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * Counters describing the traffic of one connection. The counters are
+ * updated by the sending thread as well as the retransmission timers, so all
+ * methods are synchronized.
+ * 
+ * @see AbstractConnection#getStatistics()
+ */
+public class ConnectionStatistics {
+
+    private int dataPacketsSent;
+    private int timeoutRetransmissions;
+    private int fastRetransmissions;
+    private int duplicateAcks;
+    private int acksSent;
+    private int piggybackedAcks;
+    private int acksSaved;
+    private int coalescedPackets;
+    private int coalescedMessages;
+    private int receiveQueueDrops;
+    private int synsDropped;
+    private int handshakeTimeouts;
+    private int receiveWindowDrops;
+    private int zeroWindows;
+    private int windowProbes;
+    private int compressedFrames;
+    private long compressionInput;
+    private long compressionOutput;
+    private long compressionNanos;
+    private long decompressionNanos;
+
+    public ConnectionStatistics() {
+        dataPacketsSent = 0;
+        timeoutRetransmissions = 0;
+        fastRetransmissions = 0;
+        duplicateAcks = 0;
+        acksSent = 0;
+        piggybackedAcks = 0;
+        acksSaved = 0;
+        coalescedPackets = 0;
+        coalescedMessages = 0;
+        receiveQueueDrops = 0;
+        synsDropped = 0;
+        handshakeTimeouts = 0;
+        receiveWindowDrops = 0;
+        zeroWindows = 0;
+        windowProbes = 0;
+        compressedFrames = 0;
+        compressionInput = 0;
+        compressionOutput = 0;
+        compressionNanos = 0;
+        decompressionNanos = 0;
+    }
+
+    /** Count a data packet put on the wire, first send or resend. */
+    synchronized void countDataPacketSent() {
+        dataPacketsSent++;
+    }
+
+    /** Count a resend caused by the retransmission timer. */
+    synchronized void countTimeoutRetransmission() {
+        timeoutRetransmissions++;
+    }
+
+    /** Count a resend caused by duplicate ACKs. */
+    synchronized void countFastRetransmission() {
+        fastRetransmissions++;
+    }
+
+    /** Count an ACK that did not advance the cumulative ack. */
+    synchronized void countDuplicateAck() {
+        duplicateAcks++;
+    }
+
+    /**
+     * Count a standalone ACK for received data.
+     * 
+     * @param covered
+     *            number of data packets it acknowledges that had not been
+     *            acked before, every one but the first saved an ACK.
+     */
+    synchronized void countAckSent(int covered) {
+        acksSent++;
+        if (covered > 1) acksSaved += covered - 1;
+    }
+
+    /**
+     * Count an ack carried by a data packet.
+     * 
+     * @param covered
+     *            number of received data packets it acknowledges that had not
+     *            been acked before, each saved an ACK.
+     */
+    synchronized void countPiggybackedAck(int covered) {
+        piggybackedAcks++;
+        acksSaved += covered;
+    }
+
+    /**
+     * Count a data packet carrying several messages.
+     * 
+     * @param messages
+     *            number of messages in the packet.
+     */
+    synchronized void countCoalescedPacket(int messages) {
+        coalescedPackets++;
+        coalescedMessages += messages;
+    }
+
+    /** Count a received packet dropped because its receive queue was full. */
+    synchronized void countReceiveQueueDrop() {
+        receiveQueueDrops++;
+    }
+
+    /** Count a SYN dropped because the backlog was full. */
+    synchronized void countSynDropped() {
+        synsDropped++;
+    }
+
+    /** Count an incoming connection given up before its handshake completed. */
+    synchronized void countHandshakeTimeout() {
+        handshakeTimeouts++;
+    }
+
+    /** Count a received data packet dropped because the receive window was full. */
+    synchronized void countReceiveWindowDrop() {
+        receiveWindowDrops++;
+    }
+
+    /** Count the remote end closing its receive window. */
+    synchronized void countZeroWindow() {
+        zeroWindows++;
+    }
+
+    /** Count a probe sent to find out if a closed receive window opened. */
+    synchronized void countWindowProbe() {
+        windowProbes++;
+    }
+
+    /**
+     * Count a try at compressing the data of a frame.
+     * 
+     * @param input
+     *            bytes before compression.
+     * @param output
+     *            bytes sent, the same as input if compression did not pay.
+     * @param nanos
+     *            time spent compressing.
+     */
+    synchronized void countCompression(int input, int output, long nanos) {
+        if (output < input) compressedFrames++;
+        compressionInput += input;
+        compressionOutput += output;
+        compressionNanos += nanos;
+    }
+
+    /** Count the time spent decompressing a received frame. */
+    synchronized void countDecompression(long nanos) {
+        decompressionNanos += nanos;
+    }
+
+    /** @return The number of data packets sent, including resends. */
+    public synchronized int getDataPacketsSent() {
+        return dataPacketsSent;
+    }
+
+    /** @return The number of data packets resent by the retransmission timer. */
+    public synchronized int getTimeoutRetransmissions() {
+        return timeoutRetransmissions;
+    }
+
+    /** @return The number of data packets resent after duplicate ACKs. */
+    public synchronized int getFastRetransmissions() {
+        return fastRetransmissions;
+    }
+
+    /** @return The number of data packets resent for any reason. */
+    public synchronized int getRetransmissions() {
+        return timeoutRetransmissions + fastRetransmissions;
+    }
+
+    /** @return The number of duplicate ACKs received. */
+    public synchronized int getDuplicateAcks() {
+        return duplicateAcks;
+    }
+
+    /** @return The number of standalone ACKs sent for received data. */
+    public synchronized int getAcksSent() {
+        return acksSent;
+    }
+
+    /** @return The number of acks piggybacked on data packets. */
+    public synchronized int getPiggybackedAcks() {
+        return piggybackedAcks;
+    }
+
+    /**
+     * @return The number of standalone ACKs that were not sent thanks to
+     *         delayed and piggybacked acks, compared to acking every packet.
+     */
+    public synchronized int getAcksSaved() {
+        return acksSaved;
+    }
+
+    /** @return The number of data packets that carried several messages. */
+    public synchronized int getCoalescedPackets() {
+        return coalescedPackets;
+    }
+
+    /** @return The number of messages sent in coalesced packets. */
+    public synchronized int getCoalescedMessages() {
+        return coalescedMessages;
+    }
+
+    /** @return The number of received packets dropped by full receive queues. */
+    public synchronized int getReceiveQueueDrops() {
+        return receiveQueueDrops;
+    }
+
+    /** @return The number of SYNs dropped by a full backlog. */
+    public synchronized int getSynsDropped() {
+        return synsDropped;
+    }
+
+    /** @return The number of incoming connections whose handshake timed out. */
+    public synchronized int getHandshakeTimeouts() {
+        return handshakeTimeouts;
+    }
+
+    /** @return The number of received data packets dropped by a full receive window. */
+    public synchronized int getReceiveWindowDrops() {
+        return receiveWindowDrops;
+    }
+
+    /** @return The number of times the remote end closed its receive window. */
+    public synchronized int getZeroWindows() {
+        return zeroWindows;
+    }
+
+    /** @return The number of probes sent to a closed receive window. */
+    public synchronized int getWindowProbes() {
+        return windowProbes;
+    }
+
+    /** @return The number of data frames sent compressed. */
+    public synchronized int getCompressedFrames() {
+        return compressedFrames;
+    }
+
+    /**
+     * @return The bytes sent of every byte of frame data large enough to try
+     *         compressing, 1 if none was.
+     */
+    public synchronized double getCompressionRatio() {
+        return compressionInput > 0 ? (double)compressionOutput / compressionInput : 1;
+    }
+
+    /** @return Nanoseconds spent compressing sent frames. */
+    public synchronized long getCompressionNanos() {
+        return compressionNanos;
+    }
+
+    /** @return Nanoseconds spent decompressing received frames. */
+    public synchronized long getDecompressionNanos() {
+        return decompressionNanos;
+    }
+
+    public synchronized String toString() {
+        return "sent=" + dataPacketsSent + " timeoutRetransmissions=" + timeoutRetransmissions
+                + " fastRetransmissions=" + fastRetransmissions + " duplicateAcks=" + duplicateAcks
+                + " acksSent=" + acksSent + " piggybackedAcks=" + piggybackedAcks + " acksSaved=" + acksSaved
+                + " coalescedPackets=" + coalescedPackets + " coalescedMessages=" + coalescedMessages
+                + " receiveQueueDrops=" + receiveQueueDrops + " synsDropped=" + synsDropped
+                + " handshakeTimeouts=" + handshakeTimeouts + " receiveWindowDrops=" + receiveWindowDrops
+                + " zeroWindows=" + zeroWindows + " windowProbes=" + windowProbes
+                + " compressedFrames=" + compressedFrames + " compressionRatio="
+                + String.format("%.2f", getCompressionRatio()) + " compressionMicros="
+                + (compressionNanos / 1000) + " decompressionMicros=" + (decompressionNanos / 1000);
+    }
+}
@@ -0,0 +1,283 @@
+package no.ntnu.fp.net.co;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * The payload of a data packet: the application data, preceded by a small
+ * header. {@link KtnDatagram} throws away the ack number of packets that carry
+ * a payload, so an ack piggybacked on a data packet travels in this header
+ * instead.<br>
+ * <br>
+ * Layout: <code>[flags:1][ack:4][window:2][data]</code>, where the ack is
+ * {@link #NO_ACK} when none is carried. A carried ack comes with the receive
+ * window of the sender of the frame, as in a plain ACK, see
+ * {@link AckOptions}. A message longer than the maximum
+ * segment size is split over several frames with consecutive sequence
+ * numbers, all but the last with {@link #MORE_FRAGMENTS} set. Several short
+ * messages may instead share one frame with {@link #COALESCED} set, see
+ * {@link #pack(List)}. The data of a frame with {@link #COMPRESSED} set is
+ * deflated, see {@link FrameCompressor}. The frame is the payload of the
+ * datagram byte for byte, without the Java serialization A2 puts around a
+ * payload, so A2 can not read it back with {@link KtnDatagram#getPayload()};
+ * see {@link DatagramLog}, and {@link ClSocketTransport}, which wraps it for
+ * A2. The payload checksum of the datagram covers the header as well.
+ * 
+ * @see AbstractConnection#constructDataPacket(DataFrame)
+ */
+class DataFrame {
+
+    /** Ack value of a frame that does not acknowledge anything. */
+    public final static int NO_ACK = -1;
+
+    /** Flag set on every fragment of a message but the last. */
+    public final static int MORE_FRAGMENTS = 0x01;
+
+    /** Flag set on a frame whose data is several messages, see {@link #pack(List)}. */
+    public final static int COALESCED = 0x02;
+
+    /** Flag set on a frame whose data is compressed. */
+    public final static int COMPRESSED = 0x04;
+
+    /**
+     * Flag set on the frame of a SYN whose window field holds the options
+     * offered, instead of a receive window. Such a frame without data carries
+     * no message.
+     */
+    public final static int OPTIONS = 0x08;
+
+    /**
+     * Flag set on every frame sent by an end that agreed on compression. A2
+     * drops the payload of a SYN_ACK, so the connecting end learns that the
+     * listener accepted its offer from this flag, or the same bit of an ACK,
+     * see {@link AckOptions#isCompressing()}.
+     */
+    public final static int COMPRESSING = 0x10;
+
+    /**
+     * Flag set on a frame after which the sender waits for an ACK, as it
+     * fills the send window or ends the data queued. The receiver acks such
+     * a frame at once instead of delaying the ACK.
+     */
+    public final static int PUSH = 0x20;
+
+    /** Bytes added in front of every message in coalesced data. */
+    public final static int PACKED_HEADER_LENGTH = 4;
+
+    private final static int HEADER_LENGTH = 7;
+
+    /** Encoding of String messages. */
+    private final static String CHARSET = "UTF-8";
+
+    private final int flags;
+    private final int ack;
+    private final int window;
+    private final byte[] data;
+
+    /**
+     * @param flags
+     *            - the flags of the frame, {@link #MORE_FRAGMENTS},
+     *            {@link #COALESCED}, {@link #COMPRESSED}, {@link #OPTIONS},
+     *            {@link #COMPRESSING} and {@link #PUSH} or'ed together.
+     * @param ack
+     *            - the cumulative ack to piggyback, or {@link #NO_ACK}.
+     * @param window
+     *            - the receive window to advertise with the ack, limited to
+     *            {@link AckOptions#MAX_WINDOW}.
+     * @param data
+     *            - the application data.
+     */
+    public DataFrame(int flags, int ack, int window, byte[] data) {
+        this.flags = flags;
+        this.ack = ack;
+        this.window = Math.max(0, Math.min(window, AckOptions.MAX_WINDOW));
+        this.data = data;
+    }
+
+    /** A frame advertising no window, for use without an ack. */
+    public DataFrame(int flags, int ack, byte[] data) {
+        this(flags, ack, 0, data);
+    }
+
+    /** A complete message in a single frame. */
+    public DataFrame(int ack, String text) {
+        this(0, ack, encodeText(text));
+    }
+
+    public int getAck() {
+        return ack;
+    }
+
+    public boolean hasAck() {
+        return ack != NO_ACK;
+    }
+
+    /** @return The receive window advertised with the ack. */
+    public int getWindow() {
+        return window;
+    }
+
+    /** @return true if the next frame continues the same message. */
+    public boolean hasMoreFragments() {
+        return (flags & MORE_FRAGMENTS) != 0;
+    }
+
+    /** @return true if the data holds several messages. */
+    public boolean isCoalesced() {
+        return (flags & COALESCED) != 0;
+    }
+
+    /** @return true if the data is compressed. */
+    public boolean isCompressed() {
+        return (flags & COMPRESSED) != 0;
+    }
+
+    /** @return true if the sender of the frame agreed on compression. */
+    public boolean isCompressing() {
+        return (flags & COMPRESSING) != 0;
+    }
+
+    /**
+     * Whether a data packet has {@link #PUSH} set, without decoding its
+     * frame.
+     */
+    public static boolean isPush(KtnDatagram packet) {
+        byte[] payload = packet.getPayloadAsBytes();
+        return payload != null && payload.length >= HEADER_LENGTH && (payload[0] & PUSH) != 0;
+    }
+
+    /** @return true if the frame carries handshake options. */
+    public boolean hasOptions() {
+        return (flags & OPTIONS) != 0;
+    }
+
+    /** @return The handshake options, 0 if the frame carries none. */
+    public int getOptions() {
+        return hasOptions() ? window : 0;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /** @return The data as a String. */
+    public String getText() {
+        return decodeText(data);
+    }
+
+    /** @return The frame as stored in the payload of a data packet. */
+    public byte[] encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + data.length);
+        buffer.put((byte)flags);
+        buffer.putInt(ack);
+        buffer.putShort((short)window);
+        buffer.put(data);
+        return buffer.array();
+    }
+
+    /**
+     * Read the frame of a data packet. The checksum of the packet should be
+     * checked first.
+     * 
+     * @param packet
+     *            - a data packet.
+     * @return The frame.
+     * @throws IllegalArgumentException
+     *             If the payload is not a frame.
+     */
+    public static DataFrame decode(KtnDatagram packet) {
+        byte[] payload = packet.getPayloadAsBytes();
+        if (payload == null || payload.length < HEADER_LENGTH)
+            throw new IllegalArgumentException("Payload is not a data frame.");
+
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int flags = buffer.get() & 0xff;
+        int ack = buffer.getInt();
+        int window = buffer.getShort() & 0xffff;
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return new DataFrame(flags, ack, window, data);
+    }
+
+    /**
+     * Pack several messages into the data of one coalesced frame. Every
+     * message is stored as its length followed by its bytes.
+     * 
+     * @param messages
+     *            - the messages, in order.
+     * @return The packed data.
+     */
+    public static byte[] pack(List<byte[]> messages) {
+        int length = 0;
+        for (byte[] message : messages) {
+            length += PACKED_HEADER_LENGTH + message.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (byte[] message : messages) {
+            buffer.putInt(message.length);
+            buffer.put(message);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Split the data of a coalesced frame into its messages.
+     * 
+     * @param data
+     *            - data made by {@link #pack(List)}.
+     * @return The messages, in order.
+     * @throws IllegalArgumentException
+     *             If the data is not packed messages.
+     */
+    public static List<byte[]> unpack(byte[] data) {
+        List<byte[]> messages = new ArrayList<byte[]>();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            if (buffer.remaining() < PACKED_HEADER_LENGTH)
+                throw new IllegalArgumentException("Truncated coalesced data.");
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining())
+                throw new IllegalArgumentException("Truncated coalesced data.");
+            byte[] message = new byte[length];
+            buffer.get(message);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    /** @return The bytes of a String message. */
+    public static byte[] encodeText(String text) {
+        return toBytes(text, CHARSET);
+    }
+
+    /** @return The String message of the given bytes. */
+    public static String decodeText(byte[] data) {
+        return toString(data, CHARSET);
+    }
+
+    private static byte[] toBytes(String text, String charset) {
+        try {
+            return text.getBytes(charset);
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(charset + " not supported.");
+        }
+    }
+
+    private static String toString(byte[] bytes, String charset) {
+        try {
+            return new String(bytes, charset);
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(charset + " not supported.");
+        }
+    }
+}
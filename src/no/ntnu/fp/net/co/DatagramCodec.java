@@ -0,0 +1,238 @@
+package no.ntnu.fp.net.co;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.cl.KtnDatagram.Flag;
+
+/**
+ * A fixed-layout binary encoding of a {@link KtnDatagram}, in place of the
+ * Java serialization used by {@link no.ntnu.fp.net.cl.ClSocket}, which
+ * writes class descriptors, the String addresses and the {@link Flag} enum
+ * by name with every packet.<br>
+ * <br>
+ * Layout, big-endian:
+ * <code>[magic:2][flag:1][src_port:2][dest_port:2][seq:4][ack:4][checksum:8][src_addr][dest_addr][length:4][payload]</code>.
+ * The flag is its ordinal, or 0xff for none. An address is one kind byte
+ * followed by its bytes: 4 for an IPv4 address, <code>0x80 | n</code> for a
+ * host name of n bytes, or 0 for no address. The length is -1 for no
+ * payload. The payload bytes are copied as they are, so the checksum of the
+ * datagram stays valid.<br>
+ * <br>
+ * The magic number can not start a Java serialization stream, so a receiver
+ * can accept both encodings on the same port.
+ *
+ * @see BinarySocket
+ */
+public final class DatagramCodec {
+
+    /** First two bytes of every encoded datagram. */
+    public final static short MAGIC = 0x4b44;
+
+    /** Length of the fixed part of the layout, without the addresses. */
+    public final static int FIXED_LENGTH = 27;
+
+    private final static int NO_FLAG = 0xff;
+
+    private final static int NO_ADDRESS = 0;
+    private final static int IPV4_ADDRESS = 4;
+    private final static int HOST_NAME = 0x80;
+    private final static int MAX_HOST_NAME = 0x7f;
+
+    private final static Charset HOST_CHARSET = Charset.forName("ISO-8859-1");
+
+    private final static Flag[] FLAGS = Flag.values();
+
+    private DatagramCodec() {
+    }
+
+    /**
+     * @param packet
+     *            - a datagram.
+     * @return The number of bytes the datagram is encoded in.
+     */
+    public static int encodedLength(KtnDatagram packet) {
+        byte[] payload = packet.getPayloadAsBytes();
+        return FIXED_LENGTH + addressLength(packet.getSrc_addr()) + addressLength(packet.getDest_addr())
+                + (payload != null ? payload.length : 0);
+    }
+
+    /**
+     * Encode a datagram into a new array.
+     *
+     * @param packet
+     *            - the datagram.
+     * @return The encoded datagram.
+     * @throws IllegalArgumentException
+     *             If a port or address of the datagram can not be encoded.
+     */
+    public static byte[] encode(KtnDatagram packet) {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedLength(packet));
+        encode(packet, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Encode a datagram at the position of a buffer, which must have
+     * {@link #encodedLength(KtnDatagram)} bytes left.
+     *
+     * @param packet
+     *            - the datagram.
+     * @param dst
+     *            - the buffer to write to.
+     * @throws IllegalArgumentException
+     *             If a port or address of the datagram can not be encoded.
+     */
+    public static void encode(KtnDatagram packet, ByteBuffer dst) {
+        dst.putShort(MAGIC);
+        dst.put((byte)(packet.getFlag() != null ? packet.getFlag().ordinal() : NO_FLAG));
+        dst.putShort(port(packet.getSrc_port()));
+        dst.putShort(port(packet.getDest_port()));
+        dst.putInt(packet.getSeq_nr());
+        dst.putInt(packet.getAck());
+        dst.putLong(packet.getChecksum());
+        putAddress(dst, packet.getSrc_addr());
+        putAddress(dst, packet.getDest_addr());
+        byte[] payload = packet.getPayloadAsBytes();
+        if (payload == null) {
+            dst.putInt(-1);
+        }
+        else {
+            dst.putInt(payload.length);
+            dst.put(payload);
+        }
+    }
+
+    /**
+     * Decode a whole array, see {@link #decode(ByteBuffer)}.
+     */
+    public static KtnDatagram decode(byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Decode a datagram from the position of a buffer, and move the position
+     * past it.
+     *
+     * @param src
+     *            - the buffer to read from.
+     * @return The datagram.
+     * @throws IllegalArgumentException
+     *             If the bytes are not an encoded datagram.
+     */
+    public static KtnDatagram decode(ByteBuffer src) {
+        try {
+            if (src.getShort() != MAGIC)
+                throw new IllegalArgumentException("Not an encoded datagram.");
+            int flag = src.get() & 0xff;
+            if (flag != NO_FLAG && flag >= FLAGS.length)
+                throw new IllegalArgumentException("Unknown flag " + flag + ".");
+
+            KtnDatagram packet = new KtnDatagram();
+            packet.setFlag(flag != NO_FLAG ? FLAGS[flag] : null);
+            packet.setSrc_port(src.getShort() & 0xffff);
+            packet.setDest_port(src.getShort() & 0xffff);
+            packet.setSeq_nr(src.getInt());
+            int ack = src.getInt();
+            long checksum = src.getLong();
+            packet.setSrc_addr(getAddress(src));
+            packet.setDest_addr(getAddress(src));
+            // setAck() clears the payload, and keeps acks from going negative,
+            // so only set an ack other than the initial -1, and do it first.
+            if (ack >= 0) packet.setAck(ack);
+            int length = src.getInt();
+            if (length >= 0) {
+                if (length > src.remaining())
+                    throw new IllegalArgumentException("Payload longer than the datagram.");
+                byte[] payload = new byte[length];
+                src.get(payload);
+                packet.setPayloadAsBytes(payload);
+            }
+            else if (length != -1) {
+                throw new IllegalArgumentException("Negative payload length.");
+            }
+            packet.setChecksum(checksum);
+            return packet;
+        }
+        catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Datagram is cut short.");
+        }
+    }
+
+    private static short port(int port) {
+        if (port < 0 || port > 0xffff)
+            throw new IllegalArgumentException("Port " + port + " can not be encoded.");
+        return (short)port;
+    }
+
+    private static int addressLength(String address) {
+        if (address == null) return 1;
+        return parseIPv4(address) != null ? 1 + 4 : 1 + address.length();
+    }
+
+    private static void putAddress(ByteBuffer dst, String address) {
+        if (address == null) {
+            dst.put((byte)NO_ADDRESS);
+            return;
+        }
+        byte[] ipv4 = parseIPv4(address);
+        if (ipv4 != null) {
+            dst.put((byte)IPV4_ADDRESS);
+            dst.put(ipv4);
+            return;
+        }
+        byte[] name = address.getBytes(HOST_CHARSET);
+        if (name.length > MAX_HOST_NAME)
+            throw new IllegalArgumentException("Address " + address + " can not be encoded.");
+        dst.put((byte)(HOST_NAME | name.length));
+        dst.put(name);
+    }
+
+    private static String getAddress(ByteBuffer src) {
+        int kind = src.get() & 0xff;
+        if (kind == NO_ADDRESS) {
+            return null;
+        }
+        else if (kind == IPV4_ADDRESS) {
+            return (src.get() & 0xff) + "." + (src.get() & 0xff) + "." + (src.get() & 0xff) + "."
+                    + (src.get() & 0xff);
+        }
+        else if ((kind & HOST_NAME) != 0) {
+            byte[] name = new byte[kind & MAX_HOST_NAME];
+            src.get(name);
+            return new String(name, HOST_CHARSET);
+        }
+        throw new IllegalArgumentException("Unknown address kind " + kind + ".");
+    }
+
+    /**
+     * @return The bytes of a dotted quad IPv4 address, or null if the address
+     *         is written any other way, so that it is sent as a name and
+     *         comes back exactly as it was.
+     */
+    private static byte[] parseIPv4(String address) {
+        byte[] bytes = new byte[4];
+        int part = 0, value = -1;
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c >= '0' && c <= '9') {
+                // No leading zeros, "010" is not written back as it came
+                if (value == 0) return null;
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) return null;
+            }
+            else if (c == '.' && value >= 0 && part < 3) {
+                bytes[part++] = (byte)value;
+                value = -1;
+            }
+            else {
+                return null;
+            }
+        }
+        if (part != 3 || value < 0) return null;
+        bytes[3] = (byte)value;
+        return bytes;
+    }
+}
@@ -0,0 +1,36 @@
+package no.ntnu.fp.net.co;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Writes datagrams to the A2 log. {@link Log#writeToLog(KtnDatagram, String, String)}
+ * deserializes the payload to show it, but the payload of a data packet is
+ * an encoded {@link DataFrame}, not a serialized object, and A2 would print
+ * a stack trace for every one. The datagram is logged with its header only,
+ * and the length of its payload added to the message.
+ */
+final class DatagramLog {
+
+    private DatagramLog() {
+    }
+
+    /**
+     * @param packet
+     *            - the datagram.
+     * @param message
+     *            - what happened to it.
+     * @param source
+     *            - the class logging it.
+     */
+    static void write(KtnDatagram packet, String message, String source) {
+        byte[] payload = packet.getPayloadAsBytes();
+        if (payload == null) {
+            Log.writeToLog(packet, message, source);
+            return;
+        }
+        KtnDatagram header = InProcessTransport.copy(packet);
+        header.setPayloadAsBytes(null);
+        Log.writeToLog(header, message + " (" + payload.length + " payload bytes)", source);
+    }
+}
@@ -0,0 +1,29 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+
+import no.ntnu.fp.net.cl.ClException;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Sends datagrams to the address and port given in their headers. A
+ * connection sends all its packets through one sender, the
+ * {@link Transport} it also receives with.
+ *
+ * @see SendTimer
+ */
+public interface DatagramSender {
+
+    /**
+     * Send one datagram.
+     *
+     * @param packet
+     *            the datagram to send
+     * @throws IOException
+     *             if the datagram could not be delivered to the remote port
+     * @throws ClException
+     *             if the remote address could not be connected to
+     */
+    public void send(KtnDatagram packet) throws IOException, ClException;
+
+}
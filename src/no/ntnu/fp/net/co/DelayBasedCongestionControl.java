@@ -0,0 +1,80 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * Delay-based congestion control in the style of TCP Vegas. The smallest RTT
+ * seen is taken as the delay of an empty path, and the number of packets the
+ * connection keeps queued in the network is estimated as
+ * <code>cwnd * (1 - baseRtt / rtt)</code>. The window grows while fewer than
+ * {@link #ALPHA} packets are queued and shrinks when more than {@link #BETA}
+ * are, so it backs off as soon as delay builds up rather than waiting for a
+ * loss. Slow start is left early once {@link #GAMMA} packets are queued.<br>
+ * <br>
+ * Timeouts and fast retransmits are handled like in
+ * {@link RenoCongestionControl}.
+ */
+public class DelayBasedCongestionControl implements CongestionControl {
+
+    /** Grow the window while fewer packets than this are queued. */
+    public final static double ALPHA = 2;
+    /** Shrink the window when more packets than this are queued. */
+    public final static double BETA = 4;
+    /** Leave slow start when more packets than this are queued. */
+    public final static double GAMMA = 1;
+
+    private double cwnd;
+    private double ssthresh;
+    private long baseRtt;
+    private long lastRtt;
+
+    public DelayBasedCongestionControl() {
+        cwnd = RenoCongestionControl.INITIAL_WINDOW;
+        ssthresh = Integer.MAX_VALUE;
+        baseRtt = -1;
+        lastRtt = -1;
+    }
+
+    public int getWindow() {
+        return (int)cwnd;
+    }
+
+    public void onAck(int acked, long rtt) {
+        if (rtt >= 0) {
+            lastRtt = rtt;
+            if (baseRtt < 0 || rtt < baseRtt) baseRtt = rtt;
+        }
+        if (acked == 0) return;
+
+        // Packets queued in the network, 0 until there is a measurement
+        double queued = lastRtt > 0 ? cwnd * (1 - (double)baseRtt / lastRtt) : 0;
+        if (cwnd < ssthresh) {
+            if (queued > GAMMA) {
+                ssthresh = cwnd;
+            }
+            else {
+                cwnd += acked;
+                return;
+            }
+        }
+        if (queued < ALPHA) {
+            cwnd += acked / cwnd;
+        }
+        else if (queued > BETA) {
+            cwnd = Math.max(cwnd - acked / cwnd, RenoCongestionControl.MIN_THRESHOLD);
+        }
+    }
+
+    public void onTimeout() {
+        ssthresh = Math.max(cwnd / 2, RenoCongestionControl.MIN_THRESHOLD);
+        cwnd = 1;
+    }
+
+    public void onFastRetransmit() {
+        ssthresh = Math.max(cwnd / 2, RenoCongestionControl.MIN_THRESHOLD);
+        cwnd = ssthresh;
+    }
+
+    /** @return The smallest RTT measured, or -1 if none. */
+    public long getBaseRtt() {
+        return baseRtt;
+    }
+}
@@ -0,0 +1,130 @@
+package no.ntnu.fp.net.co;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the data of single frames with raw deflate, for a connection
+ * that agreed on it in its handshake, see
+ * {@link AbstractConnection#setCompression(boolean, int)}. Every frame is
+ * compressed on its own, as frames may be lost, resent and reordered, so
+ * both ends start every frame from the same preset dictionary instead: text
+ * that short chat messages and user lists are likely to share.<br>
+ * <br>
+ * A compressor keeps one Deflater and one Inflater, each with a buffer of
+ * its own, so one thread may compress while another decompresses. Neither
+ * method is thread safe on its own: frames are compressed while holding the
+ * ack lock of the connection, and decompressed by the one thread receiving
+ * for the application.
+ *
+ * @see DataFrame#COMPRESSED
+ */
+class FrameCompressor {
+
+    /** Most bytes a compressed frame may inflate to. */
+    public final static int MAX_DATA_LENGTH = 1 << 20;
+
+    /**
+     * Shared by both ends, most common strings last, as deflate codes near
+     * matches shorter. Changing it breaks compatibility with older ends.
+     */
+    private final static byte[] DICTIONARY = bytes(
+            "the and you for that this with have are not was but what just "
+            + "http://www. .com .no https:// "
+            + "Hello: is closing changed nick to  disconnected.  joined. "
+            + "***: **: *: /newName: [], ");
+
+    private final Deflater deflater;
+    private final Inflater inflater;
+    private final ConnectionStatistics statistics;
+    private final byte[] deflateBuffer;
+    private final byte[] inflateBuffer;
+
+    /**
+     * @param statistics
+     *            - where to count the compression ratio and time.
+     */
+    public FrameCompressor(ConnectionStatistics statistics) {
+        this.deflater = new Deflater(Deflater.BEST_SPEED, true);
+        this.inflater = new Inflater(true);
+        this.statistics = statistics;
+        this.deflateBuffer = new byte[4096];
+        this.inflateBuffer = new byte[4096];
+    }
+
+    /**
+     * Compress the data of a frame, if that makes it shorter.
+     *
+     * @param data
+     *            - the data.
+     * @return The compressed data, or null if it would not be shorter.
+     */
+    public byte[] compress(byte[] data) {
+        long start = System.nanoTime();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+        while (!deflater.finished() && out.size() < data.length) {
+            int n = deflater.deflate(deflateBuffer);
+            out.write(deflateBuffer, 0, n);
+        }
+        byte[] compressed = deflater.finished() && out.size() < data.length ? out.toByteArray() : null;
+        statistics.countCompression(data.length, compressed != null ? compressed.length : data.length,
+                System.nanoTime() - start);
+        return compressed;
+    }
+
+    /**
+     * Restore the data of a compressed frame.
+     *
+     * @param data
+     *            - the compressed data.
+     * @return The data.
+     * @throws IllegalArgumentException
+     *             If the data is not compressed data, or inflates to more
+     *             than {@link #MAX_DATA_LENGTH} bytes.
+     */
+    public byte[] decompress(byte[] data) {
+        long start = System.nanoTime();
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(inflateBuffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                out.write(inflateBuffer, 0, n);
+                if (out.size() > MAX_DATA_LENGTH)
+                    throw new IllegalArgumentException("Compressed frame is too large.");
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IllegalArgumentException("Broken compressed frame: " + e.getMessage());
+        }
+        if (!inflater.finished())
+            throw new IllegalArgumentException("Compressed frame is cut short.");
+        statistics.countDecompression(System.nanoTime() - start);
+        return out.toByteArray();
+    }
+
+    /** Free the native memory of the Deflater and Inflater. */
+    public void end() {
+        deflater.end();
+        inflater.end();
+    }
+
+    private static byte[] bytes(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package no.ntnu.fp.net.co;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import no.ntnu.fp.net.cl.ClException;
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.cl.KtnDatagram.Flag;
+
+/**
+ * Wraps another transport, and loses, delays, reorders, duplicates and
+ * corrupts the datagrams sent through it, and caps the bandwidth, as set by
+ * an {@link Impairment}. Unlike the A2 FailureController, which only hooks
+ * into ClSocket and draws from an unseeded random, it works on any
+ * transport, and every decision is drawn from a random seeded with a fixed
+ * seed, so runs can be repeated and measurements compared.<br>
+ * <br>
+ * A link is the datagrams from one local port to one remote port. Each
+ * link has a random of its own, seeded from the seed and its two ports, so
+ * what happens to the n-th datagram of a link depends on nothing else: not
+ * on the timing of threads, nor on the traffic of other links. A run is
+ * repeated exactly when its connections use the same ports and send the
+ * same datagrams in the same order; retransmissions, which follow the
+ * clock, may differ. Each link also has its own bandwidth cap and queue.<br>
+ * <br>
+ * A datagram with no latency or delay to wait is sent at once, from the
+ * sending thread. The others are copied, and sent when due by a thread of
+ * the transport, in the order they are due. Receiving is left to the
+ * wrapped transport.
+ *
+ * @see Impairment
+ * @see AbstractConnection#setTransport(Transport)
+ */
+public final class ImpairedTransport implements Transport {
+
+    /** Stands for any port in {@link #setImpairment(int, int, Impairment)}. */
+    public final static int ANY_PORT = 0;
+
+    private final static long NANOS_PER_MILLI = 1000000L;
+    private final static long NANOS_PER_SECOND = 1000000000L;
+
+    private final Transport transport;
+    private final long seed;
+    private final Impairment impairment;
+
+    /** Impairments set for some links, by {@link #key(int, int)}. */
+    private final Map<Long, Impairment> impairments;
+
+    /** The links sent on so far, by {@link #key(int, int)}. */
+    private final ConcurrentMap<Long, Link> links;
+
+    /** Datagrams waiting to be sent, by when they are due. */
+    private final DelayQueue<Delivery> deliveries;
+
+    /** Orders deliveries due at the same time as they were queued. */
+    private final AtomicLong queued;
+
+    private final AtomicLong sent;
+    private final AtomicLong lost;
+    private final AtomicLong delayed;
+    private final AtomicLong reordered;
+    private final AtomicLong duplicated;
+    private final AtomicLong corrupted;
+    private final AtomicLong overflowed;
+
+    /**
+     * @param transport
+     *            - the transport to send with.
+     * @param impairment
+     *            - what to do to the datagrams of links with no impairment
+     *            of their own.
+     * @param seed
+     *            - the seed of every decision.
+     */
+    public ImpairedTransport(Transport transport, Impairment impairment, long seed) {
+        if (transport == null || impairment == null)
+            throw new IllegalArgumentException("Transport and impairment can not be null.");
+        this.transport = transport;
+        this.impairment = impairment;
+        this.seed = seed;
+        impairments = new ConcurrentHashMap<Long, Impairment>();
+        links = new ConcurrentHashMap<Long, Link>();
+        deliveries = new DelayQueue<Delivery>();
+        queued = new AtomicLong();
+        sent = new AtomicLong();
+        lost = new AtomicLong();
+        delayed = new AtomicLong();
+        reordered = new AtomicLong();
+        duplicated = new AtomicLong();
+        corrupted = new AtomicLong();
+        overflowed = new AtomicLong();
+
+        Thread courier = new Thread("ImpairedTransport") {
+            public void run() {
+                deliver();
+            }
+        };
+        courier.setDaemon(true);
+        courier.start();
+    }
+
+    /**
+     * Wrap a transport in the impairment and seed of a settings file.
+     *
+     * @see Impairment#fromSettings(File)
+     * @see Impairment#seedFromSettings(File)
+     */
+    public static ImpairedTransport fromSettings(Transport transport, File file) throws IOException {
+        return new ImpairedTransport(transport, Impairment.fromSettings(file), Impairment.seedFromSettings(file));
+    }
+
+    /**
+     * Impair the datagrams of some links in their own way. A link takes the
+     * impairment set for its two ports, else the one for its local port and
+     * any remote port, else the one for any local port and its remote port,
+     * else the one the transport was made with. Takes effect from the next
+     * datagram.
+     *
+     * @param localPort
+     *            - the port sent from, or {@link #ANY_PORT}.
+     * @param remotePort
+     *            - the port sent to, or {@link #ANY_PORT}.
+     * @param impairment
+     *            - the impairment, or null to go back to the one otherwise
+     *            taken.
+     */
+    public void setImpairment(int localPort, int remotePort, Impairment impairment) {
+        if (impairment == null) {
+            impairments.remove(key(localPort, remotePort));
+        }
+        else {
+            impairments.put(key(localPort, remotePort), impairment);
+        }
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public Endpoint open(int port) throws IOException {
+        return transport.open(port);
+    }
+
+    /**
+     * Decide what happens to the datagram on its link, and send it, or
+     * leave it to be sent when due.
+     *
+     * @see DatagramSender#send(KtnDatagram)
+     */
+    public void send(KtnDatagram packet) throws IOException, ClException {
+        int src = packet.getSrc_port();
+        int dest = packet.getDest_port();
+        Impairment impairment = impairment(src, dest);
+        Link link = link(src, dest);
+        boolean errors = !impairment.isOnlyData() || packet.getFlag() == Flag.NONE;
+
+        KtnDatagram out = packet;
+        long due;
+        boolean twice;
+        synchronized (link) {
+            Random random = link.random;
+            if (errors && random.nextDouble() < impairment.getLoss()) {
+                lost.incrementAndGet();
+                return;
+            }
+            if (errors && random.nextDouble() < impairment.getPayloadCorruption()) {
+                out = corruptPayload(out, random);
+            }
+            if (errors && random.nextDouble() < impairment.getHeaderCorruption()) {
+                out = corruptHeader(out, random);
+            }
+
+            long wait = impairment.getLatency() * NANOS_PER_MILLI;
+            if (errors && random.nextDouble() < impairment.getDelay()) {
+                wait += impairment.getDistribution().sample(random, impairment.getMeanDelay());
+                delayed.incrementAndGet();
+            }
+            if (errors && random.nextDouble() < impairment.getReorder()) {
+                wait += impairment.getReorderGap() * NANOS_PER_MILLI;
+                reordered.incrementAndGet();
+            }
+            twice = errors && random.nextDouble() < impairment.getDuplicate();
+
+            long now = System.nanoTime();
+            due = now + wait;
+            long bandwidth = impairment.getBandwidth();
+            if (bandwidth > 0) {
+                // The link sends one datagram after another; what it is still
+                // to send is the queue, and a datagram it has no room for is lost.
+                int length = DatagramCodec.encodedLength(out);
+                long start = Math.max(now, link.free);
+                if ((start - now) * bandwidth / NANOS_PER_SECOND + length > impairment.getQueue()) {
+                    overflowed.incrementAndGet();
+                    return;
+                }
+                link.free = start + length * NANOS_PER_SECOND / bandwidth;
+                due = link.free + wait;
+            }
+        }
+
+        if (twice) {
+            duplicated.incrementAndGet();
+            send(InProcessTransport.copy(out), due);
+        }
+        send(out, due);
+    }
+
+    /** Send a datagram now, or queue a copy of it if it is not yet due. */
+    private void send(KtnDatagram packet, long due) throws IOException, ClException {
+        if (due - System.nanoTime() > 0) {
+            // The sender may change or resend its datagram before this is due
+            deliveries.put(new Delivery(InProcessTransport.copy(packet), due, queued.incrementAndGet()));
+            return;
+        }
+        transport.send(packet);
+        sent.incrementAndGet();
+    }
+
+    /** Send the queued datagrams as they become due, for as long as the JVM runs. */
+    private void deliver() {
+        while (true) {
+            KtnDatagram packet;
+            try {
+                packet = deliveries.take().packet;
+            }
+            catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                transport.send(packet);
+                sent.incrementAndGet();
+            }
+            catch (ClException e) {
+                DatagramLog.write(packet, "Could not send delayed datagram: " + e.getMessage(), "ImpairedTransport");
+            }
+            catch (IOException e) {
+                DatagramLog.write(packet, "Could not send delayed datagram: " + e.getMessage(), "ImpairedTransport");
+            }
+        }
+    }
+
+    /** @return A copy of the datagram with one byte of its payload changed, but not its checksum. */
+    private KtnDatagram corruptPayload(KtnDatagram packet, Random random) {
+        byte[] payload = packet.getPayloadAsBytes();
+        if (payload == null || payload.length == 0) return packet;
+        KtnDatagram copy = InProcessTransport.copy(packet);
+        // The payload may be shared with the sender, so change a copy
+        payload = payload.clone();
+        payload[random.nextInt(payload.length)] ^= 1 + random.nextInt(255);
+        copy.setPayloadAsBytes(payload);
+        corrupted.incrementAndGet();
+        return copy;
+    }
+
+    /**
+     * @return A copy of the datagram with one of its ports, its sequence
+     *         number or its ack changed, as A2 does.
+     */
+    private KtnDatagram corruptHeader(KtnDatagram packet, Random random) {
+        KtnDatagram copy = InProcessTransport.copy(packet);
+        switch (random.nextInt(4)) {
+        case 0:
+            copy.setDest_port(1 + random.nextInt(65535));
+            break;
+        case 1:
+            copy.setSrc_port(1 + random.nextInt(65535));
+            break;
+        case 2:
+            copy.setSeq_nr(random.nextInt(Integer.MAX_VALUE));
+            break;
+        default:
+            // setAck() clears the payload, so put it back
+            copy.setAck(random.nextInt(Integer.MAX_VALUE));
+            copy.setPayloadAsBytes(packet.getPayloadAsBytes());
+            copy.setChecksum(packet.getChecksum());
+        }
+        corrupted.incrementAndGet();
+        return copy;
+    }
+
+    private Impairment impairment(int src, int dest) {
+        if (impairments.isEmpty()) return impairment;
+        Impairment found = impairments.get(key(src, dest));
+        if (found == null) found = impairments.get(key(src, ANY_PORT));
+        if (found == null) found = impairments.get(key(ANY_PORT, dest));
+        return found == null ? impairment : found;
+    }
+
+    private Link link(int src, int dest) {
+        Long key = key(src, dest);
+        Link link = links.get(key);
+        if (link == null) {
+            link = new Link(new Random(seed ^ key.longValue() * 0x9E3779B97F4A7C15L));
+            Link raced = links.putIfAbsent(key, link);
+            if (raced != null) link = raced;
+        }
+        return link;
+    }
+
+    private static Long key(int src, int dest) {
+        return Long.valueOf((long)src << 32 | dest & 0xFFFFFFFFL);
+    }
+
+    /** @return Datagrams sent on, duplicates included. */
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getLost() {
+        return lost.get();
+    }
+
+    public long getDelayed() {
+        return delayed.get();
+    }
+
+    public long getReordered() {
+        return reordered.get();
+    }
+
+    public long getDuplicated() {
+        return duplicated.get();
+    }
+
+    public long getCorrupted() {
+        return corrupted.get();
+    }
+
+    /** @return Datagrams dropped because the queue of a bandwidth cap was full. */
+    public long getOverflowed() {
+        return overflowed.get();
+    }
+
+    public String toString() {
+        return "seed=" + seed + " sent=" + sent + " lost=" + lost + " delayed=" + delayed + " reordered="
+                + reordered + " duplicated=" + duplicated + " corrupted=" + corrupted + " overflowed=" + overflowed;
+    }
+
+    /** The random and the bandwidth state of a link. */
+    private static class Link {
+
+        final Random random;
+        /** When the link is done sending what it has, in System.nanoTime(). */
+        long free;
+
+        Link(Random random) {
+            this.random = random;
+            free = Long.MIN_VALUE;
+        }
+    }
+
+    /** A datagram waiting to be sent. */
+    private static class Delivery implements Delayed {
+
+        final KtnDatagram packet;
+        final long due;
+        final long order;
+
+        Delivery(KtnDatagram packet, long due, long order) {
+            this.packet = packet;
+            this.due = due;
+            this.order = order;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            Delivery that = (Delivery)other;
+            if (due != that.due) return due - that.due < 0 ? -1 : 1;
+            return order < that.order ? -1 : order > that.order ? 1 : 0;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package no.ntnu.fp.net.co;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jdom.input.SAXBuilder;
+
+/**
+ * What an {@link ImpairedTransport} does to the datagrams of a link: the
+ * chances of loss, delay, reordering, duplication and corruption, a
+ * latency every datagram sees, and a bandwidth cap. All chances are
+ * between 0 and 1, all times in milliseconds. A new impairment leaves
+ * datagrams alone.<br>
+ * <br>
+ * {@link #fromSettings(File)} reads the keys of settings.xml that A2 uses,
+ * with the same meaning, so a benchmark can run under the conditions set
+ * for the A2 FailureController, but repeatably:
+ * <ul>
+ * <li>errors - false to impair nothing</li>
+ * <li>loss - chance that a datagram is lost</li>
+ * <li>delay - chance that a datagram is delayed</li>
+ * <li>ghost - chance that a datagram arrives twice</li>
+ * <li>payload - chance that a byte of the payload is changed</li>
+ * <li>header - chance that a port, the sequence number or the ack is
+ * changed</li>
+ * <li>onlydata - true to impair data packets only</li>
+ * </ul>
+ * and the optional keys of this class: seed, latency, meandelay,
+ * distribution (a {@link Distribution} name), reorder, reordergap and
+ * bandwidth (bytes per second, 0 for no cap) and queue (bytes).
+ *
+ * @see ImpairedTransport
+ */
+public final class Impairment {
+
+    /** How the time a delayed datagram is held is drawn, around a mean. */
+    public enum Distribution {
+        /** Always the mean. */
+        CONSTANT,
+        /** Uniform from 0 to twice the mean. */
+        UNIFORM,
+        /** Exponential, mostly short with a long tail. */
+        EXPONENTIAL,
+        /** Normal, with a standard deviation of a quarter of the mean, never below 0. */
+        NORMAL;
+
+        /**
+         * @param random
+         *            - the source of randomness.
+         * @param mean
+         *            - the mean, in milliseconds.
+         * @return A time in nanoseconds.
+         */
+        long sample(Random random, long mean) {
+            double millis;
+            switch (this) {
+            case UNIFORM:
+                millis = random.nextDouble() * 2 * mean;
+                break;
+            case EXPONENTIAL:
+                millis = -Math.log(1 - random.nextDouble()) * mean;
+                break;
+            case NORMAL:
+                millis = Math.max(0, mean + random.nextGaussian() * mean / 4);
+                break;
+            default:
+                millis = mean;
+            }
+            return (long)(millis * NANOS_PER_MILLI);
+        }
+    }
+
+    /** Seed used unless one is given, so runs are repeatable by default. */
+    public final static long DEFAULT_SEED = 20090312L;
+
+    /** Mean delay of a delayed datagram unless one is given. */
+    public final static long DEFAULT_MEAN_DELAY = 200;
+
+    /** Extra time a reordered datagram is held unless one is given. */
+    public final static long DEFAULT_REORDER_GAP = 5;
+
+    /** Bytes a link with a bandwidth cap queues unless a limit is given. */
+    public final static int DEFAULT_QUEUE = 64 * 1024;
+
+    private final static long NANOS_PER_MILLI = 1000000L;
+
+    private double loss;
+    private double delay;
+    private Distribution distribution;
+    private long meanDelay;
+    private long latency;
+    private double reorder;
+    private long reorderGap;
+    private double duplicate;
+    private double payloadCorruption;
+    private double headerCorruption;
+    private long bandwidth;
+    private int queue;
+    private boolean onlyData;
+
+    /** Make an impairment that leaves datagrams alone. */
+    public Impairment() {
+        loss = 0;
+        delay = 0;
+        distribution = Distribution.UNIFORM;
+        meanDelay = DEFAULT_MEAN_DELAY;
+        latency = 0;
+        reorder = 0;
+        reorderGap = DEFAULT_REORDER_GAP;
+        duplicate = 0;
+        payloadCorruption = 0;
+        headerCorruption = 0;
+        bandwidth = 0;
+        queue = DEFAULT_QUEUE;
+        onlyData = false;
+    }
+
+    /**
+     * Read an impairment from the settings.xml in the working directory,
+     * see {@link #fromSettings(File)}.
+     */
+    public static Impairment fromSettings() throws IOException {
+        return fromSettings(new File("settings.xml"));
+    }
+
+    /**
+     * Read an impairment from a settings file, see {@link Impairment}.
+     *
+     * @param file
+     *            - the settings file.
+     * @return The impairment, with the defaults for missing keys.
+     * @throws IOException
+     *             If the file can not be read, or a value is not valid.
+     */
+    public static Impairment fromSettings(File file) throws IOException {
+        Element root;
+        try {
+            Document document = new SAXBuilder().build(file);
+            root = document.getRootElement();
+        }
+        catch (JDOMException e) {
+            throw new IOException("Can not read " + file + ": " + e.getMessage());
+        }
+        Impairment impairment = new Impairment();
+        if (!Boolean.parseBoolean(text(root, "errors", "true"))) {
+            return impairment;
+        }
+        try {
+            impairment.setLoss(Double.parseDouble(text(root, "loss", "0")));
+            impairment.setDelay(Double.parseDouble(text(root, "delay", "0")),
+                    Distribution.valueOf(text(root, "distribution", "UNIFORM").toUpperCase()),
+                    Long.parseLong(text(root, "meandelay", Long.toString(DEFAULT_MEAN_DELAY))));
+            impairment.setLatency(Long.parseLong(text(root, "latency", "0")));
+            impairment.setReorder(Double.parseDouble(text(root, "reorder", "0")),
+                    Long.parseLong(text(root, "reordergap", Long.toString(DEFAULT_REORDER_GAP))));
+            impairment.setDuplicate(Double.parseDouble(text(root, "ghost", "0")));
+            impairment.setCorruption(Double.parseDouble(text(root, "payload", "0")),
+                    Double.parseDouble(text(root, "header", "0")));
+            impairment.setBandwidth(Long.parseLong(text(root, "bandwidth", "0")),
+                    Integer.parseInt(text(root, "queue", Integer.toString(DEFAULT_QUEUE))));
+            impairment.setOnlyData(Boolean.parseBoolean(text(root, "onlydata", "false")));
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Bad value in " + file + ": " + e.getMessage());
+        }
+        return impairment;
+    }
+
+    /**
+     * Read the seed from a settings file.
+     *
+     * @return The value of the seed key, or {@link #DEFAULT_SEED}.
+     * @throws IOException
+     *             If the file can not be read, or the seed is not a number.
+     */
+    public static long seedFromSettings(File file) throws IOException {
+        try {
+            return Long.parseLong(text(new SAXBuilder().build(file).getRootElement(), "seed",
+                    Long.toString(DEFAULT_SEED)));
+        }
+        catch (JDOMException e) {
+            throw new IOException("Can not read " + file + ": " + e.getMessage());
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Bad seed in " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static String text(Element root, String key, String otherwise) {
+        String text = root.getChildTextTrim(key);
+        return text == null || text.length() == 0 ? otherwise : text;
+    }
+
+    private static double chance(double chance) {
+        if (chance < 0 || chance > 1 || Double.isNaN(chance))
+            throw new IllegalArgumentException("Chance must be between 0 and 1.");
+        return chance;
+    }
+
+    private static long millis(long millis) {
+        if (millis < 0) throw new IllegalArgumentException("Time can not be negative.");
+        return millis;
+    }
+
+    /** @param loss - chance that a datagram is lost. */
+    public void setLoss(double loss) {
+        this.loss = chance(loss);
+    }
+
+    public double getLoss() {
+        return loss;
+    }
+
+    /**
+     * @param chance
+     *            - chance that a datagram is delayed.
+     * @param distribution
+     *            - how the time it is held is drawn.
+     * @param mean
+     *            - the mean of that time.
+     */
+    public void setDelay(double chance, Distribution distribution, long mean) {
+        if (distribution == null) throw new IllegalArgumentException("Distribution can not be null.");
+        this.delay = chance(chance);
+        this.distribution = distribution;
+        this.meanDelay = millis(mean);
+    }
+
+    public double getDelay() {
+        return delay;
+    }
+
+    public Distribution getDistribution() {
+        return distribution;
+    }
+
+    public long getMeanDelay() {
+        return meanDelay;
+    }
+
+    /** @param latency - time every datagram takes, on top of any delay. */
+    public void setLatency(long latency) {
+        this.latency = millis(latency);
+    }
+
+    public long getLatency() {
+        return latency;
+    }
+
+    /**
+     * @param chance
+     *            - chance that a datagram is held back, so the following
+     *            ones overtake it.
+     * @param gap
+     *            - how long it is held back.
+     */
+    public void setReorder(double chance, long gap) {
+        this.reorder = chance(chance);
+        this.reorderGap = millis(gap);
+    }
+
+    public double getReorder() {
+        return reorder;
+    }
+
+    public long getReorderGap() {
+        return reorderGap;
+    }
+
+    /** @param duplicate - chance that a datagram arrives twice. */
+    public void setDuplicate(double duplicate) {
+        this.duplicate = chance(duplicate);
+    }
+
+    public double getDuplicate() {
+        return duplicate;
+    }
+
+    /**
+     * @param payload
+     *            - chance that a byte of the payload is changed.
+     * @param header
+     *            - chance that a port, the sequence number or the ack is
+     *            changed.
+     */
+    public void setCorruption(double payload, double header) {
+        this.payloadCorruption = chance(payload);
+        this.headerCorruption = chance(header);
+    }
+
+    public double getPayloadCorruption() {
+        return payloadCorruption;
+    }
+
+    public double getHeaderCorruption() {
+        return headerCorruption;
+    }
+
+    /**
+     * Cap the bandwidth of the link. Datagrams are sent one after another at
+     * this rate, and dropped when more than the queue is waiting.
+     *
+     * @param bytesPerSecond
+     *            - the cap, or 0 for none.
+     * @param queue
+     *            - most bytes waiting, at least 1.
+     */
+    public void setBandwidth(long bytesPerSecond, int queue) {
+        if (bytesPerSecond < 0) throw new IllegalArgumentException("Bandwidth can not be negative.");
+        if (queue < 1) throw new IllegalArgumentException("Queue must be at least 1 byte.");
+        this.bandwidth = bytesPerSecond;
+        this.queue = queue;
+    }
+
+    public long getBandwidth() {
+        return bandwidth;
+    }
+
+    public int getQueue() {
+        return queue;
+    }
+
+    /** @param onlyData - true to leave packets with a flag alone, as A2 does. */
+    public void setOnlyData(boolean onlyData) {
+        this.onlyData = onlyData;
+    }
+
+    public boolean isOnlyData() {
+        return onlyData;
+    }
+
+    /** @return true if datagrams are left alone. */
+    public boolean isNone() {
+        return loss == 0 && delay == 0 && latency == 0 && reorder == 0 && duplicate == 0
+                && payloadCorruption == 0 && headerCorruption == 0 && bandwidth == 0;
+    }
+
+    public String toString() {
+        return "loss=" + loss + " delay=" + delay + " distribution=" + distribution + " meanDelay=" + meanDelay
+                + " latency=" + latency + " reorder=" + reorder + " reorderGap=" + reorderGap + " duplicate="
+                + duplicate + " payloadCorruption=" + payloadCorruption + " headerCorruption=" + headerCorruption
+                + " bandwidth=" + bandwidth + " queue=" + queue + " onlyData=" + onlyData;
+    }
+}
@@ -0,0 +1,124 @@
+package no.ntnu.fp.net.co;
+
+import java.net.BindException;
+import java.nio.channels.ClosedChannelException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import no.ntnu.fp.net.cl.FailureController;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Passes datagrams between the ports opened in this JVM through lock-free
+ * queues, with no socket, encoding or system call in between, to measure
+ * the protocol itself and to run tests in microseconds instead of seconds.
+ * A transport is one network of its own, on which every address is this
+ * host: a datagram goes to the port it names, whatever the address, and is
+ * dropped if the port is not open.<br>
+ * <br>
+ * The receiver gets a copy of the datagram, so neither end sees what the
+ * other changes in it afterwards. The payload bytes are shared, as a
+ * datagram only ever gets a new payload, never changes the one it has.
+ * Datagrams are never lost, reordered or delayed, and see no errors of A2,
+ * so connections on this transport may use a TIME_WAIT of 0, see
+ * {@link AbstractConnection#setTimeWait(long)}.
+ *
+ * @see AbstractConnection#setTransport(Transport)
+ */
+public final class InProcessTransport implements Transport {
+
+    /** A network shared by the whole JVM. */
+    public final static InProcessTransport INSTANCE = new InProcessTransport();
+
+    /** The open ports, by port number. */
+    private final Map<Integer, Port> ports;
+
+    /** Make a network of its own, with no port open. */
+    public InProcessTransport() {
+        ports = new ConcurrentHashMap<Integer, Port>();
+    }
+
+    /**
+     * Queue a copy of the datagram at its destination port.
+     *
+     * @see DatagramSender#send(KtnDatagram)
+     */
+    public void send(KtnDatagram packet) {
+        Port port = ports.get(packet.getDest_port());
+        if (port == null) {
+            // Nobody listening, as a real network would lose it
+            return;
+        }
+        port.deliver(copy(packet));
+        FailureController.packetSentCount++;
+    }
+
+    public Endpoint open(int port) throws BindException {
+        Port opened = new Port(port);
+        if (ports.putIfAbsent(port, opened) != null)
+            throw new BindException("Port " + port + " is already open.");
+        return opened;
+    }
+
+    /** @return A new datagram with the same fields. */
+    static KtnDatagram copy(KtnDatagram packet) {
+        KtnDatagram copy = new KtnDatagram();
+        copy.setFlag(packet.getFlag());
+        copy.setSrc_addr(packet.getSrc_addr());
+        copy.setSrc_port(packet.getSrc_port());
+        copy.setDest_addr(packet.getDest_addr());
+        copy.setDest_port(packet.getDest_port());
+        copy.setSeq_nr(packet.getSeq_nr());
+        // setAck() clears the payload, and keeps acks from going negative,
+        // so only set an ack other than the initial -1, and do it first.
+        if (packet.getAck() >= 0) copy.setAck(packet.getAck());
+        byte[] payload = packet.getPayloadAsBytes();
+        if (payload != null) copy.setPayloadAsBytes(payload);
+        copy.setChecksum(packet.getChecksum());
+        return copy;
+    }
+
+    /** An open port, its queue and the thread waiting on it. */
+    private class Port implements Endpoint {
+
+        private final int port;
+        private final ConcurrentLinkedQueue<KtnDatagram> queue;
+        /** The receiving thread while it parks, for senders to wake. */
+        private volatile Thread waiter;
+        private volatile boolean closed;
+
+        Port(int port) {
+            this.port = port;
+            queue = new ConcurrentLinkedQueue<KtnDatagram>();
+        }
+
+        void deliver(KtnDatagram packet) {
+            queue.offer(packet);
+            Thread thread = waiter;
+            if (thread != null) LockSupport.unpark(thread);
+        }
+
+        public KtnDatagram receive() throws ClosedChannelException {
+            while (true) {
+                KtnDatagram packet = queue.poll();
+                if (packet != null) return packet;
+                if (closed) throw new ClosedChannelException();
+                waiter = Thread.currentThread();
+                // Look again once senders can see the waiter, or a wakeup may be lost
+                packet = queue.poll();
+                if (packet == null && !closed) LockSupport.park(this);
+                waiter = null;
+                if (packet != null) return packet;
+            }
+        }
+
+        public void close() {
+            closed = true;
+            ports.remove(port, this);
+            Thread thread = waiter;
+            if (thread != null) LockSupport.unpark(thread);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package no.ntnu.fp.net.co;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * A ring buffer of datagrams in a memory-mapped file, written by one
+ * producer and read by one consumer, which may be in different processes on
+ * the same host. The producer holds a lock on the file, so no other process
+ * can produce into the same ring.<br>
+ * <br>
+ * Layout: a header with a magic number and the capacity, the consumer
+ * position (head) and the producer position (tail), each on a cache line of
+ * its own, followed by the data. The positions count bytes from the
+ * creation of the ring and only grow; the producer publishes a record by
+ * storing the tail with release semantics after writing it, and the
+ * consumer frees it the same way by storing the head. Every record is its
+ * length followed by the datagram encoded by {@link DatagramCodec}, padded
+ * to 8 bytes. A record that does not fit before the end of the data is
+ * written at its start, after a length of {@link #PADDING} marking the end
+ * as unused.<br>
+ * <br>
+ * Closing any file descriptor of a file releases the locks this process
+ * holds on it, so a consumer in the process of the producer reads through
+ * the mapping of the producer instead of opening the file again.
+ *
+ * @see SharedMemoryTransport
+ */
+class MappedRing {
+
+    /** Written last when a ring is created, "KRNG". */
+    private final static int MAGIC = 0x4b524e47;
+
+    private final static int MAGIC_OFFSET = 0;
+    private final static int CAPACITY_OFFSET = 4;
+    private final static int HEAD_OFFSET = 64;
+    private final static int TAIL_OFFSET = 128;
+    private final static int DATA_OFFSET = 192;
+
+    /** Record length marking the rest of the data as unused. */
+    private final static int PADDING = -1;
+
+    private final static VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class,
+            ByteOrder.nativeOrder());
+    private final static VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+
+    /** The rings produced into by this process, by file. */
+    private final static Map<File, MappedRing> PRODUCED = new ConcurrentHashMap<File, MappedRing>();
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileLock lock;
+    private final MappedByteBuffer buffer;
+    /** The data, for the producer to encode into. */
+    private final ByteBuffer writer;
+    /** The data, for the consumer to decode from. */
+    private final ByteBuffer reader;
+    private final int capacity;
+
+    private MappedRing(File file, RandomAccessFile raf, FileLock lock, MappedByteBuffer buffer, int capacity) {
+        this.file = file;
+        this.raf = raf;
+        this.lock = lock;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        ByteBuffer data = buffer.duplicate();
+        data.position(DATA_OFFSET);
+        data = data.slice();
+        writer = data.duplicate();
+        reader = data.duplicate();
+    }
+
+    /**
+     * Open a ring to produce into, creating it if the file is not a ring.
+     *
+     * @param file
+     *            - the file of the ring.
+     * @param capacity
+     *            - bytes of data in a new ring, a power of two.
+     * @return The ring, or null if another producer holds it.
+     * @throws IOException
+     *             If the file can not be created or mapped.
+     */
+    public static MappedRing produce(File file, int capacity) throws IOException {
+        if (Integer.bitCount(capacity) != 1 || capacity < 64)
+            throw new IllegalArgumentException("Capacity must be a power of two, at least 64.");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileLock lock;
+            try {
+                lock = raf.getChannel().tryLock();
+            }
+            catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                raf.close();
+                return null;
+            }
+            if (raf.length() >= DATA_OFFSET) {
+                MappedByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET);
+                int existing = (int)INTS.getAcquire(header, MAGIC_OFFSET) == MAGIC
+                        ? (int)INTS.get(header, CAPACITY_OFFSET) : 0;
+                if (existing > 0 && raf.length() == DATA_OFFSET + existing) {
+                    // Left by a producer that is gone, go on from its tail
+                    return produced(new MappedRing(file, raf, lock, map(raf, existing), existing));
+                }
+            }
+            raf.setLength(DATA_OFFSET + capacity);
+            MappedByteBuffer buffer = map(raf, capacity);
+            INTS.set(buffer, CAPACITY_OFFSET, capacity);
+            LONGS.set(buffer, HEAD_OFFSET, 0L);
+            LONGS.set(buffer, TAIL_OFFSET, 0L);
+            INTS.setRelease(buffer, MAGIC_OFFSET, MAGIC);
+            return produced(new MappedRing(file, raf, lock, buffer, capacity));
+        }
+        catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open a ring to consume from.
+     *
+     * @param file
+     *            - the file of the ring.
+     * @return The ring, or null if the producer has not created it yet.
+     * @throws IOException
+     *             If the file can not be read or mapped.
+     */
+    public static MappedRing consume(File file) throws IOException {
+        MappedRing producer = PRODUCED.get(file.getAbsoluteFile());
+        if (producer != null) {
+            return new MappedRing(file, null, null, producer.buffer, producer.capacity);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < DATA_OFFSET) {
+                raf.close();
+                return null;
+            }
+            MappedByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET);
+            if ((int)INTS.getAcquire(header, MAGIC_OFFSET) != MAGIC) {
+                raf.close();
+                return null;
+            }
+            int capacity = (int)INTS.get(header, CAPACITY_OFFSET);
+            return new MappedRing(file, raf, null, map(raf, capacity), capacity);
+        }
+        catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private static MappedRing produced(MappedRing ring) {
+        PRODUCED.put(ring.file.getAbsoluteFile(), ring);
+        return ring;
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile raf, int capacity) throws IOException {
+        return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + capacity);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Append a datagram. Only the producer may call this, from one thread
+     * at a time.
+     *
+     * @param packet
+     *            - the datagram.
+     * @return false if the ring has no room for it.
+     * @throws IllegalArgumentException
+     *             If the datagram can not be encoded, or is longer than half
+     *             the ring.
+     */
+    public boolean offer(KtnDatagram packet) {
+        int length = DatagramCodec.encodedLength(packet);
+        int record = align(4 + length);
+        if (record > capacity / 2)
+            throw new IllegalArgumentException("Datagram too long for the ring.");
+        long tail = (long)LONGS.get(buffer, TAIL_OFFSET);
+        long head = (long)LONGS.getAcquire(buffer, HEAD_OFFSET);
+        int offset = (int)(tail & (capacity - 1));
+        int padding = offset + record > capacity ? capacity - offset : 0;
+        if (tail + padding + record - head > capacity) {
+            return false;
+        }
+        writer.clear();
+        if (padding > 0) {
+            writer.putInt(offset, PADDING);
+            tail += padding;
+            offset = 0;
+        }
+        writer.putInt(offset, length);
+        writer.limit(offset + 4 + length).position(offset + 4);
+        DatagramCodec.encode(packet, writer);
+        LONGS.setRelease(buffer, TAIL_OFFSET, tail + record);
+        return true;
+    }
+
+    /**
+     * Take the next datagram. Only the consumer may call this, from one
+     * thread at a time.
+     *
+     * @return The datagram, or null if the ring is empty.
+     * @throws IllegalArgumentException
+     *             If the record is not an encoded datagram. It is skipped.
+     */
+    public KtnDatagram poll() {
+        long head = (long)LONGS.get(buffer, HEAD_OFFSET);
+        long tail = (long)LONGS.getAcquire(buffer, TAIL_OFFSET);
+        if (head == tail) {
+            return null;
+        }
+        int offset = (int)(head & (capacity - 1));
+        reader.clear();
+        int length = reader.getInt(offset);
+        if (length == PADDING) {
+            head += capacity - offset;
+            offset = 0;
+            length = reader.getInt(0);
+        }
+        if (length < 0 || 4 + length > capacity) {
+            // Can only be a broken file, start over at the tail
+            LONGS.setRelease(buffer, HEAD_OFFSET, tail);
+            throw new IllegalArgumentException("Broken ring record.");
+        }
+        try {
+            reader.limit(offset + 4 + length).position(offset + 4);
+            return DatagramCodec.decode(reader);
+        }
+        finally {
+            LONGS.setRelease(buffer, HEAD_OFFSET, head + align(4 + length));
+        }
+    }
+
+    /** Release the lock of the producer and close the file. */
+    public void close() {
+        if (lock != null) PRODUCED.remove(file.getAbsoluteFile(), this);
+        if (raf == null) return;
+        try {
+            if (lock != null) lock.release();
+            raf.close();
+        }
+        catch (IOException e) {
+            // Ignore.
+        }
+    }
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+}
@@ -0,0 +1,84 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.cl.FailureController;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * The one thread listening on the local port of a connection. It receives
+ * packets in a loop for as long as the connection lives and hands every
+ * packet to {@link AbstractConnection#dispatch(KtnDatagram)}, which queues
+ * it for the threads waiting in the connection. The port is opened by the
+ * transport of the connection, see {@link Transport#open(int)}, and kept
+ * open until the receiver is stopped, so nothing sent in between receive
+ * calls is refused.
+ *
+ * @see AbstractConnection#startReceiving()
+ */
+class PacketReceiver extends Thread {
+
+    /** The connection to hand packets to. */
+    private final AbstractConnection connection;
+    /** Port to listen on. */
+    private final int port;
+    /** The open port. */
+    private final Transport.Endpoint endpoint;
+    /** Set when the receiver should end. */
+    private volatile boolean stopped;
+
+    /**
+     * Open the local port of a connection. The receiver must be started to
+     * read from it.
+     *
+     * @param connection
+     *            - the connection to hand packets to.
+     * @param port
+     *            - the port to listen for packets on.
+     * @param transport
+     *            - the transport to open the port with.
+     * @throws IOException
+     *             If the port can not be opened.
+     */
+    public PacketReceiver(AbstractConnection connection, int port, Transport transport) throws IOException {
+        super("PacketReceiver-" + port);
+        this.connection = connection;
+        this.port = port;
+        this.stopped = false;
+        endpoint = transport.open(port);
+        setDaemon(true);
+    }
+
+    /** Receive packets until stopped or the port fails. */
+    public void run() {
+        try {
+            while (!stopped) {
+                KtnDatagram packet = endpoint.receive();
+                if (packet == null) continue;
+                if (packet.getDest_port() != port) {
+                    Log.writeToLog("Dropped packet for port " + packet.getDest_port(),
+                            "PacketReceiver");
+                    continue;
+                }
+                FailureController.packetReceivedCount++;
+                connection.dispatch(packet);
+            }
+        }
+        catch (IOException e) {
+            if (!stopped) {
+                Log.writeToLog("Exception while receiving: " + e.getMessage(), "PacketReceiver");
+                connection.receiveFailed(this, e);
+            }
+        }
+        finally {
+            endpoint.close();
+        }
+    }
+
+    /** Stop listening and close the port. */
+    public void stopReceive() {
+        stopped = true;
+        endpoint.close();
+    }
+}
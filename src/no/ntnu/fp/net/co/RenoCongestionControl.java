@@ -0,0 +1,56 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * Loss-based congestion control in the style of TCP Reno. The window starts
+ * in slow start, growing by one packet per ACKed packet, i.e. doubling every
+ * round trip, until it reaches the slow start threshold. Above it the window
+ * grows by one packet per round trip (additive increase). A retransmission
+ * timeout halves the threshold and restarts from a window of one packet. A
+ * fast retransmit halves the window and continues in congestion avoidance
+ * (multiplicative decrease).
+ */
+public class RenoCongestionControl implements CongestionControl {
+
+    /** Window of a new connection, in packets. */
+    public final static int INITIAL_WINDOW = 2;
+    /** The threshold is never set lower than this after a loss. */
+    public final static int MIN_THRESHOLD = 2;
+
+    private double cwnd;
+    private double ssthresh;
+
+    public RenoCongestionControl() {
+        cwnd = INITIAL_WINDOW;
+        ssthresh = Integer.MAX_VALUE;
+    }
+
+    public int getWindow() {
+        return (int)cwnd;
+    }
+
+    public void onAck(int acked, long rtt) {
+        for (int i = 0; i < acked; i++) {
+            if (cwnd < ssthresh) {
+                cwnd += 1;
+            }
+            else {
+                cwnd += 1 / cwnd;
+            }
+        }
+    }
+
+    public void onTimeout() {
+        ssthresh = Math.max(cwnd / 2, MIN_THRESHOLD);
+        cwnd = 1;
+    }
+
+    public void onFastRetransmit() {
+        ssthresh = Math.max(cwnd / 2, MIN_THRESHOLD);
+        cwnd = ssthresh;
+    }
+
+    /** @return The slow start threshold, in packets. */
+    public int getSlowStartThreshold() {
+        return (int)Math.min(ssthresh, Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,322 @@
+package no.ntnu.fp.net.co;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.fp.net.admin.Log;
+
+/**
+ * One timer thread shared by the retransmissions of all connections, in place
+ * of a {@link java.util.Timer} per packet, and by their delayed ACKs and
+ * other timeouts as well. Timeouts are kept in a hashed timer
+ * wheel: a ring of buckets, one per tick, where a timeout goes into the bucket
+ * of the tick it expires on, together with the number of turns of the wheel
+ * left before then. Both scheduling and cancelling are O(1), and every tick
+ * only looks at one bucket.<br>
+ * <br>
+ * Timeouts fire on the tick after their deadline at the latest, so a timeout
+ * is never early, but may be up to one tick late, more if the tasks of a tick
+ * take long. Tasks run on the timer thread and must not block: a task that
+ * may, like an ACK sent with retries, only hands its work to
+ * {@link #offload(Runnable)}.<br>
+ * <br>
+ * The scheduler keeps count of its pending timeouts and of how late the fired
+ * ones were, see {@link #toString()}.
+ *
+ * @see #getShared()
+ */
+public class RetransmitScheduler {
+
+    /** Default milliseconds per tick. */
+    public final static long DEFAULT_TICK = 10;
+
+    /** Default number of buckets, a power of two. */
+    public final static int DEFAULT_WHEEL_SIZE = 512;
+
+    private static RetransmitScheduler shared;
+
+    /**
+     * A scheduled task, which may be cancelled. The timeout is linked into the
+     * bucket it is waiting in.
+     */
+    public class Timeout {
+        private final Runnable task;
+        private final long period;
+        private long deadline;
+        private long rounds;
+        private boolean cancelled;
+        private Timeout prev, next;
+        private int bucket;
+
+        private Timeout(Runnable task, long deadline, long period) {
+            this.task = task;
+            this.deadline = deadline;
+            this.period = period;
+            this.bucket = -1;
+        }
+
+        /**
+         * Stop the task from running again. A task already running is not
+         * interrupted.
+         *
+         * @return false if the timeout was already cancelled.
+         */
+        public boolean cancel() {
+            synchronized (RetransmitScheduler.this) {
+                if (cancelled) return false;
+                cancelled = true;
+                unlink(this);
+                return true;
+            }
+        }
+
+        public boolean isCancelled() {
+            synchronized (RetransmitScheduler.this) {
+                return cancelled;
+            }
+        }
+
+        /** @return The scheduled task. */
+        public Runnable getTask() {
+            return task;
+        }
+    }
+
+    private final long tick;
+    private final Timeout[] wheel;
+    private final int mask;
+    /** When tick 0 started. */
+    private final long start;
+    /** The next tick to process. */
+    private long currentTick;
+    private Thread worker;
+    private ExecutorService offloaded;
+
+    private int pending;
+    private long fired;
+    private long totalLateness;
+    private long maxLateness;
+
+    /**
+     * Construct a scheduler. Its thread is started by the first timeout.
+     *
+     * @param tick
+     *            - milliseconds per tick, at least 1.
+     * @param wheelSize
+     *            - the number of buckets, a power of two.
+     */
+    public RetransmitScheduler(long tick, int wheelSize) {
+        if (tick < 1) throw new IllegalArgumentException("Tick must be at least 1 ms.");
+        if (wheelSize < 1 || (wheelSize & (wheelSize - 1)) != 0)
+            throw new IllegalArgumentException("Wheel size must be a power of two.");
+        this.tick = tick;
+        this.wheel = new Timeout[wheelSize];
+        this.mask = wheelSize - 1;
+        this.start = System.currentTimeMillis();
+        this.currentTick = 0;
+        this.pending = 0;
+        this.fired = 0;
+        this.totalLateness = 0;
+        this.maxLateness = 0;
+    }
+
+    public RetransmitScheduler() {
+        this(DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+    }
+
+    /** @return The scheduler shared by all connections. */
+    public static synchronized RetransmitScheduler getShared() {
+        if (shared == null) shared = new RetransmitScheduler();
+        return shared;
+    }
+
+    /**
+     * Run a task once after a delay.
+     *
+     * @param task
+     *            - the task to run.
+     * @param delay
+     *            - milliseconds until the task runs.
+     * @return The timeout, for cancelling.
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        return scheduleAtFixedRate(task, delay, 0);
+    }
+
+    /**
+     * Run a task after a delay, and then every period until cancelled. Like
+     * {@link java.util.Timer#scheduleAtFixedRate(java.util.TimerTask, long, long)}
+     * the runs are spaced from the first deadline, not from when the previous
+     * run actually happened.
+     *
+     * @param task
+     *            - the task to run.
+     * @param delay
+     *            - milliseconds until the first run.
+     * @param period
+     *            - milliseconds between runs, or 0 to only run once.
+     * @return The timeout, for cancelling.
+     */
+    public Timeout scheduleAtFixedRate(Runnable task, long delay, long period) {
+        if (delay < 0 || period < 0) throw new IllegalArgumentException("Negative delay.");
+        Timeout timeout = new Timeout(task, System.currentTimeMillis() + delay, period);
+        synchronized (this) {
+            insert(timeout);
+            if (worker == null) {
+                worker = new Thread("RetransmitScheduler") {
+                    public void run() {
+                        work();
+                    }
+                };
+                worker.setDaemon(true);
+                worker.start();
+            }
+        }
+        return timeout;
+    }
+
+    /**
+     * Run a task that may block, like a send that connects or sleeps before
+     * retrying, on a pool thread instead of the timer thread, so the timeouts
+     * of other connections are not held up. Pool threads are started as
+     * needed and end after idling for a minute.
+     *
+     * @param task
+     *            - the task to run.
+     */
+    public void offload(Runnable task) {
+        synchronized (this) {
+            if (offloaded == null) {
+                offloaded = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                            private int count = 0;
+
+                            public synchronized Thread newThread(Runnable r) {
+                                Thread thread = new Thread(r, "RetransmitScheduler-offload-" + count++);
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+            }
+        }
+        offloaded.execute(task);
+    }
+
+    /** @return true if called by a timer task, on the timer thread. */
+    public synchronized boolean isTimerThread() {
+        return Thread.currentThread() == worker;
+    }
+
+    /** @return The number of timeouts waiting to fire. */
+    public synchronized int getQueueDepth() {
+        return pending;
+    }
+
+    /** @return The number of timeouts fired so far, periodic runs counted apart. */
+    public synchronized long getTimeoutsFired() {
+        return fired;
+    }
+
+    /** @return The mean milliseconds a timeout fired after its deadline. */
+    public synchronized double getAverageLateness() {
+        return fired == 0 ? 0 : (double)totalLateness / fired;
+    }
+
+    /** @return The most milliseconds a timeout fired after its deadline. */
+    public synchronized long getMaxLateness() {
+        return maxLateness;
+    }
+
+    public synchronized String toString() {
+        return "queueDepth=" + pending + " fired=" + fired + " averageLateness="
+                + Math.round(getAverageLateness()) + "ms maxLateness=" + maxLateness + "ms";
+    }
+
+    /** Put a timeout in the bucket of the first tick at or after its deadline. */
+    private void insert(Timeout timeout) {
+        long ticks = (timeout.deadline - start + tick - 1) / tick;
+        if (ticks < currentTick) ticks = currentTick;
+        timeout.rounds = (ticks - currentTick) / wheel.length;
+        timeout.bucket = (int)(ticks & mask);
+        timeout.prev = null;
+        timeout.next = wheel[timeout.bucket];
+        if (timeout.next != null) timeout.next.prev = timeout;
+        wheel[timeout.bucket] = timeout;
+        pending++;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.bucket < 0) return;
+        if (timeout.prev != null) timeout.prev.next = timeout.next;
+        else wheel[timeout.bucket] = timeout.next;
+        if (timeout.next != null) timeout.next.prev = timeout.prev;
+        timeout.prev = timeout.next = null;
+        timeout.bucket = -1;
+        pending--;
+    }
+
+    /** The loop of the timer thread: wait for each tick and fire its bucket. */
+    private void work() {
+        List<Timeout> expired = new ArrayList<Timeout>();
+        while (true) {
+            long tickTime;
+            synchronized (this) {
+                tickTime = start + currentTick * tick;
+            }
+            long sleep = tickTime - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                }
+                catch (InterruptedException e) { /* do nothing */
+                }
+                continue;
+            }
+
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                Timeout timeout = wheel[(int)(currentTick & mask)];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.rounds <= 0) {
+                        unlink(timeout);
+                        expired.add(timeout);
+                        long lateness = Math.max(now - timeout.deadline, 0);
+                        fired++;
+                        totalLateness += lateness;
+                        maxLateness = Math.max(maxLateness, lateness);
+                    }
+                    else {
+                        timeout.rounds--;
+                    }
+                    timeout = next;
+                }
+                currentTick++;
+            }
+
+            for (Timeout timeout : expired) {
+                if (timeout.isCancelled()) continue;
+                try {
+                    timeout.task.run();
+                }
+                catch (RuntimeException e) {
+                    Log.writeToLog("Exception in timer task: " + e, "RetransmitScheduler");
+                }
+                if (timeout.period > 0) {
+                    synchronized (this) {
+                        if (!timeout.cancelled) {
+                            timeout.deadline += timeout.period;
+                            insert(timeout);
+                        }
+                    }
+                }
+            }
+            expired.clear();
+        }
+    }
+}
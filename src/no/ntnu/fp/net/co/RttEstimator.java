@@ -0,0 +1,81 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * Estimates the round trip time of a connection and derives the
+ * retransmission timeout (RTO) from it, following RFC 6298: the RTO is the
+ * smoothed RTT plus four times the RTT variance, doubled for every
+ * retransmission timeout in a row until a new sample arrives.<br>
+ * <br>
+ * Samples must only be taken from packets that were sent once (Karn's rule),
+ * as the ACK of a retransmitted packet may belong to any of its copies.
+ *
+ * @see SendWindow
+ */
+class RttEstimator {
+
+    /** Gain for the smoothed RTT, 1/8. */
+    private final static double ALPHA = 0.125;
+    /** Gain for the RTT variance, 1/4. */
+    private final static double BETA = 0.25;
+    /** Lower bound for the RTO, so a burst of fast ACKs can not make it tiny. */
+    public final static long MIN_RTO = 100;
+    /** Upper bound for the RTO, including backoff. */
+    public final static long MAX_RTO = 8 * AbstractConnection.RETRANSMIT;
+    /** The most doublings the backoff will apply. */
+    private final static int MAX_BACKOFF = 6;
+
+    private double srtt;
+    private double rttvar;
+    private boolean hasSample;
+    private int backoff;
+
+    public RttEstimator() {
+        hasSample = false;
+        backoff = 0;
+    }
+
+    /**
+     * Add an RTT measurement. This also ends any backoff in progress.
+     *
+     * @param rtt
+     *            - milliseconds from a packet was sent the first time until it
+     *            was acked.
+     */
+    public synchronized void addSample(long rtt) {
+        if (!hasSample) {
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+            hasSample = true;
+        }
+        else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+        backoff = 0;
+    }
+
+    /** Double the RTO after a retransmission timeout. */
+    public synchronized void backoff() {
+        if (backoff < MAX_BACKOFF) backoff++;
+    }
+
+    /**
+     * @return The smoothed RTT in milliseconds, or -1 if nothing has been
+     *         measured yet.
+     */
+    public synchronized long getSmoothedRtt() {
+        return hasSample ? Math.round(srtt) : -1;
+    }
+
+    /**
+     * @return The current retransmission timeout in milliseconds. Before the
+     *         first sample this is {@link AbstractConnection#RETRANSMIT}.
+     */
+    public synchronized long getRetransmitTimeout() {
+        long rto = AbstractConnection.RETRANSMIT;
+        if (hasSample) {
+            rto = Math.max(MIN_RTO, Math.round(srtt + 4 * rttvar));
+        }
+        return Math.min(rto << backoff, MAX_RTO);
+    }
+}
@@ -11,20 +11,22 @@ import no.ntnu.fp.net.co.AbstractConnection;
 
 /**
  * A helper class used when sending datagrams and waiting for ack. The class
- * specifies a TimerTask used in the Timer in the send-method of an
- * Connection-implementation. The class will resend a datagram using a socket at
- * timeout. The datagram and socket are specified in the constructor.
+ * specifies a task scheduled on the {@link RetransmitScheduler} in the
+ * send-method of an Connection-implementation. The class will resend a
+ * datagram using a socket at timeout. The datagram and socket are specified in
+ * the constructor.
  * 
  * @see AbstractConnection#simplySendPacket(KtnDatagram)
+ * @see RetransmitScheduler
  * @see java.util.TimerTask
- * @see java.util.Timer
  * @author Stein Jakob Nordb
  */
 public class SendTimer extends TimerTask {
 
-    private ClSocket socket;
+    private DatagramSender socket;
     private KtnDatagram packet;
     private int tries;
+    private volatile boolean paused;
 
     /**
      * Simple constructor.
@@ -34,10 +36,47 @@ public class SendTimer extends TimerTask {
      * @param packet
      *            - the packet to send if timeout
      */
-    public SendTimer(ClSocket socket, KtnDatagram packet) {
-        this.socket = socket;
+    public SendTimer(final ClSocket socket, KtnDatagram packet) {
+        this(new DatagramSender() {
+            public void send(KtnDatagram datagram) throws IOException, ClException {
+                socket.send(datagram);
+            }
+        }, packet);
+    }
+
+    /**
+     * Resend with the sender of a connection.
+     * 
+     * @param sender
+     *            - the sender to send the datagram with if timeout
+     * @param packet
+     *            - the packet to send if timeout
+     */
+    public SendTimer(DatagramSender sender, KtnDatagram packet) {
+        this.socket = sender;
         this.packet = packet;
         tries = 0;
+        paused = false;
+    }
+
+    /**
+     * Pause or resume the resends, e.g. while the receiver reports the packet
+     * as buffered in a selective ack.
+     * 
+     * @param paused
+     *            - true to skip the resends until resumed.
+     */
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /** @return The number of times the packet has been sent so far. */
+    public int getTries() {
+        return tries;
     }
 
     /**
@@ -47,8 +86,9 @@ public class SendTimer extends TimerTask {
      * same socket.
      */
     public void run() {
+        if (paused) return;
         try {
-            Log.writeToLog(packet, "Sending this datagram (try: " + ++tries + ")", "SendTimer");
+            DatagramLog.write(packet, "Sending this datagram (try: " + ++tries + ")", "SendTimer");
             
             socket.send(packet);
         }
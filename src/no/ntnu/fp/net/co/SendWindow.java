@@ -0,0 +1,399 @@
+package no.ntnu.fp.net.co;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Book-keeping for the data packets a connection has sent but not yet got
+ * acknowledged. Every outstanding packet has its own retransmission timeout
+ * on the shared {@link RetransmitScheduler}, which keeps resending it with a
+ * {@link SendTimer} until the packet is covered by a cumulative ACK or
+ * selectively acked, see {@link AckOptions}.
+ * <br>
+ * <br>
+ * The time between resends is the retransmission timeout of the
+ * {@link RttEstimator}, which is fed from the ACKs of packets that were only
+ * sent once. When the oldest outstanding packet times out, the RTO is backed
+ * off, doubling the timeout of every resend until an ACK gives a new
+ * sample.<br>
+ * <br>
+ * How many packets may actually be in flight is the smallest of the capacity,
+ * the window of the {@link CongestionControl}, which is told about every ACK
+ * and every timeout of the oldest outstanding packet, and the receive window
+ * advertised by the remote end.<br>
+ * <br>
+ * When the remote end has no room left, nothing new is sent. Resends of
+ * outstanding packets then only probe the window, and do not count as
+ * losses. With no packet outstanding, the last acked packet is resent as a
+ * probe, with a doubling interval, so that a lost window update can not
+ * stall the connection.<br>
+ * <br>
+ * When the same cumulative ack arrives a number of times in a row, the
+ * receiver is buffering packets beyond a hole, and the first outstanding
+ * packet is resent at once instead of waiting for its timer (fast
+ * retransmit).<br>
+ * <br>
+ * All methods are synchronized, as ACKs are processed by the sending and
+ * receiving threads while the timeouts run on the thread of the scheduler.
+ *
+ * @see AbstractConnection#sendDataPacketPipelined(KtnDatagram)
+ */
+class SendWindow {
+
+    /** A data packet in flight, together with the task resending it. */
+    private class Segment {
+        final KtnDatagram packet;
+        final SendTimer task;
+        /** When the packet was first sent. */
+        long firstSent;
+        /** The scheduled retransmission timeout. */
+        RetransmitScheduler.Timeout pending;
+
+        Segment(KtnDatagram packet) {
+            this.packet = packet;
+            this.task = new SendTimer(sender, packet);
+        }
+
+        /**
+         * Send the packet, unless paused, and schedule the next resend in
+         * place of any already scheduled.
+         *
+         * @return true if the packet was sent.
+         */
+        boolean transmit() {
+            int tries = task.getTries();
+            task.run();
+            long timeout = rtt.getRetransmitTimeout();
+            if (pending != null) pending.cancel();
+            pending = scheduler.schedule(new Runnable() {
+                public void run() {
+                    timeout(Segment.this);
+                }
+            }, timeout);
+
+            if (task.getTries() == tries) return false;
+            statistics.countDataPacketSent();
+            return true;
+        }
+    }
+
+    /** Outstanding packets, ordered by sequence number. */
+    private SortedMap<Integer, Segment> outstanding;
+    /** Maximum number of outstanding packets. */
+    private int capacity;
+    /** Round trip time measurements for the connection. */
+    private RttEstimator rtt;
+    /** Limits the window when packets are lost. */
+    private CongestionControl congestion;
+    /** Counters of the connection. */
+    private ConnectionStatistics statistics;
+    /** Runs the retransmission timeouts. */
+    private RetransmitScheduler scheduler;
+    /** Highest cumulative ack received, -1 before the first. */
+    private int lastAck;
+    /** Number of ACKs in a row repeating lastAck. */
+    private int duplicateAcks;
+    /** Duplicate ACKs needed to trigger a fast retransmit. */
+    private int duplicateAckThreshold;
+    /** Receive window last advertised by the remote end, in packets. */
+    private int advertised;
+    /** The newest packet covered by a cumulative ACK, sent as window probe. */
+    private KtnDatagram lastAcked;
+    /** The next window probe, while the window is closed and empty. */
+    private RetransmitScheduler.Timeout probe;
+    /** Milliseconds until the next window probe. */
+    private long probeDelay;
+    /** Sends the packets and their resends. */
+    private DatagramSender sender;
+
+    /**
+     * Construct an empty window.
+     *
+     * @param capacity
+     *            - the maximum number of unacknowledged packets, at least 1.
+     * @param rtt
+     *            - the estimator to feed with, and take timeouts from.
+     * @param congestion
+     *            - the congestion control to apply.
+     * @param statistics
+     *            - the counters to update.
+     */
+    public SendWindow(int capacity, RttEstimator rtt, CongestionControl congestion,
+            ConnectionStatistics statistics) {
+        outstanding = new TreeMap<Integer, Segment>();
+        this.rtt = rtt;
+        this.statistics = statistics;
+        this.scheduler = RetransmitScheduler.getShared();
+        setCapacity(capacity);
+        setCongestionControl(congestion);
+        lastAck = -1;
+        duplicateAcks = 0;
+        duplicateAckThreshold = AbstractConnection.DEFAULT_DUPLICATE_ACK_THRESHOLD;
+        advertised = AbstractConnection.DEFAULT_RECEIVE_WINDOW;
+        lastAcked = null;
+        probe = null;
+        sender = UdpTransport.INSTANCE;
+    }
+
+    /**
+     * @param sender
+     *            - the sender of the packets added from now on.
+     */
+    public synchronized void setSender(DatagramSender sender) {
+        this.sender = sender;
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Window size must be at least 1.");
+        this.capacity = capacity;
+    }
+
+    public synchronized CongestionControl getCongestionControl() {
+        return congestion;
+    }
+
+    public synchronized void setCongestionControl(CongestionControl congestion) {
+        if (congestion == null) throw new IllegalArgumentException("Congestion control can not be null.");
+        this.congestion = congestion;
+    }
+
+    /**
+     * @return The number of packets that may be in flight right now, the
+     *         smallest of the capacity, the congestion window and the
+     *         receive window of the remote end.
+     */
+    public synchronized int getWindow() {
+        return Math.min(Math.max(Math.min(capacity, congestion.getWindow()), 1), advertised);
+    }
+
+    /** @return The receive window last advertised by the remote end. */
+    public synchronized int getAdvertisedWindow() {
+        return advertised;
+    }
+
+    /** @return true if no more packets may be sent before an ACK arrives. */
+    public synchronized boolean isFull() {
+        return outstanding.size() >= getWindow();
+    }
+
+    /** @return true if one more packet fills the window. */
+    public synchronized boolean isNearlyFull() {
+        return outstanding.size() + 1 >= getWindow();
+    }
+
+    public synchronized boolean isEmpty() {
+        return outstanding.isEmpty();
+    }
+
+    /** @return the number of packets in flight. */
+    public synchronized int size() {
+        return outstanding.size();
+    }
+
+    /**
+     * @return true if no packet up to and including the given sequence
+     *         number is waiting for a cumulative ACK.
+     */
+    public synchronized boolean isAcknowledged(int seq) {
+        return outstanding.isEmpty() || outstanding.firstKey() > seq;
+    }
+
+    public synchronized int getDuplicateAckThreshold() {
+        return duplicateAckThreshold;
+    }
+
+    public synchronized void setDuplicateAckThreshold(int threshold) {
+        if (threshold < 1) throw new IllegalArgumentException("Threshold must be at least 1.");
+        this.duplicateAckThreshold = threshold;
+    }
+
+    /**
+     * Send a packet and keep resending it until it is acknowledged.
+     *
+     * @param packet
+     *            - the data packet to send.
+     */
+    public synchronized void send(KtnDatagram packet) {
+        Segment segment = new Segment(packet);
+        outstanding.put(packet.getSeq_nr(), segment);
+        segment.firstSent = System.currentTimeMillis();
+        segment.transmit();
+    }
+
+    /** Called when the retransmission timeout of a segment expires. */
+    private synchronized void timeout(Segment segment) {
+        if (outstanding.get(segment.packet.getSeq_nr()) != segment) {
+            return; // acked meanwhile
+        }
+        boolean closed = advertised == 0;
+        if (!segment.task.isPaused() && outstanding.firstKey() == segment.packet.getSeq_nr()) {
+            // A probe of a closed window backs off too, but is no loss
+            rtt.backoff();
+            if (!closed) congestion.onTimeout();
+        }
+        if (segment.transmit()) {
+            if (closed) statistics.countWindowProbe();
+            else statistics.countTimeoutRetransmission();
+        }
+    }
+
+    /**
+     * Apply a cumulative acknowledgement: every packet with a sequence number
+     * up to and including <code>ackNo</code> has arrived. The newest of the
+     * acked packets gives an RTT sample, unless it was retransmitted. The
+     * congestion window only grows if it was in full use.<br>
+     * <br>
+     * A plain ACK repeating the previous cumulative ack while packets are
+     * outstanding is a duplicate, unless it opens the receive window. A
+     * smaller window still counts, as the remote end shrinks it for every
+     * packet it buffers ahead of the one missing, which is just when its
+     * duplicates are sent. The duplicate that reaches the threshold resends
+     * the first outstanding packet.<br>
+     * <br>
+     * The receive window is taken from the ACK unless a newer cumulative ack
+     * has been seen already, as ACKs may arrive out of order.
+     *
+     * @param ackNo
+     *            - the ack number carried by the ACK packet.
+     * @param window
+     *            - the receive window advertised with the ack.
+     * @param plain
+     *            - true for an ACK packet, false for an ack piggybacked on a
+     *            data packet, which is never a duplicate.
+     * @return the number of packets removed from the window, 0 for a duplicate
+     *         or stale ACK.
+     */
+    public synchronized int acknowledge(int ackNo, int window, boolean plain) {
+        boolean limited = outstanding.size() >= congestion.getWindow();
+        int removed = 0;
+        Segment newest = null;
+        Iterator<Map.Entry<Integer, Segment>> it = outstanding.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Segment> entry = it.next();
+            if (entry.getKey() > ackNo) break;
+            newest = entry.getValue();
+            newest.pending.cancel();
+            it.remove();
+            removed++;
+        }
+        long sample = -1;
+        if (newest != null) {
+            lastAcked = newest.packet;
+            if (newest.task.getTries() == 1) {
+                sample = System.currentTimeMillis() - newest.firstSent;
+                rtt.addSample(sample);
+            }
+        }
+        if (removed > 0) {
+            congestion.onAck(limited ? removed : 0, sample);
+        }
+
+        boolean windowOpened = false;
+        if (ackNo >= lastAck) {
+            windowOpened = window > advertised;
+            setAdvertisedWindow(window);
+        }
+        if (ackNo > lastAck || lastAck < 0) {
+            lastAck = ackNo;
+            duplicateAcks = 0;
+        }
+        else if (ackNo == lastAck && plain && !outstanding.isEmpty() && !windowOpened && advertised > 0) {
+            statistics.countDuplicateAck();
+            if (++duplicateAcks == duplicateAckThreshold) {
+                fastRetransmit();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Take a new receive window from the remote end, and probe it while it
+     * is closed and no packet is outstanding to do so.
+     */
+    private void setAdvertisedWindow(int window) {
+        if (window == 0 && advertised > 0) {
+            statistics.countZeroWindow();
+        }
+        advertised = window;
+        if (advertised == 0 && outstanding.isEmpty() && lastAcked != null) {
+            if (probe == null) {
+                probeDelay = rtt.getRetransmitTimeout();
+                scheduleProbe();
+            }
+        }
+        else {
+            stopProbe();
+        }
+    }
+
+    private void scheduleProbe() {
+        probe = scheduler.schedule(new Runnable() {
+            public void run() {
+                synchronized (SendWindow.this) {
+                    if (probe == null || probe.getTask() != this) return;
+                    new SendTimer(sender, lastAcked).run();
+                    statistics.countWindowProbe();
+                    probeDelay = Math.min(probeDelay * 2, RttEstimator.MAX_RTO);
+                    scheduleProbe();
+                }
+            }
+        }, probeDelay);
+    }
+
+    private void stopProbe() {
+        if (probe != null) {
+            probe.cancel();
+            probe = null;
+        }
+    }
+
+    /** Resend the first outstanding packet, the one the receiver is missing. */
+    private void fastRetransmit() {
+        Segment segment = outstanding.get(outstanding.firstKey());
+        segment.task.setPaused(false);
+        congestion.onFastRetransmit();
+        if (segment.transmit()) {
+            statistics.countFastRetransmission();
+        }
+    }
+
+    /**
+     * Apply the selective-ack bitmap of an ACK. Packets the receiver reports
+     * as buffered stay in the window until the cumulative ack passes them, but
+     * their retransmissions are paused. The bitmap of the latest ACK is taken
+     * as the truth, so a packet missing from it is resent again.
+     *
+     * @param ackNo
+     *            - the cumulative ack number carried by the ACK packet.
+     * @param options
+     *            - the options of the ACK packet.
+     * @return the number of packets newly marked as selectively acked.
+     */
+    public synchronized int selectiveAcknowledge(int ackNo, AckOptions options) {
+        int marked = 0;
+        for (Map.Entry<Integer, Segment> entry : outstanding.tailMap(ackNo + 1).entrySet()) {
+            SendTimer task = entry.getValue().task;
+            boolean sacked = options.isSelectivelyAcked(ackNo, entry.getKey());
+            if (sacked && !task.isPaused()) marked++;
+            task.setPaused(sacked);
+        }
+        return marked;
+    }
+
+    /** Stop all retransmissions and forget the outstanding packets. */
+    public synchronized void clear() {
+        for (Segment segment : outstanding.values()) {
+            segment.pending.cancel();
+        }
+        outstanding.clear();
+        stopProbe();
+    }
+}
@@ -0,0 +1,578 @@
+package no.ntnu.fp.net.co;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.cl.ClException;
+import no.ntnu.fp.net.cl.FailureController;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Carries the datagrams between processes on the same host through
+ * memory-mapped files, so they cost no system call, and everything else
+ * through a fallback transport, {@link UdpTransport} by default.<br>
+ * <br>
+ * Every open port has a small port file in the directory of the transport,
+ * <code>&lt;port&gt;.port</code>, locked by the process receiving on it and
+ * holding a generation number, which is new every time the port is opened
+ * and set to 0 before the file is deleted on close, and whether the
+ * receiver sleeps. A sender to a local port with a live generation writes
+ * into a {@link MappedRing} of its own for the pair of ports,
+ * <code>&lt;dest port&gt;-&lt;src port&gt;-&lt;generation&gt;.ring</code>,
+ * which the receiver finds by listing the directory. A datagram the ring
+ * has no room for is dropped, like one lost on the network. A port opened
+ * for receiving is also opened on the fallback transport, for packets from
+ * other hosts and from processes not using shared memory, so both ends need
+ * not use this transport, though a packet sent through the fallback is
+ * only received if the other end opened its port the same way.<br>
+ * <br>
+ * The receiving thread polls its rings, yielding in between, and goes to
+ * sleep when they stay empty. Senders to a sleeping receiver use the
+ * fallback instead, which wakes it, so an idle port costs no processor
+ * time and a busy one no system calls. A datagram written into a ring just
+ * as its receiver falls asleep waits for up to {@link #MAX_SLEEP_NANOS}.
+ * Datagrams on this path see no errors of A2.
+ *
+ * @see AbstractConnection#setTransport(Transport)
+ */
+public final class SharedMemoryTransport implements Transport {
+
+    /** Bytes of data in a ring, for one pair of ports. */
+    public final static int DEFAULT_RING_CAPACITY = 1 << 20;
+
+    /** Longest time a sleeping receiver goes without looking at its rings. */
+    public final static long MAX_SLEEP_NANOS = 1000000;
+
+    /** How often an idle receiver looks for new rings. */
+    private final static long SCAN_INTERVAL_NANOS = 5000000;
+
+    /** How long a local port without a live port file is sent to through the fallback. */
+    private final static long RECHECK_NANOS = 1000000000;
+
+    /** Polls of an idle receiver before it goes to sleep. */
+    private final static int SPINS = 50;
+
+    private final static int GENERATION_OFFSET = 0;
+    private final static int SLEEPING_OFFSET = 8;
+    private final static int PORT_FILE_LENGTH = 16;
+
+    private final static String PORT_SUFFIX = ".port";
+    private final static String RING_SUFFIX = ".ring";
+
+    private final static VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+
+    /**
+     * The ports open in this process, by port file. Closing any file
+     * descriptor of a port file would release the lock of its receiver, so
+     * the port files of these are never opened again.
+     */
+    private final static Map<File, Inbox> OPEN = new ConcurrentHashMap<File, Inbox>();
+
+    /**
+     * Shares its files in /dev/shm/ktn if there is such a file system, or
+     * else in ktn under the temporary directory, with UDP as the fallback.
+     */
+    public final static SharedMemoryTransport INSTANCE = new SharedMemoryTransport(defaultDirectory(),
+            UdpTransport.INSTANCE, DEFAULT_RING_CAPACITY);
+
+    private final File directory;
+    private final Transport fallback;
+    private final int ringCapacity;
+
+    /** Whether an address in a datagram is one of this host, by the name in the datagram. */
+    private final Map<String, Boolean> local;
+
+    /** The mapped port files of local ports sent to, by port. */
+    private final Map<Integer, MappedByteBuffer> ports;
+
+    /** When a port without a port file was last looked for, by port. */
+    private final Map<Integer, Long> missing;
+
+    /** The rings sent into, by destination and source port. */
+    private final Map<Integer, Link> links;
+
+    /**
+     * @param directory
+     *            - where to share the port files and rings, ideally on a
+     *            file system in memory. Every process on the host must use
+     *            the same one.
+     * @param fallback
+     *            - for datagrams to other hosts, and to ports not open on
+     *            this transport.
+     * @param ringCapacity
+     *            - bytes of data in a ring, a power of two.
+     */
+    public SharedMemoryTransport(File directory, Transport fallback, int ringCapacity) {
+        if (fallback == null)
+            throw new IllegalArgumentException("Fallback transport can not be null.");
+        if (Integer.bitCount(ringCapacity) != 1 || ringCapacity < 64)
+            throw new IllegalArgumentException("Ring capacity must be a power of two, at least 64.");
+        this.directory = directory;
+        this.fallback = fallback;
+        this.ringCapacity = ringCapacity;
+        local = new ConcurrentHashMap<String, Boolean>();
+        ports = new ConcurrentHashMap<Integer, MappedByteBuffer>();
+        missing = new ConcurrentHashMap<Integer, Long>();
+        links = new ConcurrentHashMap<Integer, Link>();
+    }
+
+    private static File defaultDirectory() {
+        File shm = new File("/dev/shm");
+        File parent = shm.isDirectory() && shm.canWrite() ? shm : new File(System.getProperty("java.io.tmpdir"));
+        return new File(parent, "ktn");
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public Transport getFallback() {
+        return fallback;
+    }
+
+    /**
+     * Write the datagram into the ring to its port if that is open on this
+     * host, or else send it through the fallback.
+     *
+     * @see DatagramSender#send(KtnDatagram)
+     */
+    public void send(KtnDatagram packet) throws IOException, ClException {
+        if (isLocal(packet.getDest_addr())) {
+            Link link = link(packet.getDest_port(), packet.getSrc_port());
+            if (link != null && !link.isSleeping()) {
+                if (link.offer(packet)) {
+                    FailureController.packetSentCount++;
+                }
+                else {
+                    DatagramLog.write(packet, "Ring full, dropped datagram", "SharedMemoryTransport");
+                }
+                return;
+            }
+        }
+        fallback.send(packet);
+    }
+
+    public Endpoint open(int port) throws IOException {
+        return new Inbox(port);
+    }
+
+    private boolean isLocal(String address) {
+        if (address == null) return false;
+        Boolean isLocal = local.get(address);
+        if (isLocal == null) {
+            try {
+                InetAddress resolved = InetAddress.getByName(address);
+                isLocal = resolved.isLoopbackAddress() || resolved.isAnyLocalAddress()
+                        || NetworkInterface.getByInetAddress(resolved) != null;
+            }
+            catch (IOException e) {
+                isLocal = false;
+            }
+            local.put(address, isLocal);
+        }
+        return isLocal;
+    }
+
+    /**
+     * @return The ring to the destination port from the source port, for
+     *         its current generation, or null if the port is not open on
+     *         this transport.
+     */
+    private Link link(int destPort, int srcPort) throws IOException {
+        MappedByteBuffer port = portMapping(destPort);
+        long generation = port != null ? (long)LONGS.getAcquire(port, GENERATION_OFFSET) : 0;
+        Integer key = (destPort << 16) | (srcPort & 0xffff);
+        Link link = links.get(key);
+        if (link != null && link.generation == generation) {
+            return link;
+        }
+        synchronized (links) {
+            link = links.get(key);
+            if (link != null && link.generation == generation) {
+                return link;
+            }
+            if (link != null) {
+                links.remove(key);
+                link.close();
+            }
+            if (generation == 0) {
+                if (port != null && ports.remove(destPort, port)) {
+                    // Closed, and its port file deleted; a new one is looked for later
+                    missing.put(destPort, System.nanoTime());
+                }
+                return null;
+            }
+            if (!isReceiving(destPort)) {
+                return null;
+            }
+            sweep();
+            MappedRing ring = MappedRing.produce(new File(directory, destPort + "-" + srcPort + "-"
+                    + Long.toHexString(generation) + RING_SUFFIX), ringCapacity);
+            if (ring == null) {
+                // Another process sends from the same port
+                return null;
+            }
+            link = new Link(ring, generation, port);
+            links.put(key, link);
+            return link;
+        }
+    }
+
+    /**
+     * Close the rings to ports that were closed since, and forget their
+     * port files, so the peers of connections that ended hold no memory.
+     */
+    private void sweep() {
+        for (Map.Entry<Integer, Link> entry : links.entrySet()) {
+            Link link = entry.getValue();
+            if (link.generation != (long)LONGS.getAcquire(link.port, GENERATION_OFFSET)) {
+                links.remove(entry.getKey(), link);
+                link.close();
+            }
+        }
+        for (Map.Entry<Integer, MappedByteBuffer> entry : ports.entrySet()) {
+            if ((long)LONGS.getAcquire(entry.getValue(), GENERATION_OFFSET) == 0) {
+                ports.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /** @return The mapped port file of a local port, or null if there is none. */
+    private MappedByteBuffer portMapping(int port) throws IOException {
+        MappedByteBuffer mapped = ports.get(port);
+        if (mapped == null) {
+            File file = portFile(port);
+            Inbox inbox = OPEN.get(file);
+            if (inbox != null) {
+                return inbox.mapped;
+            }
+            Long checked = missing.get(port);
+            if (checked != null && System.nanoTime() - checked < RECHECK_NANOS) {
+                return null;
+            }
+            if (!file.isFile()) {
+                missing.put(port, System.nanoTime());
+                return null;
+            }
+            mapped = mapPort(file);
+            ports.put(port, mapped);
+            missing.remove(port);
+        }
+        return mapped;
+    }
+
+    /**
+     * @return false if nothing holds the lock of the port file, as the
+     *         receiver died without closing it.
+     */
+    private boolean isReceiving(int port) throws IOException {
+        File file = portFile(port);
+        if (OPEN.containsKey(file)) {
+            return true;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileLock lock = raf.getChannel().tryLock();
+            if (lock == null) return true;
+            lock.release();
+            return false;
+        }
+        catch (OverlappingFileLockException e) {
+            // Held by this JVM, through another transport
+            return true;
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private File portFile(int port) {
+        return new File(directory, port + PORT_SUFFIX).getAbsoluteFile();
+    }
+
+    private static MappedByteBuffer mapPort(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // The mapping stays valid after the file is closed
+            if (raf.length() < PORT_FILE_LENGTH) raf.setLength(PORT_FILE_LENGTH);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, PORT_FILE_LENGTH);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /** A ring sent into, by any thread of this JVM, one at a time. */
+    private static class Link {
+
+        private final MappedRing ring;
+        private final long generation;
+        private final MappedByteBuffer port;
+
+        Link(MappedRing ring, long generation, MappedByteBuffer port) {
+            this.ring = ring;
+            this.generation = generation;
+            this.port = port;
+        }
+
+        boolean isSleeping() {
+            return (long)LONGS.getAcquire(port, SLEEPING_OFFSET) != 0;
+        }
+
+        synchronized boolean offer(KtnDatagram packet) throws IOException {
+            try {
+                return ring.offer(packet);
+            }
+            catch (IllegalArgumentException e) {
+                throw new IOException("Can not write datagram: " + e.getMessage());
+            }
+        }
+
+        synchronized void close() {
+            ring.close();
+        }
+    }
+
+    /** A local port, with its rings and its port of the fallback. */
+    private class Inbox implements Endpoint, Runnable {
+
+        private final int port;
+        private final File file;
+        /** Held on the port file while the port is open. */
+        private final FileLock lock;
+        private final MappedByteBuffer mapped;
+        private final long generation;
+        private final Endpoint fallbackEndpoint;
+        /** Only used by the receiving thread. */
+        private final List<MappedRing> rings;
+        /** Datagrams received through the fallback. */
+        private final ConcurrentLinkedQueue<KtnDatagram> forwarded;
+        private volatile Thread receiver;
+        private volatile IOException failure;
+        private volatile boolean closed;
+        private long nextScan;
+        private int next;
+
+        Inbox(int port) throws IOException {
+            this.port = port;
+            directory.mkdirs();
+            file = portFile(port);
+            if (OPEN.putIfAbsent(file, this) != null) throw new BindException("Port " + port + " is already open.");
+            try {
+                lock = lockPortFile();
+                try {
+                    fallbackEndpoint = fallback.open(port);
+                    mapped = lock.channel().map(FileChannel.MapMode.READ_WRITE, 0, PORT_FILE_LENGTH);
+                }
+                catch (IOException e) {
+                    lock.channel().close();
+                    throw e;
+                }
+            }
+            catch (IOException e) {
+                OPEN.remove(file, this);
+                throw e;
+            }
+            long fresh;
+            do {
+                fresh = new Random().nextLong();
+            }
+            while (fresh == 0);
+            generation = fresh;
+            rings = new ArrayList<MappedRing>();
+            forwarded = new ConcurrentLinkedQueue<KtnDatagram>();
+            deleteRings(true);
+            LONGS.set(mapped, SLEEPING_OFFSET, 0L);
+            LONGS.setRelease(mapped, GENERATION_OFFSET, generation);
+
+            Thread thread = new Thread(this, "SharedMemoryTransport " + port);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private FileLock lockPortFile() throws IOException {
+            while (true) {
+                FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+                FileLock held;
+                try {
+                    held = channel.tryLock();
+                }
+                catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                if (held == null) {
+                    channel.close();
+                    throw new BindException("Port " + port + " is already open.");
+                }
+                if (file.isFile()) {
+                    return held;
+                }
+                // Deleted by the receiver closing it meanwhile, make a new one
+                channel.close();
+            }
+        }
+
+        /** Receive from the fallback, for the receiving thread. */
+        public void run() {
+            try {
+                while (!closed) {
+                    KtnDatagram packet = fallbackEndpoint.receive();
+                    if (packet != null) {
+                        forwarded.add(packet);
+                        LockSupport.unpark(receiver);
+                    }
+                }
+            }
+            catch (IOException e) {
+                if (!closed) failure = e;
+                LockSupport.unpark(receiver);
+            }
+        }
+
+        public KtnDatagram receive() throws IOException {
+            receiver = Thread.currentThread();
+            int idle = 0;
+            boolean sleeping = false;
+            try {
+                while (true) {
+                    if (closed) {
+                        for (MappedRing ring : rings) {
+                            ring.close();
+                        }
+                        rings.clear();
+                        throw new ClosedChannelException();
+                    }
+                    KtnDatagram packet = forwarded.poll();
+                    if (packet != null) return packet;
+                    for (int n = 0; n < rings.size(); n++) {
+                        // Start at the next ring every time, so a busy one can not starve the others
+                        next = (next + 1) % rings.size();
+                        try {
+                            packet = rings.get(next).poll();
+                        }
+                        catch (IllegalArgumentException e) {
+                            Log.writeToLog("Broken packet: " + e.getMessage(), "SharedMemoryTransport");
+                            return null;
+                        }
+                        if (packet != null) return packet;
+                    }
+                    if (failure != null) throw failure;
+                    if (idle++ < SPINS) {
+                        long now = System.nanoTime();
+                        if (now - nextScan >= 0) {
+                            scan();
+                            nextScan = now + SCAN_INTERVAL_NANOS;
+                        }
+                        // Lets the sender run, if it shares the processor
+                        Thread.yield();
+                    }
+                    else if (!sleeping) {
+                        // Look for rings once more after telling the senders, who
+                        // create their ring before they look whether it sleeps
+                        LONGS.setVolatile(mapped, SLEEPING_OFFSET, 1L);
+                        VarHandle.fullFence();
+                        scan();
+                        sleeping = true;
+                    }
+                    else {
+                        LockSupport.parkNanos(MAX_SLEEP_NANOS);
+                    }
+                }
+            }
+            finally {
+                if (sleeping) LONGS.setRelease(mapped, SLEEPING_OFFSET, 0L);
+            }
+        }
+
+        /** Attach the rings of senders new since the last scan. */
+        private void scan() {
+            final String prefix = port + "-";
+            final String suffix = "-" + Long.toHexString(generation) + RING_SUFFIX;
+            File[] files = directory.listFiles(new FileFilter() {
+                public boolean accept(File file) {
+                    String name = file.getName();
+                    return name.startsWith(prefix) && name.endsWith(suffix);
+                }
+            });
+            if (files == null || files.length == rings.size()) return;
+            for (File file : files) {
+                boolean attached = false;
+                for (MappedRing ring : rings) {
+                    attached |= ring.getFile().equals(file);
+                }
+                if (attached) continue;
+                try {
+                    MappedRing ring = MappedRing.consume(file);
+                    if (ring != null) rings.add(ring);
+                }
+                catch (IOException e) {
+                    Log.writeToLog("Can not open ring " + file.getName() + ": " + e.getMessage(),
+                            "SharedMemoryTransport");
+                }
+            }
+        }
+
+        /**
+         * Delete the rings to this port, those of older generations, left by
+         * a receiver that died, or those of this one.
+         */
+        private void deleteRings(final boolean stale) {
+            final String prefix = port + "-";
+            final String current = "-" + Long.toHexString(generation) + RING_SUFFIX;
+            File[] files = directory.listFiles(new FileFilter() {
+                public boolean accept(File file) {
+                    String name = file.getName();
+                    return name.startsWith(prefix) && name.endsWith(RING_SUFFIX)
+                            && name.endsWith(current) != stale;
+                }
+            });
+            if (files == null) return;
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        public void close() {
+            if (closed) return;
+            closed = true;
+            LONGS.setRelease(mapped, GENERATION_OFFSET, 0L);
+            fallbackEndpoint.close();
+            LockSupport.unpark(receiver);
+            // Senders see the generation end and stop using the rings
+            deleteRings(false);
+            // Before the lock is released, so a receiver opening the port next finds it gone
+            file.delete();
+            try {
+                lock.release();
+                lock.channel().close();
+            }
+            catch (IOException e) {
+                // Ignore.
+            }
+            OPEN.remove(file, this);
+        }
+    }
+}
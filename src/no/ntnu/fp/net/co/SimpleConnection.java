@@ -15,6 +15,8 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 import no.ntnu.fp.net.co.Connection;
 
@@ -86,20 +88,71 @@ public class SimpleConnection implements Connection {
    * @see no.ntnu.fp.net.co.Connection#send(java.lang.String)
    */
   public void send(String msg) throws ConnectException, IOException {
-    os.writeUTF(msg);
+    byte[] data = DataFrame.encodeText(msg);
+    send(data, 0, data.length);
+  }
+
+  /* (non-Javadoc)
+   * @see no.ntnu.fp.net.co.Connection#send(java.nio.ByteBuffer)
+   */
+  public void send(ByteBuffer msg) throws ConnectException, IOException {
+    byte[] data = new byte[msg.remaining()];
+    msg.get(data);
+    send(data, 0, data.length);
+  }
+
+  /**
+   * Every message, String or binary, is written as its length followed by
+   * its bytes, so the two kinds can be mixed on one connection.
+   * 
+   * @see no.ntnu.fp.net.co.Connection#send(byte[], int, int)
+   */
+  public void send(byte[] msg, int offset, int length) throws ConnectException, IOException {
+    os.writeInt(length);
+    os.write(msg, offset, length);
+    os.flush();
+  }
 
+  /**
+   * The messages are written before the stream is flushed, so they share
+   * TCP segments.
+   * 
+   * @see no.ntnu.fp.net.co.Connection#sendAll(java.util.List)
+   */
+  public void sendAll(List<String> msgs) throws ConnectException, IOException {
+    for (String msg : msgs) {
+      byte[] data = DataFrame.encodeText(msg);
+      os.writeInt(data.length);
+      os.write(data);
+    }
+    os.flush();
   }
 
   /* (non-Javadoc)
    * @see no.ntnu.fp.net.co.Connection#receive()
    */
   public String receive() throws ConnectException, IOException {
-    while (!stop) {
-      String s  = is.readUTF();
-      System.out.println("Received the text: "+s);
-      return s;
+    String s = DataFrame.decodeText(receiveMessage());
+    System.out.println("Received the text: "+s);
+    return s;
+  }
+
+  /* (non-Javadoc)
+   * @see no.ntnu.fp.net.co.Connection#receive(java.nio.ByteBuffer)
+   */
+  public int receive(ByteBuffer dst) throws ConnectException, IOException {
+    byte[] message = receiveMessage();
+    dst.put(message, 0, Math.min(message.length, dst.remaining()));
+    return message.length;
+  }
+
+  private byte[] receiveMessage() throws IOException {
+    if (stop) {
+      throw new IOException("Can't receive. The connection is not established!");
     }
-    throw new IOException("Can't receive. The connection is not established!");
+    byte[] message = new byte[is.readInt()];
+    is.readFully(message);
+    return message;
   }
 
   /* (non-Javadoc)
@@ -0,0 +1,104 @@
+package no.ntnu.fp.net.co;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.cl.ClSocket;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * A local port receiving datagrams the way {@link ClSocket} sends them, one
+ * per incoming TCP connection.<br>
+ * <br>
+ * {@link ClSocket#receive(int)} opens the port anew for every packet, so
+ * anything sent while no receive is in progress is refused, and a burst of
+ * packets mostly gets lost. This endpoint keeps the port open instead.
+ * Datagrams sent by {@link BinarySocket} are told apart by their first
+ * bytes, see {@link DatagramCodec#MAGIC}, and decoded without serialization.
+ *
+ * @see ClSocketTransport
+ */
+class StreamEndpoint implements Transport.Endpoint {
+
+    /** The open port. */
+    private final ServerSocket serverSocket;
+
+    /**
+     * @param port
+     *            - the port to listen for datagrams on.
+     * @throws IOException
+     *             If the port can not be opened.
+     */
+    public StreamEndpoint(int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port));
+    }
+
+    /**
+     * Read one datagram.
+     *
+     * @see Transport.Endpoint#receive()
+     */
+    public KtnDatagram receive() throws IOException {
+        Socket socket = serverSocket.accept();
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            in.mark(2);
+            int magic = (in.read() << 8) | in.read();
+            in.reset();
+            if (magic == DatagramCodec.MAGIC) {
+                return DatagramCodec.decode(readAll(in));
+            }
+            Object object = new ObjectInputStream(in).readObject();
+            return object instanceof KtnDatagram ? ClSocketTransport.unwrap((KtnDatagram)object) : null;
+        }
+        catch (IOException e) {
+            // A broken sender, not a broken port.
+            Log.writeToLog("Incomplete packet: " + e.getMessage(), "StreamEndpoint");
+            return null;
+        }
+        catch (IllegalArgumentException e) {
+            Log.writeToLog("Broken packet: " + e.getMessage(), "StreamEndpoint");
+            return null;
+        }
+        catch (ClassNotFoundException e) {
+            return null;
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    /** Read until the sender closes, one datagram is sent per connection. */
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+
+    public void close() {
+        try {
+            serverSocket.close();
+        }
+        catch (IOException e) {
+            // Ignore.
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Carries the datagrams of connections between hosts: sends them to the
+ * address and port given in their headers, and receives those sent to a
+ * local port. A connection sends and receives all its packets through one
+ * transport, see {@link AbstractConnection#setTransport(Transport)}, and
+ * both ends of a connection must use the same kind.<br>
+ * <br>
+ * A transport is shared by every connection using it, and must be safe to
+ * send with from several threads at once. An endpoint is read by a single
+ * thread, the {@link PacketReceiver} of the port.
+ *
+ * @see UdpTransport
+ * @see SharedMemoryTransport
+ * @see InProcessTransport
+ * @see ImpairedTransport
+ * @see ClSocketTransport
+ * @see BinarySocket
+ */
+public interface Transport extends DatagramSender {
+
+    /**
+     * Open a local port for receiving. A port is opened by at most one
+     * connection at a time, the one receiving for all connections on it.
+     *
+     * @param port
+     *            the local port
+     * @return The open port.
+     * @throws IOException
+     *             if the port can not be opened
+     */
+    public Endpoint open(int port) throws IOException;
+
+    /** A local port opened for receiving. */
+    public interface Endpoint {
+
+        /**
+         * Wait for the next datagram sent to the port.
+         *
+         * @return The datagram, or null if what arrived was not a complete
+         *         datagram.
+         * @throws IOException
+         *             if the port failed or was closed
+         */
+        public KtnDatagram receive() throws IOException;
+
+        /**
+         * Close the port, ending a receive in progress with an
+         * IOException.
+         */
+        public void close();
+    }
+}
@@ -0,0 +1,177 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.cl.FailureController;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Sends every datagram as one UDP datagram, encoded by
+ * {@link DatagramCodec}. Each local port opened has a single non-blocking
+ * {@link DatagramChannel}, which the connections on the port both receive
+ * and send with, so no packet costs a handshake or a socket of its own.
+ * Packets from a port that is not open, such as the last ACK of a closed
+ * connection, go out on one unbound channel. The receiver goes by the
+ * addresses in the datagram, not by where it came from.<br>
+ * <br>
+ * Every channel encodes into and decodes from direct buffers of its own,
+ * allocated once. A datagram the socket has no room for is dropped, like
+ * one lost on the network, and left for the connection to retransmit. The
+ * A2 FailureController only hooks into ClSocket, so no errors are injected
+ * on this path; {@link ImpairedTransport} adds them back, repeatably, as the
+ * default transport does when settings.xml asks for errors, see
+ * {@link AbstractConnection#getDefaultTransport()}.
+ *
+ * @see AbstractConnection#setTransport(Transport)
+ */
+public final class UdpTransport implements Transport {
+
+    /** The one instance, holding the open ports of this JVM. */
+    public final static UdpTransport INSTANCE = new UdpTransport();
+
+    /** Most bytes in a UDP datagram over IPv4. */
+    public final static int MAX_DATAGRAM_LENGTH = 65507;
+
+    /** The open ports, by port number. */
+    private final Map<Integer, Channel> channels;
+
+    /** Remote addresses resolved so far, by the name in the datagram. */
+    private final Map<String, InetAddress> addresses;
+
+    /** Sends the packets from ports that are not open, opened when first needed. */
+    private Channel unbound;
+
+    private UdpTransport() {
+        channels = new ConcurrentHashMap<Integer, Channel>();
+        addresses = new ConcurrentHashMap<String, InetAddress>();
+        unbound = null;
+    }
+
+    /**
+     * Send the datagram on the channel of its source port.
+     *
+     * @see DatagramSender#send(KtnDatagram)
+     */
+    public void send(KtnDatagram packet) throws IOException {
+        Channel channel = channels.get(packet.getSrc_port());
+        if (channel == null) channel = unbound();
+        InetSocketAddress target = new InetSocketAddress(resolve(packet.getDest_addr()), packet.getDest_port());
+        channel.send(packet, target);
+        FailureController.packetSentCount++;
+    }
+
+    public Endpoint open(int port) throws IOException {
+        Channel channel = new Channel(port);
+        channels.put(port, channel);
+        return channel;
+    }
+
+    private synchronized Channel unbound() throws IOException {
+        if (unbound == null) unbound = new Channel(0);
+        return unbound;
+    }
+
+    private InetAddress resolve(String address) throws IOException {
+        InetAddress resolved = addresses.get(address);
+        if (resolved == null) {
+            resolved = InetAddress.getByName(address);
+            addresses.put(address, resolved);
+        }
+        return resolved;
+    }
+
+    /** One local port, with its channel and buffers. */
+    private class Channel implements Endpoint {
+
+        private final int port;
+        private final DatagramChannel channel;
+        private final Selector selector;
+        /** Guarded by itself, as any thread may send. */
+        private final ByteBuffer sendBuffer;
+        /** Only used by the one receiving thread. */
+        private final ByteBuffer receiveBuffer;
+
+        Channel(int port) throws IOException {
+            this.port = port;
+            channel = DatagramChannel.open();
+            try {
+                channel.bind(new InetSocketAddress(port));
+                channel.configureBlocking(false);
+                selector = Selector.open();
+                channel.register(selector, SelectionKey.OP_READ);
+            }
+            catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            sendBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_LENGTH);
+            receiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_LENGTH);
+        }
+
+        void send(KtnDatagram packet, InetSocketAddress target) throws IOException {
+            synchronized (sendBuffer) {
+                sendBuffer.clear();
+                try {
+                    DatagramCodec.encode(packet, sendBuffer);
+                }
+                catch (IllegalArgumentException e) {
+                    throw new IOException("Can not encode datagram: " + e.getMessage());
+                }
+                catch (BufferOverflowException e) {
+                    throw new IOException("Datagram longer than " + MAX_DATAGRAM_LENGTH + " bytes.");
+                }
+                sendBuffer.flip();
+                if (channel.send(sendBuffer, target) == 0) {
+                    DatagramLog.write(packet, "Socket buffer full, dropped datagram", "UdpTransport");
+                }
+            }
+        }
+
+        public KtnDatagram receive() throws IOException {
+            try {
+                while (true) {
+                    receiveBuffer.clear();
+                    if (channel.receive(receiveBuffer) != null) {
+                        receiveBuffer.flip();
+                        try {
+                            return DatagramCodec.decode(receiveBuffer);
+                        }
+                        catch (IllegalArgumentException e) {
+                            Log.writeToLog("Broken packet: " + e.getMessage(), "UdpTransport");
+                            return null;
+                        }
+                    }
+                    selector.select();
+                    if (!channel.isOpen()) throw new ClosedChannelException();
+                }
+            }
+            catch (ClosedSelectorException e) {
+                throw new ClosedChannelException();
+            }
+        }
+
+        public void close() {
+            channels.remove(port, this);
+            try {
+                channel.close();
+                // Releases the port at once, and wakes the receiving thread
+                selector.close();
+            }
+            catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package no.ntnu.fp.net.co.bench;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.admin.Settings;
+import no.ntnu.fp.net.co.AsyncConnection;
+import no.ntnu.fp.net.co.ConnectionEventLoop;
+import no.ntnu.fp.net.co.ConnectionImpl;
+
+/**
+ * Runs many connections at once through the {@link AsyncConnection} methods.
+ * An echo server, sharing its port between all accepted connections, answers
+ * every message of every client without a thread per connection. The
+ * clients are driven by futures as well, and only use threads to connect.
+ * Each client sends its messages one at a time and waits for the echo.<br>
+ * <br>
+ * The total echo throughput and the mean and worst round trip are printed,
+ * together with the threads alive at the end, by kind. Every client
+ * connection still has a receiver thread of its own, as it has a port of its
+ * own, while the server only has the one receiver of its port.<br>
+ * <br>
+ * Usage: <code>AsyncBenchmark [connections] [messages] [loops]</code>
+ *
+ * @see ConnectionEventLoop
+ */
+public class AsyncBenchmark {
+
+    /** Server port, the clients use the ports after it. */
+    private static final int BASE_PORT = 6500;
+
+    /** Threads making the blocking connect() calls. */
+    private static final int CONNECT_THREADS = 8;
+
+    private static final AtomicLong totalRoundTrip = new AtomicLong();
+    private static final AtomicLong maxRoundTrip = new AtomicLong();
+    private static final AtomicInteger echoes = new AtomicInteger();
+    private static final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * Program Entry Point.
+     */
+    public static void main(String args[]) throws Exception {
+        final int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int messages = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int loops = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+
+        Log.setLogName("AsyncBenchmark");
+        new Settings();
+        ConnectionEventLoop.setLoopCount(loops);
+        System.out.println("connections=" + connections + " messages=" + messages + " loops=" + loops);
+
+        final ConnectionImpl server = new ConnectionImpl(BASE_PORT);
+        server.setSharedPort(true);
+        Thread acceptor = new Thread("Acceptor") {
+            public void run() {
+                try {
+                    for (int n = 0; n < connections; n++) {
+                        echo((AsyncConnection)server.accept());
+                    }
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        // Give the server time to start listening, a lost SYN costs a retransmission
+        Thread.sleep(500);
+
+        final CountDownLatch done = new CountDownLatch(connections);
+        ExecutorService connector = Executors.newFixedThreadPool(CONNECT_THREADS);
+        long start = System.nanoTime();
+        for (int n = 0; n < connections; n++) {
+            final int port = BASE_PORT + 1 + n;
+            connector.execute(new Runnable() {
+                public void run() {
+                    ConnectionImpl client = new ConnectionImpl(port);
+                    try {
+                        client.connect(InetAddress.getLocalHost(), BASE_PORT);
+                        ping(client, 0, messages, done);
+                    }
+                    catch (IOException e) {
+                        System.err.println("connect from " + port + " failed: " + e);
+                        failures.incrementAndGet();
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        connector.shutdown();
+        done.await(10, TimeUnit.MINUTES);
+        long millis = Math.max((System.nanoTime() - start) / 1000000, 1);
+
+        int count = Math.max(echoes.get(), 1);
+        System.out.println("echoes=" + echoes.get() + " failures=" + failures.get() + " in " + millis + "ms: "
+                + (echoes.get() * 1000L / millis) + " echo/s, round trip mean="
+                + (totalRoundTrip.get() / count / 1000000) + "ms max=" + (maxRoundTrip.get() / 1000000) + "ms");
+        System.out.println("threads " + threadsByKind());
+        System.exit(0);
+    }
+
+    /** Echo every message received on an accepted connection, until closed. */
+    private static void echo(final AsyncConnection conn) {
+        conn.receiveAsync().whenComplete(new BiConsumer<String, Throwable>() {
+            public void accept(String msg, Throwable failure) {
+                if (failure == null) {
+                    conn.sendAsync(msg);
+                    echo(conn);
+                }
+                else if (failure instanceof EOFException) {
+                    conn.closeAsync();
+                }
+                else {
+                    System.err.println("server: " + failure);
+                }
+            }
+        });
+    }
+
+    /** Send message n, and the rest once its echo is back, then close. */
+    private static void ping(final AsyncConnection conn, final int n, final int messages,
+            final CountDownLatch done) {
+        if (n == messages) {
+            conn.closeAsync().whenComplete(new BiConsumer<Void, Throwable>() {
+                public void accept(Void result, Throwable failure) {
+                    done.countDown();
+                }
+            });
+            return;
+        }
+        final long sent = System.nanoTime();
+        conn.sendAsync("ping " + n);
+        conn.receiveAsync().whenComplete(new BiConsumer<String, Throwable>() {
+            public void accept(String msg, Throwable failure) {
+                if (failure != null || !msg.equals("ping " + n)) {
+                    System.err.println("client: " + (failure != null ? failure : "wrong echo " + msg));
+                    failures.incrementAndGet();
+                    done.countDown();
+                    return;
+                }
+                long roundTrip = System.nanoTime() - sent;
+                totalRoundTrip.addAndGet(roundTrip);
+                long max;
+                while ((max = maxRoundTrip.get()) < roundTrip && !maxRoundTrip.compareAndSet(max, roundTrip)) {
+                }
+                echoes.incrementAndGet();
+                ping(conn, n + 1, messages, done);
+            }
+        });
+    }
+
+    /** @return The number of live threads, by name without its number. */
+    private static Map<String, Integer> threadsByKind() {
+        Map<String, Integer> kinds = new HashMap<String, Integer>();
+        List<Thread> threads = new ArrayList<Thread>(Thread.getAllStackTraces().keySet());
+        for (Thread thread : threads) {
+            String kind = thread.getName().replaceAll("[-0-9]+$", "");
+            Integer count = kinds.get(kind);
+            kinds.put(kind, count == null ? 1 : count + 1);
+        }
+        return kinds;
+    }
+}
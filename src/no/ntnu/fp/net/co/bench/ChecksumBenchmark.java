@@ -0,0 +1,139 @@
+package no.ntnu.fp.net.co.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Measures the cost of checking the checksum of a received packet, for
+ * several payload sizes, in three ways: {@link KtnDatagram#calculateChecksum()}
+ * of A2, which runs one CRC32 shared by all threads; a CRC32 of its own per
+ * check; and a CRC32C of its own per check, the kind chosen by
+ * AbstractConnection.setCrc32c(boolean). Each way is run by one thread and
+ * then by several threads at once, as the receivers of many connections
+ * would. The time per check is printed, and for the shared CRC32 also the
+ * checks that got a wrong value because another thread used it meanwhile.
+ * Every case is run for a warmup round first.<br>
+ * <br>
+ * Usage: <code>ChecksumBenchmark [checks per thread] [threads]</code>
+ */
+public class ChecksumBenchmark {
+
+    private static final int[] PAYLOAD_SIZES = { 16, 256, 1024, 8192 };
+
+    /** Keeps the results alive, so the work can not be optimized away. */
+    private static volatile long sink;
+
+    /** One way of checking a packet. */
+    private static abstract class Check {
+        final String name;
+
+        Check(String name) {
+            this.name = name;
+        }
+
+        abstract long checksum(KtnDatagram packet);
+    }
+
+    private static final Check SHARED_CRC32 = new Check("shared CRC32") {
+        long checksum(KtnDatagram packet) {
+            return packet.calculateChecksum();
+        }
+    };
+
+    private static final Check OWN_CRC32 = new Check("own CRC32") {
+        long checksum(KtnDatagram packet) {
+            CRC32 crc = new CRC32();
+            byte[] payload = packet.getPayloadAsBytes();
+            crc.update(payload, 0, payload.length);
+            return crc.getValue();
+        }
+    };
+
+    private static final Check OWN_CRC32C = new Check("own CRC32C") {
+        long checksum(KtnDatagram packet) {
+            CRC32C crc = new CRC32C();
+            byte[] payload = packet.getPayloadAsBytes();
+            crc.update(payload, 0, payload.length);
+            return crc.getValue();
+        }
+    };
+
+    /**
+     * Program Entry Point.
+     */
+    public static void main(String args[]) throws Exception {
+        int checks = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        System.out.println("checks=" + checks + " per thread, threads=1 and " + threads);
+
+        for (int size : PAYLOAD_SIZES) {
+            KtnDatagram packet = packet(size);
+            for (Check check : new Check[] { SHARED_CRC32, OWN_CRC32, OWN_CRC32C }) {
+                long expected = check.checksum(packet);
+                run(check, packet, expected, checks, 1);
+                String single = run(check, packet, expected, checks, 1);
+                run(check, packet, expected, checks, threads);
+                String parallel = run(check, packet, expected, checks, threads);
+                System.out.println(size + "B " + check.name + ": 1 thread " + single + ", " + threads
+                        + " threads " + parallel);
+            }
+        }
+        System.out.println("(sink " + sink + ")");
+    }
+
+    /**
+     * Check the packet on a number of threads at once.
+     *
+     * @return The wall time per check of one thread, the same for any number
+     *         of threads if they do not contend, and the wrong results.
+     */
+    private static String run(final Check check, final KtnDatagram packet, final long expected,
+            final int checks, int threads) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long[] wrong = new long[threads];
+        for (int t = 0; t < threads; t++) {
+            final int index = t;
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    long sum = 0;
+                    for (int n = 0; n < checks; n++) {
+                        long value = check.checksum(packet);
+                        if (value != expected) wrong[index]++;
+                        sum += value;
+                    }
+                    sink += sum;
+                    done.countDown();
+                }
+            }.start();
+        }
+        long began = System.nanoTime();
+        start.countDown();
+        done.await();
+        long nanos = System.nanoTime() - began;
+        long wrongs = 0;
+        for (long w : wrong) {
+            wrongs += w;
+        }
+        return (nanos / checks) + " ns/check" + (wrongs > 0 ? " (" + wrongs + " wrong)" : "");
+    }
+
+    /** A data packet with a payload of about the given size. */
+    private static KtnDatagram packet(int payloadSize) {
+        KtnDatagram packet = new KtnDatagram();
+        char[] payload = new char[payloadSize];
+        Arrays.fill(payload, 'x');
+        packet.setPayload(new String(payload));
+        return packet;
+    }
+}
@@ -0,0 +1,154 @@
+package no.ntnu.fp.net.co.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.cl.KtnDatagram.Flag;
+import no.ntnu.fp.net.cl.Util;
+import no.ntnu.fp.net.co.DatagramCodec;
+
+/**
+ * Compares Java serialization of a {@link KtnDatagram}, as done by
+ * {@link no.ntnu.fp.net.cl.ClSocket} through {@link Util#toByteArray}, with
+ * {@link DatagramCodec}. For an ACK and data packets of several payload
+ * sizes, the bytes per packet are printed, and the time and bytes allocated
+ * per encode and per decode. Every case is run for a number of warmup
+ * rounds, so the JIT has compiled it, and then measured over several rounds
+ * of which the best is reported, as a JMH run would. Requires a JVM with
+ * per-thread allocation counters, such as HotSpot.<br>
+ * <br>
+ * Usage: <code>CodecBenchmark [operations per round] [rounds]</code>
+ *
+ * @see no.ntnu.fp.net.co.BinarySocket
+ */
+public class CodecBenchmark {
+
+    private static final int[] PAYLOAD_SIZES = { 0, 16, 256, 1024 };
+    private static final int WARMUP_ROUNDS = 5;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    /** Keeps the results alive, so the work can not be optimized away. */
+    private static long sink;
+
+    /** One way of encoding and decoding. */
+    private static abstract class Codec {
+        final String name;
+
+        Codec(String name) {
+            this.name = name;
+        }
+
+        abstract byte[] encode(KtnDatagram packet);
+
+        abstract KtnDatagram decode(byte[] bytes);
+    }
+
+    private static final Codec SERIALIZATION = new Codec("serialization") {
+        byte[] encode(KtnDatagram packet) {
+            return Util.toByteArray(packet);
+        }
+
+        KtnDatagram decode(byte[] bytes) {
+            return (KtnDatagram)Util.toObject(bytes);
+        }
+    };
+
+    private static final Codec BINARY = new Codec("binary") {
+        byte[] encode(KtnDatagram packet) {
+            return DatagramCodec.encode(packet);
+        }
+
+        KtnDatagram decode(byte[] bytes) {
+            return DatagramCodec.decode(bytes);
+        }
+    };
+
+    /** Best time and allocation per operation over the measured rounds. */
+    private static class Result {
+        long nanos = Long.MAX_VALUE;
+        long allocated = Long.MAX_VALUE;
+
+        public String toString() {
+            return nanos + " ns/op " + allocated + " B/op";
+        }
+    }
+
+    /**
+     * Program Entry Point.
+     */
+    public static void main(String args[]) throws Exception {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        System.out.println("operations=" + operations + " rounds=" + rounds + " (+" + WARMUP_ROUNDS
+                + " warmup)");
+
+        KtnDatagram ack = packet(Flag.ACK, -1);
+        ack.setAck(4711);
+        run("ACK", ack, operations, rounds);
+        for (int size : PAYLOAD_SIZES) {
+            run("data " + size + "B", packet(Flag.NONE, size), operations, rounds);
+        }
+        System.out.println("(sink " + sink + ")");
+    }
+
+    /** Measure both codecs on one packet. */
+    private static void run(String label, KtnDatagram packet, int operations, int rounds) {
+        for (Codec codec : new Codec[] { SERIALIZATION, BINARY }) {
+            byte[] bytes = codec.encode(packet);
+            KtnDatagram copy = codec.decode(bytes);
+            if (copy.getSeq_nr() != packet.getSeq_nr() || copy.getChecksum() != copy.calculateChecksum()) {
+                throw new IllegalStateException(codec.name + " does not keep the datagram");
+            }
+            Result encode = new Result();
+            Result decode = new Result();
+            for (int round = 0; round < WARMUP_ROUNDS + rounds; round++) {
+                boolean measured = round >= WARMUP_ROUNDS;
+                measure(codec, packet, null, operations, measured ? encode : new Result());
+                measure(codec, null, bytes, operations, measured ? decode : new Result());
+            }
+            System.out.println(label + " " + codec.name + ": " + bytes.length + " bytes/packet, encode "
+                    + encode + ", decode " + decode);
+        }
+    }
+
+    /** Encode the packet, or decode the bytes, a number of times. */
+    private static void measure(Codec codec, KtnDatagram packet, byte[] bytes, int operations, Result result) {
+        long thread = Thread.currentThread().getId();
+        long allocated = THREADS.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long sum = 0;
+        for (int n = 0; n < operations; n++) {
+            if (packet != null) {
+                sum += codec.encode(packet).length;
+            }
+            else {
+                sum += codec.decode(bytes).getSeq_nr();
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = THREADS.getThreadAllocatedBytes(thread) - allocated;
+        sink += sum;
+        result.nanos = Math.min(result.nanos, nanos / operations);
+        result.allocated = Math.min(result.allocated, allocated / operations);
+    }
+
+    /** A packet as a connection on the local host would send it. */
+    private static KtnDatagram packet(Flag flag, int payloadSize) {
+        KtnDatagram packet = new KtnDatagram();
+        packet.setFlag(flag);
+        packet.setSrc_addr("127.0.0.1");
+        packet.setSrc_port(31349);
+        packet.setDest_addr("127.0.0.1");
+        packet.setDest_port(5555);
+        packet.setSeq_nr(1234);
+        if (payloadSize >= 0) {
+            char[] payload = new char[payloadSize];
+            Arrays.fill(payload, 'x');
+            packet.setPayload(new String(payload));
+        }
+        return packet;
+    }
+}
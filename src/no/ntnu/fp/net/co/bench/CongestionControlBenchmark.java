@@ -0,0 +1,125 @@
+package no.ntnu.fp.net.co.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.admin.Settings;
+import no.ntnu.fp.net.co.AbstractConnection;
+import no.ntnu.fp.net.co.CongestionControl;
+import no.ntnu.fp.net.co.ConnectionImpl;
+import no.ntnu.fp.net.co.ConnectionStatistics;
+import no.ntnu.fp.net.co.DelayBasedCongestionControl;
+import no.ntnu.fp.net.co.ImpairedTransport;
+import no.ntnu.fp.net.co.Impairment;
+import no.ntnu.fp.net.co.RenoCongestionControl;
+import no.ntnu.fp.net.co.RetransmitScheduler;
+import no.ntnu.fp.net.co.UdpTransport;
+
+/**
+ * Compares the congestion control strategies of {@link ConnectionImpl} over
+ * a range of loss probabilities, overriding the <code>loss</code> setting
+ * of settings.xml. The connections run over UDP through an
+ * {@link ImpairedTransport} with the other impairments and the seed of
+ * settings.xml, so runs can be repeated. For every run the goodput
+ * (messages delivered per second) and the retransmission ratio (resent
+ * data packets over all data packets sent) of the sender is printed. A
+ * fixed window without congestion control is included as the baseline.
+ * The queue depth and lateness of the
+ * {@link RetransmitScheduler} are printed at the end.<br>
+ * <br>
+ * As a regression check, the benchmark exits with status 1 if at some
+ * loss rate above 0 no run made a single fast retransmit, when the window
+ * is large enough for duplicate ACKs to reach the threshold.<br>
+ * <br>
+ * Usage: <code>CongestionControlBenchmark [messages] [window]</code>
+ *
+ * @see CongestionControl
+ */
+public class CongestionControlBenchmark {
+
+    private static final double[] LOSS_RATES = { 0, 0.05, 0.1, 0.2 };
+
+    private static final String[] STRATEGIES = { "fixed", "reno", "delay" };
+
+    /** First server port used, each run listens on its own port. */
+    private static final int BASE_PORT = 6200;
+
+    /**
+     * Program Entry Point.
+     */
+    public static void main(String args[]) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int window = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+        Log.setLogName("CongestionControlBenchmark");
+        new Settings();
+        System.out.println("window=" + window + " messages=" + messages);
+
+        File settings = new File("settings.xml");
+        long seed = Impairment.seedFromSettings(settings);
+        int port = BASE_PORT;
+        boolean regressed = false;
+        for (int i = 0; i < LOSS_RATES.length; i++) {
+            Impairment impairment = Impairment.fromSettings(settings);
+            impairment.setLoss(LOSS_RATES[i]);
+            long fastRetransmissions = 0;
+            for (int j = 0; j < STRATEGIES.length; j++) {
+                ImpairedTransport transport = new ImpairedTransport(UdpTransport.INSTANCE, impairment, seed);
+                ConnectionImpl server = new ConnectionImpl(port);
+                ConnectionImpl client = new ConnectionImpl(port + 1);
+                server.setTransport(transport);
+                client.setTransport(transport);
+                client.setSendWindowSize(window);
+                client.setCongestionControl(createStrategy(STRATEGIES[j]));
+
+                String result;
+                try {
+                    long millis = WindowThroughputBenchmark.transfer(server, client, port, messages);
+                    ConnectionStatistics stats = client.getStatistics();
+                    result = "goodput=" + (messages * 1000L / Math.max(millis, 1)) + " msg/s retransmissions="
+                            + stats.getRetransmissions() + "/" + stats.getDataPacketsSent() + " ("
+                            + (100 * stats.getRetransmissions() / Math.max(stats.getDataPacketsSent(), 1))
+                            + "%) fast=" + stats.getFastRetransmissions();
+                    fastRetransmissions += stats.getFastRetransmissions();
+                }
+                catch (IOException e) {
+                    result = "failed: " + e.getMessage();
+                }
+                System.out.println("loss=" + LOSS_RATES[i] + " strategy=" + STRATEGIES[j] + " " + result);
+                port += 2;
+            }
+            if (LOSS_RATES[i] > 0 && window > AbstractConnection.DEFAULT_DUPLICATE_ACK_THRESHOLD
+                    && fastRetransmissions == 0) {
+                System.out.println("REGRESSION: no fast retransmit at loss=" + LOSS_RATES[i]);
+                regressed = true;
+            }
+        }
+        System.out.println("scheduler " + RetransmitScheduler.getShared());
+        System.exit(regressed ? 1 : 0);
+    }
+
+    private static CongestionControl createStrategy(String name) {
+        if (name.equals("reno")) {
+            return new RenoCongestionControl();
+        }
+        if (name.equals("delay")) {
+            return new DelayBasedCongestionControl();
+        }
+        // No congestion control, the send window alone limits the sender
+        return new CongestionControl() {
+            public int getWindow() {
+                return Integer.MAX_VALUE;
+            }
+
+            public void onAck(int acked, long rtt) {
+            }
+
+            public void onTimeout() {
+            }
+
+            public void onFastRetransmit() {
+            }
+        };
+    }
+}
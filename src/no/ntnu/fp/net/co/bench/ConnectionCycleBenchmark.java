@@ -0,0 +1,112 @@
+package no.ntnu.fp.net.co.bench;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.admin.Settings;
+import no.ntnu.fp.net.co.Connection;
+import no.ntnu.fp.net.co.ConnectionImpl;
+import no.ntnu.fp.net.co.InProcessTransport;
+
+/**
+ * Runs whole connection lifetimes over {@link InProcessTransport}, with no
+ * network in between: connect, a number of messages echoed by the server,
+ * and close, each from a new client port. The time of every step is
+ * measured, and the medians and 99th percentiles printed. The first tenth
+ * of the cycles warms up, and is not counted. Connections use a TIME_WAIT
+ * of 0, as no datagram of an old connection can arrive late.<br>
+ * <br>
+ * Usage: <code>ConnectionCycleBenchmark [cycles] [messages per cycle]</code>
+ */
+public class ConnectionCycleBenchmark {
+
+    private static final int SERVER_PORT = 5000;
+
+    /** Client ports are taken in turn from here, above those of accepted connections. */
+    private static final int FIRST_CLIENT_PORT = 41000;
+    private static final int CLIENT_PORTS = 20000;
+
+    /**
+     * Program Entry Point.
+     */
+    public static void main(String args[]) throws Exception {
+        int cycles = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        Log.setLogName("ConnectionCycleBenchmark");
+        new Settings();
+        System.out.println("cycles=" + cycles + " messages=" + messages);
+
+        InProcessTransport transport = new InProcessTransport();
+        ConnectionImpl server = new ConnectionImpl(SERVER_PORT);
+        server.setTransport(transport);
+        server.setTimeWait(0);
+        echo(server);
+
+        int warmup = cycles / 10;
+        long[] connect = new long[cycles];
+        long[] rtt = new long[cycles];
+        long[] close = new long[cycles];
+        long[] whole = new long[cycles];
+        for (int n = -warmup; n < cycles; n++) {
+            ConnectionImpl client = new ConnectionImpl(FIRST_CLIENT_PORT + (n + warmup) % CLIENT_PORTS);
+            client.setTransport(transport);
+            client.setTimeWait(0);
+
+            long start = System.nanoTime();
+            client.connect(InetAddress.getLocalHost(), SERVER_PORT);
+            long connected = System.nanoTime();
+            for (int m = 0; m < messages; m++) {
+                client.send("echo " + m);
+                client.receive();
+            }
+            long sent = System.nanoTime();
+            client.close();
+            long closed = System.nanoTime();
+
+            if (n >= 0) {
+                connect[n] = connected - start;
+                rtt[n] = (sent - connected) / Math.max(messages, 1);
+                close[n] = closed - sent;
+                whole[n] = closed - start;
+            }
+        }
+        System.out.println("connect " + percentiles(connect) + ", round trip " + percentiles(rtt) + ", close "
+                + percentiles(close) + ", whole cycle " + percentiles(whole));
+        System.exit(0);
+    }
+
+    private static String percentiles(long[] nanos) {
+        Arrays.sort(nanos);
+        return nanos[nanos.length / 2] / 1000 + " us (p99 " + nanos[nanos.length * 99 / 100] / 1000 + " us)";
+    }
+
+    /** Start a thread accepting connections one at a time, and echoing their messages. */
+    private static void echo(final ConnectionImpl server) {
+        Thread echo = new Thread() {
+            public void run() {
+                try {
+                    while (true) {
+                        Connection conn = server.accept();
+                        try {
+                            while (true) {
+                                conn.send(conn.receive());
+                            }
+                        }
+                        catch (EOFException e) {
+                            conn.close();
+                        }
+                    }
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        echo.setDaemon(true);
+        echo.start();
+    }
+}
@@ -0,0 +1,131 @@
+package no.ntnu.fp.net.co.bench;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.admin.Settings;
+import no.ntnu.fp.net.co.Connection;
+import no.ntnu.fp.net.co.ConnectionImpl;
+
+/**
+ * Sends messages both ways over one {@link ConnectionImpl} at the same time,
+ * with a sending and a receiving thread at each end. The ACKs a sender waits
+ * for and the data its own receiver waits for arrive on the same port, so
+ * this measures how well the two kinds of waiters stay out of each other's
+ * way. For each direction the throughput is printed, and the mean and worst
+ * time from a message was sent until the application received it.<br>
+ * <br>
+ * Usage: <code>ContentionBenchmark [messages] [runs]</code>
+ */
+public class ContentionBenchmark {
+
+    /** First server port used, each run listens on its own port. */
+    private static final int BASE_PORT = 6400;
+
+    /** Receive timings of one direction. */
+    private static class Direction {
+        long first, last;
+        long totalLatency, maxLatency;
+
+        void received(String msg) {
+            long now = System.nanoTime();
+            long latency = now - Long.parseLong(msg.substring(msg.indexOf(' ') + 1));
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+            last = now;
+        }
+
+        String summary(int messages) {
+            long millis = Math.max((last - first) / 1000000, 1);
+            return (messages * 1000L / millis) + " msg/s latency mean="
+                    + (totalLatency / messages / 1000000) + "ms max=" + (maxLatency / 1000000) + "ms";
+        }
+    }
+
+    /**
+     * Program Entry Point.
+     */
+    public static void main(String args[]) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        Log.setLogName("ContentionBenchmark");
+        new Settings();
+        System.out.println("messages=" + messages + " each way");
+
+        for (int run = 0; run < runs; run++) {
+            Direction up = new Direction();
+            Direction down = new Direction();
+            transfer(BASE_PORT + 2 * run, messages, up, down);
+            System.out.println("run " + run + ": client->server " + up.summary(messages)
+                    + ", server->client " + down.summary(messages));
+        }
+        System.exit(0);
+    }
+
+    private static void transfer(int serverPort, final int messages, final Direction up,
+            final Direction down) throws IOException, InterruptedException {
+        final ConnectionImpl server = new ConnectionImpl(serverPort);
+        final ConnectionImpl client = new ConnectionImpl(serverPort + 1);
+
+        Thread serverSide = new Thread() {
+            public void run() {
+                try {
+                    final Connection conn = server.accept();
+                    Thread sender = sender(conn, messages, down);
+                    try {
+                        receive(conn, messages, up);
+                        conn.receive();
+                    }
+                    catch (EOFException e) {
+                        sender.join();
+                        conn.close();
+                    }
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        serverSide.setDaemon(true);
+        serverSide.start();
+        // Give the server time to start listening, a lost SYN costs a retransmission
+        Thread.sleep(500);
+
+        client.connect(InetAddress.getLocalHost(), serverPort);
+        Thread sender = sender(client, messages, up);
+        receive(client, messages, down);
+        sender.join();
+        client.close();
+        serverSide.join();
+    }
+
+    /** Start a thread sending time stamped messages. */
+    private static Thread sender(final Connection conn, final int messages, final Direction direction) {
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    direction.first = System.nanoTime();
+                    for (int n = 0; n < messages; n++) {
+                        conn.send(n + " " + System.nanoTime());
+                    }
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void receive(Connection conn, int messages, Direction direction)
+            throws IOException {
+        for (int n = 0; n < messages; n++) {
+            direction.received(conn.receive());
+        }
+    }
+}
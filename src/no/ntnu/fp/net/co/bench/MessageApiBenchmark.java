@@ -0,0 +1,136 @@
+package no.ntnu.fp.net.co.bench;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.admin.Settings;
+import no.ntnu.fp.net.co.Connection;
+import no.ntnu.fp.net.co.ConnectionImpl;
+
+/**
+ * Compares the CPU time and the bytes allocated per message for the String
+ * methods of {@link Connection} and the binary ones, send(byte[], int, int)
+ * and receive(ByteBuffer). The cost is measured on the sending and the
+ * receiving application thread, from the first send to the last receive, so
+ * the waiting for the network is not counted but the protocol work done on
+ * those threads is. Requires a JVM with per-thread allocation counters, such
+ * as HotSpot.<br>
+ * <br>
+ * Usage: <code>MessageApiBenchmark [messages] [size]</code>
+ * 
+ * @see Connection#send(byte[], int, int)
+ * @see Connection#receive(ByteBuffer)
+ */
+public class MessageApiBenchmark {
+
+    /** First server port used, each run listens on its own port. */
+    private static final int BASE_PORT = 6300;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    /** CPU nanoseconds and bytes allocated by a thread. */
+    private static class Cost {
+        long cpu;
+        long allocated;
+
+        void start() {
+            cpu = THREADS.getCurrentThreadCpuTime();
+            allocated = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        void stop() {
+            cpu = THREADS.getCurrentThreadCpuTime() - cpu;
+            allocated = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+        }
+
+        String perMessage(int messages) {
+            return (cpu / 1000 / messages) + " us/msg " + (allocated / messages) + " B/msg";
+        }
+    }
+
+    /**
+     * Program Entry Point.
+     */
+    public static void main(String args[]) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+
+        Log.setLogName("MessageApiBenchmark");
+        new Settings();
+        System.out.println("messages=" + messages + " size=" + size);
+
+        for (int run = 0; run < 2; run++) {
+            boolean binary = run == 1;
+            Cost sender = new Cost();
+            Cost receiver = new Cost();
+            transfer(binary, BASE_PORT + 2 * run, messages, size, sender, receiver);
+            System.out.println((binary ? "binary" : "string") + ": sender " + sender.perMessage(messages)
+                    + ", receiver " + receiver.perMessage(messages));
+        }
+        System.exit(0);
+    }
+
+    private static void transfer(final boolean binary, int serverPort, final int messages, int size,
+            Cost sender, final Cost receiverCost) throws IOException, InterruptedException {
+        final ConnectionImpl server = new ConnectionImpl(serverPort);
+        ConnectionImpl client = new ConnectionImpl(serverPort + 1);
+
+        Thread receiver = new Thread() {
+            public void run() {
+                try {
+                    Connection conn = server.accept();
+                    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                    try {
+                        receiverCost.start();
+                        for (int n = 0; n < messages; n++) {
+                            if (binary) {
+                                buffer.clear();
+                                conn.receive(buffer);
+                            }
+                            else {
+                                conn.receive();
+                            }
+                        }
+                        receiverCost.stop();
+                        conn.receive();
+                    }
+                    catch (EOFException e) {
+                        conn.close();
+                    }
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+        // Give the server time to start listening, a lost SYN costs a retransmission
+        Thread.sleep(500);
+
+        char[] text = new char[size];
+        Arrays.fill(text, 'x');
+        String msg = new String(text);
+        byte[] data = msg.getBytes("UTF-8");
+
+        client.connect(InetAddress.getLocalHost(), serverPort);
+        sender.start();
+        for (int n = 0; n < messages; n++) {
+            if (binary) {
+                client.send(data, 0, data.length);
+            }
+            else {
+                client.send(msg);
+            }
+        }
+        sender.stop();
+        client.close();
+        receiver.join();
+    }
+}
@@ -0,0 +1,199 @@
+package no.ntnu.fp.net.co.bench;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.admin.Settings;
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.co.Connection;
+import no.ntnu.fp.net.co.ConnectionImpl;
+import no.ntnu.fp.net.co.SharedMemoryTransport;
+import no.ntnu.fp.net.co.Transport;
+import no.ntnu.fp.net.co.UdpTransport;
+
+/**
+ * Compares the round trip time between two processes on the same host over
+ * UDP on the loopback interface and over {@link SharedMemoryTransport}. For
+ * each transport a second JVM is started as the echo server, and two round
+ * trips are measured: of a bare datagram echoed by the transport itself,
+ * and of a short message echoed through a {@link ConnectionImpl}.<br>
+ * <br>
+ * Usage: <code>SharedMemoryBenchmark [round trips]</code>
+ */
+public class SharedMemoryBenchmark {
+
+    /** First port used, each transport runs on ports of its own. */
+    private static final int BASE_PORT = 6400;
+
+    /** Printed by the server once it listens. */
+    private static final String READY = "READY";
+
+    /**
+     * Program Entry Point.
+     */
+    public static void main(String args[]) throws Exception {
+        if (args.length > 0 && args[0].equals("server")) {
+            serve(transport(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        int roundTrips = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Log.setLogName("SharedMemoryBenchmark");
+        new Settings();
+        System.out.println("round trips=" + roundTrips);
+
+        run("udp", 0, roundTrips);
+        run("shm", 1, roundTrips);
+        System.exit(0);
+    }
+
+    private static Transport transport(String name) {
+        return name.equals("shm") ? SharedMemoryTransport.INSTANCE : UdpTransport.INSTANCE;
+    }
+
+    /** Measure one transport, against a server in a process of its own. */
+    private static void run(String name, int index, int roundTrips) throws Exception {
+        int serverPort = BASE_PORT + 4 * index;
+        Process server = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), SharedMemoryBenchmark.class.getName(), "server",
+                name, Integer.toString(serverPort)).redirectErrorStream(true).start();
+        try {
+            awaitReady(server);
+            Transport transport = transport(name);
+            String datagram = median(datagramRoundTrips(transport, serverPort, serverPort + 2, roundTrips));
+            String message = median(messageRoundTrips(transport, serverPort + 1, serverPort + 3, roundTrips));
+            System.out.println(name + ": datagram round trip " + datagram + ", message round trip " + message);
+        }
+        finally {
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    /** Wait for the server to listen, then throw away the rest of what it prints. */
+    private static void awaitReady(Process server) throws IOException {
+        final BufferedReader output = new BufferedReader(new InputStreamReader(server.getInputStream()));
+        String line;
+        while ((line = output.readLine()) != null && !line.equals(READY)) {
+            // Skip
+        }
+        if (line == null) throw new IOException("Server ended before listening.");
+        Thread drain = new Thread() {
+            public void run() {
+                try {
+                    while (output.readLine() != null) {
+                        // Skip
+                    }
+                }
+                catch (IOException e) {
+                    // Ended.
+                }
+            }
+        };
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    /** Send bare datagrams to the echoing port of the server, one at a time. */
+    private static long[] datagramRoundTrips(Transport transport, int serverPort, int port, int roundTrips)
+            throws Exception {
+        Transport.Endpoint endpoint = transport.open(port);
+        try {
+            String address = InetAddress.getLocalHost().getHostAddress();
+            long[] rtt = new long[roundTrips];
+            for (int n = -roundTrips / 10; n < roundTrips; n++) {
+                KtnDatagram packet = new KtnDatagram();
+                packet.setSrc_addr(address);
+                packet.setSrc_port(port);
+                packet.setDest_addr(address);
+                packet.setDest_port(serverPort);
+                packet.setSeq_nr(n);
+                packet.setPayload("echo " + n);
+                long start = System.nanoTime();
+                transport.send(packet);
+                endpoint.receive();
+                // The first tenth warms up
+                if (n >= 0) rtt[n] = System.nanoTime() - start;
+            }
+            return rtt;
+        }
+        finally {
+            endpoint.close();
+        }
+    }
+
+    /** Send short messages to the echo server over a connection, one at a time. */
+    private static long[] messageRoundTrips(Transport transport, int serverPort, int port, int roundTrips)
+            throws Exception {
+        ConnectionImpl client = new ConnectionImpl(port);
+        client.setTransport(transport);
+        client.connect(InetAddress.getLocalHost(), serverPort);
+        long[] rtt = new long[roundTrips];
+        for (int n = -roundTrips / 10; n < roundTrips; n++) {
+            long start = System.nanoTime();
+            client.send("echo " + n);
+            client.receive();
+            if (n >= 0) rtt[n] = System.nanoTime() - start;
+        }
+        client.close();
+        return rtt;
+    }
+
+    private static String median(long[] rtt) {
+        Arrays.sort(rtt);
+        return rtt[rtt.length / 2] / 1000 + " us (p99 " + rtt[rtt.length * 99 / 100] / 1000 + " us)";
+    }
+
+    /**
+     * Run the server: echo bare datagrams on the port, and the messages of
+     * connections accepted on the next port.
+     */
+    private static void serve(final Transport transport, int port) throws Exception {
+        Log.setLogName("SharedMemoryBenchmark-server");
+        new Settings();
+        final Transport.Endpoint endpoint = transport.open(port);
+        Thread echo = new Thread() {
+            public void run() {
+                try {
+                    while (true) {
+                        KtnDatagram packet = endpoint.receive();
+                        if (packet == null) continue;
+                        KtnDatagram reply = new KtnDatagram();
+                        reply.setSrc_addr(packet.getDest_addr());
+                        reply.setSrc_port(packet.getDest_port());
+                        reply.setDest_addr(packet.getSrc_addr());
+                        reply.setDest_port(packet.getSrc_port());
+                        reply.setSeq_nr(packet.getSeq_nr());
+                        reply.setPayloadAsBytes(packet.getPayloadAsBytes());
+                        transport.send(reply);
+                    }
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        echo.setDaemon(true);
+        echo.start();
+
+        ConnectionImpl server = new ConnectionImpl(port + 1);
+        server.setTransport(transport);
+        System.out.println(READY);
+        while (true) {
+            Connection conn = server.accept();
+            try {
+                while (true) {
+                    conn.send(conn.receive());
+                }
+            }
+            catch (EOFException e) {
+                conn.close();
+            }
+        }
+    }
+}
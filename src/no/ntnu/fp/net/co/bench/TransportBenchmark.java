@@ -0,0 +1,124 @@
+package no.ntnu.fp.net.co.bench;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.admin.Settings;
+import no.ntnu.fp.net.co.BinarySocket;
+import no.ntnu.fp.net.co.ClSocketTransport;
+import no.ntnu.fp.net.co.Connection;
+import no.ntnu.fp.net.co.ConnectionImpl;
+import no.ntnu.fp.net.co.InProcessTransport;
+import no.ntnu.fp.net.co.Transport;
+import no.ntnu.fp.net.co.UdpTransport;
+
+/**
+ * Compares the transports a {@link ConnectionImpl} can run on, over the
+ * local host: the time connect() takes, the round trip time of a short
+ * message echoed by the server, and the messages per second sent one way.
+ * Errors are only injected by A2 on the ClSocket path, so the loss and
+ * delay rates of settings.xml should be 0 for a fair comparison.<br>
+ * <br>
+ * Usage: <code>TransportBenchmark [round trips] [messages]</code>
+ *
+ * @see ConnectionImpl#setTransport(Transport)
+ */
+public class TransportBenchmark {
+
+    /** First server port used, each run listens on its own port. */
+    private static final int BASE_PORT = 6300;
+
+    /** Messages starting with this are echoed by the server. */
+    private static final String ECHO = "echo ";
+
+    /** Ends a run, echoed when all messages before it are received. */
+    private static final String DONE = ECHO + "done";
+
+    /**
+     * Program Entry Point.
+     */
+    public static void main(String args[]) throws Exception {
+        int roundTrips = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        Log.setLogName("TransportBenchmark");
+        new Settings();
+        System.out.println("round trips=" + roundTrips + " messages=" + messages);
+
+        run("ClSocket", ClSocketTransport.INSTANCE, 0, roundTrips, messages);
+        run("BinarySocket", BinarySocket.INSTANCE, 1, roundTrips, messages);
+        run("UDP", UdpTransport.INSTANCE, 2, roundTrips, messages);
+        run("in-process", InProcessTransport.INSTANCE, 3, roundTrips, messages);
+        System.exit(0);
+    }
+
+    /** Measure one transport, on ports of its own. */
+    static void run(String name, Transport transport, int index, int roundTrips, int messages)
+            throws IOException, InterruptedException {
+        int serverPort = BASE_PORT + 2 * index;
+        ConnectionImpl server = new ConnectionImpl(serverPort);
+        ConnectionImpl client = new ConnectionImpl(serverPort + 1);
+        server.setTransport(transport);
+        client.setTransport(transport);
+        Thread echo = echo(server);
+        // Give the server time to start listening, a lost SYN costs a retransmission
+        Thread.sleep(500);
+
+        long start = System.nanoTime();
+        client.connect(InetAddress.getLocalHost(), serverPort);
+        long connect = System.nanoTime() - start;
+
+        long[] rtt = new long[roundTrips];
+        for (int n = 0; n < roundTrips; n++) {
+            start = System.nanoTime();
+            client.send(ECHO + n);
+            client.receive();
+            rtt[n] = System.nanoTime() - start;
+        }
+        Arrays.sort(rtt);
+
+        start = System.nanoTime();
+        for (int n = 0; n < messages; n++) {
+            client.send("Message " + n);
+        }
+        client.send(DONE);
+        client.receive();
+        long oneWay = System.nanoTime() - start;
+
+        client.close();
+        echo.join();
+        System.out.println(name + ": connect " + connect / 1000 + " us, round trip median "
+                + rtt[roundTrips / 2] / 1000 + " us p99 " + rtt[roundTrips * 99 / 100] / 1000
+                + " us, one way " + (messages * 1000000000L / Math.max(oneWay, 1)) + " msg/s");
+    }
+
+    /** Start a thread accepting one connection and echoing messages on it. */
+    private static Thread echo(final Connection server) {
+        Thread echo = new Thread() {
+            public void run() {
+                try {
+                    Connection conn = server.accept();
+                    try {
+                        while (true) {
+                            String message = conn.receive();
+                            if (message.startsWith(ECHO)) conn.send(message);
+                        }
+                    }
+                    catch (EOFException e) {
+                        conn.close();
+                    }
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        // A server stuck on a lost connection must not keep the JVM alive
+        echo.setDaemon(true);
+        echo.start();
+        return echo;
+    }
+}
@@ -0,0 +1,113 @@
+package no.ntnu.fp.net.co.bench;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.admin.Settings;
+import no.ntnu.fp.net.co.Connection;
+import no.ntnu.fp.net.co.ConnectionImpl;
+import no.ntnu.fp.net.co.ImpairedTransport;
+import no.ntnu.fp.net.co.Impairment;
+import no.ntnu.fp.net.co.RetransmitScheduler;
+import no.ntnu.fp.net.co.UdpTransport;
+
+/**
+ * Measures how many messages per second {@link ConnectionImpl} delivers for
+ * send windows of 1 (stop-and-wait), 8 and 32 packets. The connections run
+ * over UDP through an {@link ImpairedTransport}, with the loss and delay
+ * rates and the seed of settings.xml in the working directory, so runs can
+ * be repeated.<br>
+ * <br>
+ * Usage: <code>WindowThroughputBenchmark [messages]</code>
+ *
+ * @see ConnectionImpl#setSendWindowSize(int)
+ */
+public class WindowThroughputBenchmark {
+
+    private static final int[] WINDOW_SIZES = { 1, 8, 32 };
+
+    /** First server port used, each run listens on its own port. */
+    private static final int BASE_PORT = 6100;
+
+    /**
+     * Program Entry Point.
+     */
+    public static void main(String args[]) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+        Log.setLogName("WindowThroughputBenchmark");
+        new Settings();
+        File settings = new File("settings.xml");
+        Impairment impairment = Impairment.fromSettings(settings);
+        ImpairedTransport transport = new ImpairedTransport(UdpTransport.INSTANCE, impairment,
+                Impairment.seedFromSettings(settings));
+        System.out.println("loss=" + impairment.getLoss() + " delay=" + impairment.getDelay() + " seed="
+                + transport.getSeed() + " messages=" + messages);
+
+        for (int i = 0; i < WINDOW_SIZES.length; i++) {
+            int window = WINDOW_SIZES[i];
+            ConnectionImpl server = new ConnectionImpl(BASE_PORT + 2 * i);
+            ConnectionImpl client = new ConnectionImpl(BASE_PORT + 2 * i + 1);
+            server.setTransport(transport);
+            client.setTransport(transport);
+            server.setSendWindowSize(window);
+            client.setSendWindowSize(window);
+
+            long millis = transfer(server, client, BASE_PORT + 2 * i, messages);
+            System.out.println("window=" + window + " time=" + millis + "ms throughput="
+                    + (messages * 1000L / Math.max(millis, 1)) + " msg/s");
+        }
+        System.out.println(transport);
+        System.out.println("scheduler " + RetransmitScheduler.getShared());
+        System.exit(0);
+    }
+
+    /**
+     * Connect <code>client</code> to <code>server</code>, send
+     * <code>messages</code> messages and close.
+     *
+     * @return Milliseconds from the first message was sent until the last
+     *         one was received.
+     */
+    static long transfer(final Connection server, Connection client, int serverPort,
+            final int messages) throws IOException, InterruptedException {
+        final long[] received = new long[1];
+        Thread receiver = new Thread() {
+            public void run() {
+                try {
+                    Connection conn = server.accept();
+                    try {
+                        for (int n = 0; n < messages; n++) {
+                            conn.receive();
+                        }
+                        received[0] = System.currentTimeMillis();
+                        conn.receive();
+                    }
+                    catch (EOFException e) {
+                        conn.close();
+                    }
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        // A receiver stuck on a lost connection must not keep the JVM alive
+        receiver.setDaemon(true);
+        receiver.start();
+        // Give the server time to start listening, a lost SYN costs a retransmission
+        Thread.sleep(500);
+
+        client.connect(InetAddress.getLocalHost(), serverPort);
+        long start = System.currentTimeMillis();
+        for (int n = 0; n < messages; n++) {
+            client.send("Message " + n);
+        }
+        client.close();
+        receiver.join();
+        return received[0] - start;
+    }
+}
@@ -50,7 +50,10 @@ public class ChatClient {
         if (SIMPLE_CONNECTION) {
             connection = new SimpleConnection(thisPort);
         } else {
-            connection = new ConnectionImpl(thisPort);
+            ConnectionImpl impl = new ConnectionImpl(thisPort);
+            // User lists and long messages shrink, if the server agrees
+            impl.setCompression(true);
+            connection = impl;
         }
         this.username = JOptionPane.showInputDialog(gui,"Skriv inn navn:");
         gui = new Gui("Chat klient laget av Geir", this);
@@ -85,9 +88,16 @@ public class ChatClient {
         String message;
         System.out.println("Logger inn " + username);
         try {
-            connection.connect(InetAddress.getByName(addressServer),
-                    port_to_server);
-            connection.send("Hello:" + username);
+            if (connection instanceof ConnectionImpl) {
+                // The greeting rides on the SYN
+                ((ConnectionImpl) connection).connect(InetAddress
+                        .getByName(addressServer), port_to_server, "Hello:"
+                        + username);
+            } else {
+                connection.connect(InetAddress.getByName(addressServer),
+                        port_to_server);
+                connection.send("Hello:" + username);
+            }
             recieveThread = new RecieveThread();
             recieveThread.start();
         } catch (SocketTimeoutException e) {
@@ -11,7 +11,10 @@ import java.net.InetAddress;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 
 import javax.swing.JFrame;
 import javax.swing.JList;
@@ -85,9 +88,8 @@ public class ChatServer extends JFrame {
 		      if (!ChatServer.this.users.remove(User.this))
 			DBG("User.run(): Unable to remove 'this' from list " +
 			    "of users - expect errors!");
-		      ChatServer.this.broadcast("***: " + User.this.name + " disconnected.");
-              ChatServer.this.
-			broadcast(ChatServer.this.getUsers().toString());
+		      ChatServer.this.broadcast(Arrays.asList("***: " + User.this.name + " disconnected.",
+			      ChatServer.this.getUsers().toString()));
 		    } catch (IOException e) {
 		      DBG("User.run(): Error: " + e.getMessage());
                     }
@@ -121,9 +123,8 @@ public class ChatServer extends JFrame {
                 if (mess.substring(1, 9).equals("newName:")) {
                     String oldName = name;
                     name = mess.substring(10, mess.length());
-                    ChatServer.this.broadcast(ChatServer.this.getUsers()
-                            .toString());
-                    ChatServer.this.broadcast("**: " + oldName + " changed nick to " + name + ".");
+                    ChatServer.this.broadcast(Arrays.asList(ChatServer.this.getUsers().toString(),
+                            "**: " + oldName + " changed nick to " + name + "."));
                 }
             } else {
                 ChatServer.this.broadcast(mess);
@@ -131,8 +132,12 @@ public class ChatServer extends JFrame {
         }
 
         private void send(String mess) {
+            send(Collections.singletonList(mess));
+        }
+
+        private void send(List<String> mess) {
             try {
-                conn.send(mess);
+                conn.sendAll(mess);
             } catch (ConnectException e) {
 	      DBG("User.send(): ConnectException: '" + e.getMessage() +
 		  "' while sending message '" + mess + "'");
@@ -153,6 +158,14 @@ public class ChatServer extends JFrame {
         }
     }
 
+    /** Send several messages to every user, each user gets them in one batch. */
+    private synchronized void broadcast(List<String> mess) {
+        for (Iterator iter = users.iterator(); iter.hasNext();) {
+            User element = (User) iter.next();
+            element.send(mess);
+        }
+    }
+
     public ChatServer(int port) {
         listenPort = port;
         setTitle("Server");
@@ -173,8 +186,16 @@ public class ChatServer extends JFrame {
 
         if (SIMPLE_CONNECTION)
             server = new SimpleConnection(listenPort);
-        else
-            server = new ConnectionImpl(listenPort);
+        else {
+            ConnectionImpl connection = new ConnectionImpl(listenPort);
+            // Bursts of broadcasts to a user share packets
+            connection.setCoalescing(true);
+            // All users on the listening port, no port per user
+            connection.setSharedPort(true);
+            // Accept compression from clients that offer it
+            connection.setCompression(true);
+            server = connection;
+        }
 
         Thread listener = new Thread() {
 
@@ -195,8 +216,8 @@ public class ChatServer extends JFrame {
                                     + message.substring(6, message.length()));
                             users.add(newUser = new User(message.substring(6,
                                     message.length()), newConn));
-                            broadcast("*: " + message.substring(6, message.length()) + " joined.");
-                            broadcast(getUsers().toString());
+                            broadcast(Arrays.asList("*: " + message.substring(6, message.length())
+                                    + " joined.", getUsers().toString()));
                         }
                     } catch (SocketTimeoutException e) {
 		      DBG("startServer(): Noe gikk galt, forsk igjen.");